@@ -17,9 +17,16 @@ package com.example.android.sunshine.app.data;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.test.AndroidTestCase;
 
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.HashSet;
 
 public class TestDb extends AndroidTestCase {
@@ -55,6 +62,13 @@ public class TestDb extends AndroidTestCase {
         final HashSet<String> tableNameHashSet = new HashSet<String>();
         tableNameHashSet.add(WeatherContract.LocationEntry.TABLE_NAME);
         tableNameHashSet.add(WeatherContract.WeatherEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.ForecastHistoryEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.HourlyEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.DisplayEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.CityEntry.TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.CityEntry.FTS_TABLE_NAME);
+        tableNameHashSet.add(WeatherContract.LocationEntry.SPATIAL_INDEX_NAME);
+        tableNameHashSet.add(WeatherContract.CityEntry.SPATIAL_INDEX_NAME);
 
         mContext.deleteDatabase(WeatherDbHelper.DATABASE_NAME);
         SQLiteDatabase db = new WeatherDbHelper(
@@ -102,6 +116,10 @@ public class TestDb extends AndroidTestCase {
         // entry columns
         assertTrue("Error: The database doesn't contain all of the required location entry columns",
                 locationColumnHashSet.isEmpty());
+
+        // 2 is INCREMENTAL, so the maintenance job never has to rebuild a new database
+        assertEquals("Error: A new database isn't set up for incremental vacuuming", 2,
+                DatabaseUtils.longForQuery(db, "PRAGMA auto_vacuum", null));
         db.close();
     }
 
@@ -142,7 +160,8 @@ public class TestDb extends AndroidTestCase {
         SQLiteDatabase db = dbHelper.getWritableDatabase();
 
         // Second Step (Weather): Create weather values
-        ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+        ContentValues weatherValues = TestUtilities.encodeWeatherValues(
+                TestUtilities.createWeatherValues(locationRowId));
 
         // Third Step (Weather): Insert ContentValues into database and get a row ID back
         long weatherRowId = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, weatherValues);
@@ -234,4 +253,64 @@ public class TestDb extends AndroidTestCase {
         db.close();
         return locationRowId;
     }
+
+    // Two days of an OpenWeatherMap daily forecast response
+    static final String ARCHIVED_RESPONSE = "{\"cod\":\"200\",\"city\":{\"name\":\"North Pole\","
+            + "\"coord\":{\"lat\":64.7488,\"lon\":-147.353}},\"list\":["
+            + "{\"temp\":{\"min\":-3.25,\"max\":12.5},\"pressure\":1013.25,\"humidity\":81,"
+            + "\"weather\":[{\"id\":800,\"main\":\"Clear\"}],\"speed\":5.5,\"deg\":270},"
+            + "{\"temp\":{\"min\":-1.5,\"max\":14},\"pressure\":1009,\"humidity\":77,"
+            + "\"weather\":[{\"id\":500,\"main\":\"Rain\"}],\"speed\":7.25,\"deg\":180}]}";
+
+    /*
+        A new database is filled from the archived responses when it's created, whether that's
+        the first time or after a corrupt one has been thrown away.
+     */
+    public void testRebuildFromArchive() throws IOException {
+        File databaseFile = mContext.getDatabasePath(WeatherDbHelper.DATABASE_NAME);
+        ForecastArchive.save(mContext, TestUtilities.TEST_LOCATION, ARCHIVED_RESPONSE,
+                System.currentTimeMillis());
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        try {
+            validateRebuild(dbHelper.getWritableDatabase());
+            dbHelper.close();
+
+            // Garbage where the header should be
+            RandomAccessFile file = new RandomAccessFile(databaseFile, "rw");
+            try {
+                file.write("not a database, not a database".getBytes("UTF-8"));
+            } finally {
+                file.close();
+            }
+            dbHelper = new WeatherDbHelper(mContext);
+            validateRebuild(dbHelper.getWritableDatabase());
+        } finally {
+            dbHelper.close();
+            ForecastArchive.getFile(mContext, TestUtilities.TEST_LOCATION).delete();
+            new File(databaseFile.getPath() + WeatherDbHelper.QUARANTINE_SUFFIX).delete();
+        }
+    }
+
+    private void validateRebuild(SQLiteDatabase db) {
+        Cursor cursor = db.query(LocationEntry.TABLE_NAME, null, null, null, null, null, null);
+        assertTrue("Error: The archived location wasn't rebuilt", cursor.moveToFirst());
+        assertEquals(TestUtilities.TEST_LOCATION, cursor.getString(
+                cursor.getColumnIndex(LocationEntry.COLUMN_LOCATION_SETTING)));
+        assertEquals("North Pole",
+                cursor.getString(cursor.getColumnIndex(LocationEntry.COLUMN_CITY_NAME)));
+        cursor.close();
+
+        cursor = db.query(WeatherEntry.TABLE_NAME, null, null, null, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals("Error: The archived days weren't rebuilt", 2, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(WeatherContract.normalizeDate(System.currentTimeMillis()),
+                cursor.getLong(cursor.getColumnIndex(WeatherEntry.COLUMN_DATE)));
+        assertEquals("Error: Rebuilt measurements weren't stored scaled",
+                WeatherEntry.encodeMeasurement(12.5),
+                cursor.getLong(cursor.getColumnIndex(WeatherEntry.COLUMN_MAX_TEMP)));
+        assertEquals("Clear",
+                cursor.getString(cursor.getColumnIndex(WeatherEntry.COLUMN_SHORT_DESC)));
+        cursor.close();
+    }
 }
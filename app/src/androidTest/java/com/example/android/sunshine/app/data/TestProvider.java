@@ -16,20 +16,41 @@
 package com.example.android.sunshine.app.data;
 
 import android.content.ComponentName;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.pm.PackageManager;
 import android.content.pm.ProviderInfo;
 import android.database.Cursor;
+import android.database.DatabaseUtils;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.Build;
+import android.os.Bundle;
 import android.test.AndroidTestCase;
+import android.text.format.Time;
 import android.util.Log;
 
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract.DisplayEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+
 /*
     Note: This is not a complete set of tests of the Sunshine ContentProvider, but it does test
     that at least the basic functionality has been implemented correctly.
@@ -160,6 +181,10 @@ public class TestProvider extends AndroidTestCase {
         // vnd.android.cursor.dir/com.example.android.sunshine.app/location
         assertEquals("Error: the LocationEntry CONTENT_URI should return LocationEntry.CONTENT_TYPE",
                 LocationEntry.CONTENT_TYPE, type);
+
+        type = mContext.getContentResolver().getType(WeatherContract.BackupEntry.CONTENT_URI);
+        assertEquals("Error: the BackupEntry CONTENT_URI should return BackupEntry.CONTENT_TYPE",
+                WeatherContract.BackupEntry.CONTENT_TYPE, type);
     }
 
 
@@ -179,7 +204,8 @@ public class TestProvider extends AndroidTestCase {
         // Fantastic.  Now that we have a location, add some weather!
         ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
 
-        long weatherRowId = db.insert(WeatherEntry.TABLE_NAME, null, weatherValues);
+        long weatherRowId = db.insert(WeatherEntry.TABLE_NAME, null,
+                TestUtilities.encodeWeatherValues(weatherValues));
         assertTrue("Unable to Insert WeatherEntry into the Database", weatherRowId != -1);
 
         db.close();
@@ -391,6 +417,21 @@ public class TestProvider extends AndroidTestCase {
         );
         TestUtilities.validateCursor("testInsertReadProvider.  Error validating joined Weather and Location data for a specific date.",
                 weatherCursor, weatherValues);
+
+        // The same day addressed by location id, asking only for weather columns, which the
+        // provider answers without joining the location table
+        weatherCursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationIdWithDate(locationRowId, TestUtilities.TEST_DATE),
+                new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP},
+                null,
+                null,
+                null
+        );
+        ContentValues weatherOnlyValues = new ContentValues();
+        weatherOnlyValues.put(WeatherEntry.COLUMN_DATE, TestUtilities.TEST_DATE);
+        weatherOnlyValues.put(WeatherEntry.COLUMN_MAX_TEMP, weatherValues.getAsDouble(WeatherEntry.COLUMN_MAX_TEMP));
+        TestUtilities.validateCursor("testInsertReadProvider.  Error validating Weather data for a location id and date.",
+                weatherCursor, weatherOnlyValues);
     }
 
     // Make sure we can still delete after adding/updating stuff
@@ -512,4 +553,1410 @@ public class TestProvider extends AndroidTestCase {
         }
         cursor.close();
     }
+
+    /*
+        A row that breaks a constraint is skipped, and the rest of the batch still goes in,
+        whether the row takes the compiled insert or the general one.
+     */
+    public void testBulkInsertSkipsBadRows() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        ContentValues[] bulkInsertContentValues = createBulkInsertWeatherValues(locationRowId);
+        bulkInsertContentValues[1].putNull(WeatherEntry.COLUMN_SHORT_DESC);
+        bulkInsertContentValues[2].remove(WeatherEntry.COLUMN_DEGREES);
+
+        int insertCount = mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                bulkInsertContentValues);
+        assertEquals("Error: Bad rows weren't skipped", BULK_INSERT_RECORDS_TO_INSERT - 2,
+                insertCount);
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null,
+                null, null, null);
+        assertEquals(BULK_INSERT_RECORDS_TO_INSERT - 2, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        The provider keeps recent per-location results in memory.  Make sure a write to the
+        location throws them away, so the next query sees the new data rather than the old rows.
+     */
+    public void testCachedQueryInvalidatedByWrite() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        ContentValues[] bulkInsertContentValues = createBulkInsertWeatherValues(locationRowId);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, bulkInsertContentValues);
+
+        Uri weatherUri = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+        String[] projection = new String[]{WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_SHORT_DESC};
+        String sortOrder = WeatherEntry.COLUMN_DATE + " ASC";
+
+        // Query twice so the second read is served from the cache
+        for (int i = 0; i < 2; i++) {
+            Cursor cursor = mContext.getContentResolver().query(weatherUri, projection, null, null,
+                    sortOrder);
+            assertEquals(BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+            cursor.close();
+        }
+
+        for (ContentValues values : bulkInsertContentValues) {
+            values.put(WeatherEntry.COLUMN_SHORT_DESC, "Meteors");
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, bulkInsertContentValues);
+
+        Cursor cursor = mContext.getContentResolver().query(weatherUri, projection, null, null,
+                sortOrder);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: Cached weather wasn't invalidated by bulkInsert",
+                "Meteors", cursor.getString(1));
+        cursor.close();
+
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI,
+                WeatherEntry.COLUMN_LOC_KEY + " = ?", new String[]{Long.toString(locationRowId)});
+        cursor = mContext.getContentResolver().query(weatherUri, projection, null, null, sortOrder);
+        assertEquals("Error: Cached weather wasn't invalidated by delete", 0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Writes to one location should only notify that location's URIs.  Observers of another
+        location aren't told anything.  The negative check can only catch a stray notification
+        that arrives before the expected one, but it never fails spuriously.
+     */
+    public void testNotificationsScopedToLocation() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        TestUtilities.TestContentObserver locationObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), true,
+                locationObserver);
+        TestUtilities.TestContentObserver otherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(
+                WeatherEntry.buildWeatherLocation("00000"), true, otherObserver);
+
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+
+        locationObserver.waitForNotificationOrFail();
+        assertFalse("Error: Weather for another location was notified of this location's insert",
+                otherObserver.mContentChanged);
+
+        mContext.getContentResolver().unregisterContentObserver(locationObserver);
+        mContext.getContentResolver().unregisterContentObserver(otherObserver);
+        otherObserver.mHT.quit();
+    }
+
+    /*
+        A location and its weather written in one batch, with the weather rows referring back to
+        the location's new row id.  The whole batch commits together and observers are notified
+        once it has.
+     */
+    public void testApplyBatch() throws Exception {
+        ArrayList<ContentProviderOperation> operations = new ArrayList<>();
+        operations.add(ContentProviderOperation.newInsert(LocationEntry.CONTENT_URI)
+                .withValues(TestUtilities.createNorthPoleLocationValues())
+                .build());
+        ContentValues[] weatherValues = createBulkInsertWeatherValues(0);
+        for (ContentValues values : weatherValues) {
+            values.remove(WeatherEntry.COLUMN_LOC_KEY);
+            operations.add(ContentProviderOperation.newInsert(WeatherEntry.CONTENT_URI)
+                    .withValues(values)
+                    .withValueBackReference(WeatherEntry.COLUMN_LOC_KEY, 0)
+                    .withYieldAllowed(true)
+                    .build());
+        }
+
+        TestUtilities.TestContentObserver weatherObserver = TestUtilities.getTestContentObserver();
+        mContext.getContentResolver().registerContentObserver(WeatherEntry.CONTENT_URI, true,
+                weatherObserver);
+
+        ContentProviderResult[] results = mContext.getContentResolver().applyBatch(
+                WeatherContract.CONTENT_AUTHORITY, operations);
+
+        weatherObserver.waitForNotificationOrFail();
+        mContext.getContentResolver().unregisterContentObserver(weatherObserver);
+
+        assertEquals(operations.size(), results.length);
+        long locationRowId = ContentUris.parseId(results[0].uri);
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationId(locationRowId), null, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals("Error: Batch didn't insert all of the weather",
+                BULK_INSERT_RECORDS_TO_INSERT, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        The weather URIs can't address a location whose setting is one of their own segments,
+        so the provider refuses to store one, whichever way it's written.
+     */
+    public void testReservedLocationSettingRefused() {
+        ContentValues values = TestUtilities.createNorthPoleLocationValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, WeatherEntry.PATH_STATS);
+        try {
+            mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, values);
+            fail("Error: Inserted a location with a reserved setting");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            mContext.getContentResolver().bulkInsert(LocationEntry.CONTENT_URI,
+                    new ContentValues[]{values});
+            fail("Error: Upserted a location with a reserved setting");
+        } catch (IllegalArgumentException expected) {
+        }
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null,
+                null, null, null);
+        assertEquals(0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Locations are upserted on their setting: an existing setting keeps its row id and takes
+        the new values, and a new one is inserted.
+     */
+    public void testUpsertLocations() {
+        ContentValues northPole = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, northPole);
+        long northPoleRowId = ContentUris.parseId(locationUri);
+
+        ContentValues renamed = new ContentValues(northPole);
+        renamed.put(LocationEntry.COLUMN_CITY_NAME, "Santa's Village");
+        ContentValues southPole = new ContentValues(northPole);
+        southPole.put(LocationEntry.COLUMN_LOCATION_SETTING, "00000");
+        southPole.put(LocationEntry.COLUMN_CITY_NAME, "South Pole");
+        southPole.put(LocationEntry.COLUMN_COORD_LAT, -90.0);
+
+        int count = mContext.getContentResolver().bulkInsert(LocationEntry.CONTENT_URI,
+                new ContentValues[]{renamed, southPole});
+        assertEquals(2, count);
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null,
+                LocationEntry._ID + " = ?", new String[]{Long.toString(northPoleRowId)}, null);
+        TestUtilities.validateCursor("Error: Existing location wasn't updated in place",
+                cursor, renamed);
+        cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null, null, null,
+                null);
+        assertEquals("Error: Upsert duplicated an existing location", 2, cursor.getCount());
+        cursor.close();
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            long[] ids = LocationEntry.upsertLocations(mContext.getContentResolver(),
+                    northPole, southPole);
+            assertEquals("Error: Upsert didn't return the existing row id", northPoleRowId, ids[0]);
+            assertTrue("Error: Upsert returned the same id for two locations", ids[0] != ids[1]);
+        }
+    }
+
+    /*
+        Compacting deletes weather past the retention period and keeps the rest.
+     */
+    public void testCompact() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        int julianToday = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        dayTime = new Time();
+
+        ContentValues oldWeather = TestUtilities.createWeatherValues(locationRowId);
+        oldWeather.put(WeatherEntry.COLUMN_DATE, dayTime.setJulianDay(julianToday - 10));
+        ContentValues todaysWeather = TestUtilities.createWeatherValues(locationRowId);
+        todaysWeather.put(WeatherEntry.COLUMN_DATE, dayTime.setJulianDay(julianToday));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{oldWeather, todaysWeather});
+
+        Bundle extras = new Bundle();
+        extras.putInt(WeatherContract.EXTRA_WEATHER_RETENTION_DAYS, 1);
+        extras.putBoolean(WeatherContract.EXTRA_PRUNE_LOCATIONS, true);
+        Bundle result = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_COMPACT, null, extras);
+        assertTrue("Error: Compacting didn't report the bytes reclaimed",
+                result.containsKey(WeatherContract.EXTRA_BYTES_RECLAIMED));
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null, null,
+                null, null);
+        assertEquals("Error: Compacting didn't keep exactly today's weather", 1, cursor.getCount());
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null, null, null,
+                null);
+        assertEquals("Error: Compacting deleted a location that still has weather",
+                1, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Location ids can be reused, so pruning must keep a location that still has forecast
+        history.  Otherwise the next location added could take its id, and with it the history
+        and accuracy of somewhere else.
+     */
+    public void testPruneKeepsLocationsWithHistory() {
+        mContext.getContentResolver().delete(WeatherContract.ForecastHistoryEntry.CONTENT_URI,
+                null, null);
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        int julianToday = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        dayTime = new Time();
+        long oldDate = dayTime.setJulianDay(julianToday - 10);
+        ContentValues oldWeather = TestUtilities.createWeatherValues(locationRowId);
+        oldWeather.put(WeatherEntry.COLUMN_DATE, oldDate);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{oldWeather});
+
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        ContentValues actual = new ContentValues();
+        actual.put(WeatherContract.ForecastHistoryEntry.COLUMN_LOC_KEY, locationRowId);
+        actual.put(WeatherContract.ForecastHistoryEntry.COLUMN_DATE, oldDate);
+        actual.put(WeatherContract.ForecastHistoryEntry.COLUMN_HORIZON, 0);
+        actual.put(WeatherContract.ForecastHistoryEntry.COLUMN_WEATHER_ID, 321);
+        actual.put(WeatherContract.ForecastHistoryEntry.COLUMN_MIN_TEMP, 670);
+        actual.put(WeatherContract.ForecastHistoryEntry.COLUMN_MAX_TEMP, 770);
+        assertTrue(db.insert(WeatherContract.ForecastHistoryEntry.TABLE_NAME, null, actual) != -1);
+        dbHelper.close();
+
+        Bundle extras = new Bundle();
+        extras.putInt(WeatherContract.EXTRA_WEATHER_RETENTION_DAYS, 1);
+        extras.putBoolean(WeatherContract.EXTRA_PRUNE_LOCATIONS, true);
+        mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_COMPACT, null, extras);
+
+        Cursor cursor = mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null, null,
+                null, null);
+        assertEquals("Error: Pruned a location that still has forecast history",
+                1, cursor.getCount());
+        cursor.close();
+
+        // A location added afterwards gets an id of its own, and no history
+        ContentValues newValues = TestUtilities.createNorthPoleLocationValues();
+        newValues.put(LocationEntry.COLUMN_LOCATION_SETTING, "Longyearbyen");
+        long newLocationRowId = ContentUris.parseId(mContext.getContentResolver().insert(
+                LocationEntry.CONTENT_URI, newValues));
+        assertTrue(newLocationRowId != locationRowId);
+        cursor = mContext.getContentResolver().query(
+                WeatherContract.ForecastHistoryEntry.CONTENT_URI, null,
+                WeatherContract.ForecastHistoryEntry.COLUMN_LOC_KEY + " = ?",
+                new String[]{Long.toString(newLocationRowId)}, null);
+        assertEquals("Error: A new location inherited forecast history", 0, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        A compaction that has been cancelled by its token deletes nothing more, and says so.
+        Cancelling ahead of the call stands in for the job being stopped between two batches.
+     */
+    public void testCompactCancelled() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        int julianToday = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        dayTime = new Time();
+        ContentValues oldWeather = TestUtilities.createWeatherValues(locationRowId);
+        oldWeather.put(WeatherEntry.COLUMN_DATE, dayTime.setJulianDay(julianToday - 10));
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{oldWeather});
+
+        mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_CANCEL_COMPACT, "testCompactCancelled", null);
+        Bundle extras = new Bundle();
+        extras.putInt(WeatherContract.EXTRA_WEATHER_RETENTION_DAYS, 1);
+        extras.putString(WeatherContract.EXTRA_COMPACT_TOKEN, "testCompactCancelled");
+        Bundle result = mContext.getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                WeatherContract.METHOD_COMPACT, null, extras);
+        assertTrue("Error: A cancelled compaction didn't say so",
+                result.getBoolean(WeatherContract.EXTRA_CANCELLED));
+
+        Cursor cursor = mContext.getContentResolver().query(WeatherEntry.CONTENT_URI, null, null,
+                null, null);
+        assertEquals("Error: A cancelled compaction deleted weather", 1, cursor.getCount());
+        cursor.close();
+    }
+
+    /*
+        Walks a location's weather forwards and backwards a page at a time, using the last date of
+        each page as the key for the next.
+     */
+    public void testPagedWeatherQuery() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+
+        Uri weatherUri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+        String[] projection = new String[]{WeatherEntry.COLUMN_DATE};
+        final int pageSize = 3;
+
+        // Forwards: 3 + 3 + 3 + 1 rows, each page in ascending order and after the last
+        int rows = 0;
+        long lastDate = -1;
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherWithLimit(weatherUri, pageSize), projection, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        while (cursor.getCount() > 0) {
+            assertTrue("Error: Page is bigger than its limit", cursor.getCount() <= pageSize);
+            while (cursor.moveToNext()) {
+                assertTrue("Error: Pages aren't in ascending date order",
+                        cursor.getLong(0) > lastDate);
+                lastDate = cursor.getLong(0);
+                rows++;
+            }
+            cursor.close();
+            cursor = mContext.getContentResolver().query(
+                    WeatherEntry.buildWeatherPageAfter(weatherUri, lastDate, pageSize), projection,
+                    null, null, null);
+        }
+        cursor.close();
+        assertEquals("Error: Paging forwards didn't visit every row",
+                BULK_INSERT_RECORDS_TO_INSERT, rows);
+
+        // Backwards from the newest date, through the id route this time
+        Uri idUri = WeatherEntry.buildWeatherLocationId(locationRowId);
+        cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherPageBefore(idUri, lastDate, pageSize), projection, null,
+                null, null);
+        assertEquals(pageSize, cursor.getCount());
+        while (cursor.moveToNext()) {
+            assertTrue("Error: Pages before a date aren't in descending date order",
+                    cursor.getLong(0) < lastDate);
+            lastDate = cursor.getLong(0);
+        }
+        cursor.close();
+    }
+
+    /*
+        The today URI returns just the first day from today onwards.
+     */
+    public void testTodaysWeather() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        long millisecondsInADay = 1000*60*60*24;
+        ContentValues[] weatherValues = new ContentValues[3];
+        for (int i = 0; i < weatherValues.length; i++) {
+            weatherValues[i] = TestUtilities.createWeatherValues(locationRowId);
+            weatherValues[i].put(WeatherEntry.COLUMN_DATE, today + (i - 1) * millisecondsInADay);
+        }
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, weatherValues);
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationToday(TestUtilities.TEST_LOCATION),
+                new String[]{WeatherEntry.COLUMN_DATE}, null, null, null);
+        assertEquals("Error: Today's weather should be a single row", 1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: Today's weather isn't today's row", today, cursor.getLong(0));
+        cursor.close();
+    }
+
+    /*
+        A forecast made a day ahead is recorded in the history, and the accuracy URI compares it
+        with the day's own forecast.
+     */
+    public void testForecastAccuracy() {
+        mContext.getContentResolver().delete(WeatherContract.ForecastHistoryEntry.CONTENT_URI,
+                null, null);
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+
+        // Tomorrow's forecast, made today: max 75, min 65, condition 321
+        long tomorrow = WeatherContract.normalizeDate(
+                System.currentTimeMillis() + 1000*60*60*24);
+        ContentValues forecast = TestUtilities.createWeatherValues(locationRowId);
+        forecast.put(WeatherEntry.COLUMN_DATE, tomorrow);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{forecast});
+
+        // How tomorrow turned out, as recorded by tomorrow's sync: 2 degrees warmer, same condition
+        WeatherDbHelper dbHelper = new WeatherDbHelper(mContext);
+        SQLiteDatabase db = dbHelper.getWritableDatabase();
+        ContentValues actual = new ContentValues();
+        actual.put(WeatherContract.ForecastHistoryEntry.COLUMN_LOC_KEY, locationRowId);
+        actual.put(WeatherContract.ForecastHistoryEntry.COLUMN_DATE, tomorrow);
+        actual.put(WeatherContract.ForecastHistoryEntry.COLUMN_HORIZON, 0);
+        actual.put(WeatherContract.ForecastHistoryEntry.COLUMN_WEATHER_ID, 321);
+        actual.put(WeatherContract.ForecastHistoryEntry.COLUMN_MIN_TEMP, 670);
+        actual.put(WeatherContract.ForecastHistoryEntry.COLUMN_MAX_TEMP, 770);
+        assertTrue(db.insert(WeatherContract.ForecastHistoryEntry.TABLE_NAME, null, actual) != -1);
+        dbHelper.close();
+
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherContract.ForecastHistoryEntry.buildAccuracyUri(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        assertEquals("Error: Expected accuracy for a single horizon", 1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(1, cursor.getInt(cursor.getColumnIndex(
+                WeatherContract.ForecastHistoryEntry.COLUMN_HORIZON)));
+        assertEquals(2.0, cursor.getDouble(cursor.getColumnIndex(
+                WeatherContract.ForecastHistoryEntry.COLUMN_MAX_TEMP_ERROR)), 0.001);
+        assertEquals(1.0, cursor.getDouble(cursor.getColumnIndex(
+                WeatherContract.ForecastHistoryEntry.COLUMN_CONDITION_HIT_RATE)), 0.001);
+        cursor.close();
+    }
+
+    /*
+        The stats URI summarizes a week of the bulk inserted weather in a single row.
+     */
+    public void testWeatherStats() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createBulkInsertWeatherValues(locationRowId));
+
+        long millisecondsInADay = 1000*60*60*24;
+        Uri statsUri = WeatherEntry.buildWeatherStats(TestUtilities.TEST_DATE,
+                TestUtilities.TEST_DATE + 6 * millisecondsInADay, locationRowId);
+        Cursor cursor = mContext.getContentResolver().query(statsUri,
+                new String[]{WeatherEntry.COLUMN_STATS_DAYS, WeatherEntry.COLUMN_STATS_HIGHEST_TEMP,
+                        WeatherEntry.COLUMN_STATS_LOWEST_TEMP},
+                null, null, null);
+        assertEquals("Error: Stats should be a single row", 1, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(7, cursor.getInt(0));
+        assertEquals(75 + 6, cursor.getDouble(1), 0.001);
+        assertEquals(65 - 6, cursor.getDouble(2), 0.001);
+        cursor.close();
+    }
+
+    static ContentValues createCityValues(long id, String name, String country, long population) {
+        ContentValues values = new ContentValues();
+        values.put(WeatherContract.CityEntry._ID, id);
+        values.put(WeatherContract.CityEntry.COLUMN_CITY_NAME, name);
+        values.put(WeatherContract.CityEntry.COLUMN_COUNTRY, country);
+        values.put(WeatherContract.CityEntry.COLUMN_COORD_LAT, 0.0);
+        values.put(WeatherContract.CityEntry.COLUMN_COORD_LONG, 0.0);
+        values.put(WeatherContract.CityEntry.COLUMN_POPULATION, population);
+        return values;
+    }
+
+    /*
+        Searching the city index matches every word as a prefix, ranks the most populous cities
+        first, and copes with input that isn't valid FTS syntax.  It returns the columns asked
+        for, whether or not anything matches, and refuses columns and limits it doesn't know.
+     */
+    public void testCitySearch() {
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.delete(WeatherContract.CityEntry.CONTENT_URI, null, null);
+        int inserted = resolver.bulkInsert(WeatherContract.CityEntry.CONTENT_URI,
+                new ContentValues[]{
+                        createCityValues(2643743, "London", "GB", 7556900),
+                        createCityValues(6058560, "London", "CA", 346765),
+                        createCityValues(2643734, "Londonderry County Borough", "GB", 83652),
+                        createCityValues(5128581, "New York", "US", 8175133),
+                        createCityValues(2988507, "Paris", "FR", 2138551)
+                });
+        assertEquals("Error: Not every city was inserted", 5, inserted);
+
+        Cursor cursor = resolver.query(
+                WeatherContract.CityEntry.buildCitySearchUri("lond", 10), null, null, null, null);
+        assertEquals("Error: Prefix search found the wrong number of cities",
+                3, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("Error: The most populous match wasn't first", 2643743L,
+                cursor.getLong(cursor.getColumnIndex(WeatherContract.CityEntry._ID)));
+        cursor.close();
+
+        cursor = resolver.query(
+                WeatherContract.CityEntry.buildCitySearchUri("london c", 10), null, null, null, null);
+        assertEquals("Error: Every word should have to match", 2, cursor.getCount());
+        cursor.close();
+
+        cursor = resolver.query(
+                WeatherContract.CityEntry.buildCitySearchUri("lond", 1), null, null, null, null);
+        assertEquals("Error: Search didn't honor its limit", 1, cursor.getCount());
+        cursor.close();
+
+        String[] projection = {WeatherContract.CityEntry.COLUMN_CITY_NAME,
+                WeatherContract.CityEntry._ID};
+        cursor = resolver.query(WeatherContract.CityEntry.buildCitySearchUri("paris", 10),
+                projection, null, null, null);
+        assertTrue(Arrays.equals(projection, cursor.getColumnNames()));
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: Search didn't honor its projection", "Paris", cursor.getString(0));
+        cursor.close();
+        cursor = resolver.query(WeatherContract.CityEntry.buildCitySearchUri(" ", 10),
+                projection, null, null, null);
+        assertTrue("Error: An empty search didn't honor its projection",
+                Arrays.equals(projection, cursor.getColumnNames()));
+        cursor.close();
+        try {
+            resolver.query(WeatherContract.CityEntry.buildCitySearchUri("paris", 10),
+                    new String[]{"docid"}, null, null, null);
+            fail("Error: Search returned a column it doesn't have");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            resolver.query(WeatherContract.CityEntry.CONTENT_URI.buildUpon()
+                    .appendPath(WeatherContract.CityEntry.PATH_SEARCH)
+                    .appendQueryParameter(WeatherContract.CityEntry.PARAM_QUERY, "paris")
+                    .appendQueryParameter(WeatherContract.CityEntry.PARAM_LIMIT, "ten")
+                    .build(), null, null, null, null);
+            fail("Error: Search took a limit that isn't a number");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        cursor = resolver.query(
+                WeatherContract.CityEntry.buildCitySearchUri("\"new\" OR* -(yo", 10),
+                null, null, null, null);
+        assertEquals("Error: FTS syntax in the search text wasn't ignored", 1, cursor.getCount());
+        cursor.close();
+
+        cursor = resolver.query(
+                WeatherContract.CityEntry.buildCitySearchUri(" ", 10), null, null, null, null);
+        assertEquals("Error: A blank search should find nothing", 0, cursor.getCount());
+        cursor.close();
+
+        resolver.delete(WeatherContract.CityEntry.CONTENT_URI,
+                WeatherContract.CityEntry.COLUMN_COUNTRY + " = ?", new String[]{"GB"});
+        cursor = resolver.query(
+                WeatherContract.CityEntry.buildCitySearchUri("lond", 10), null, null, null, null);
+        assertEquals("Error: Deleted cities are still in the search index", 1, cursor.getCount());
+        cursor.close();
+
+        // Inserting a city again replaces its index entry rather than adding a second one
+        resolver.bulkInsert(WeatherContract.CityEntry.CONTENT_URI, new ContentValues[]{
+                createCityValues(6058560, "London Ontario", "CA", 346765)});
+        cursor = resolver.query(
+                WeatherContract.CityEntry.buildCitySearchUri("lond", 10), null, null, null, null);
+        assertEquals("Error: A re-inserted city is in the search index twice",
+                1, cursor.getCount());
+        cursor.close();
+        cursor = resolver.query(
+                WeatherContract.CityEntry.buildCitySearchUri("ontario", 10), null, null, null, null);
+        assertEquals("Error: A re-inserted city's new name isn't in the search index",
+                1, cursor.getCount());
+        cursor.close();
+
+        ContentValues withoutId = createCityValues(2988507, "Paris", "FR", 2138551);
+        withoutId.remove(WeatherContract.CityEntry._ID);
+        try {
+            resolver.bulkInsert(WeatherContract.CityEntry.CONTENT_URI,
+                    new ContentValues[]{withoutId});
+            fail("Error: Inserted a city without an id");
+        } catch (IllegalArgumentException expected) {
+        }
+
+        resolver.delete(WeatherContract.CityEntry.CONTENT_URI, null, null);
+    }
+
+    static ContentValues createLocationValues(String setting, String city, double lat,
+                                              double lon) {
+        ContentValues values = new ContentValues();
+        values.put(LocationEntry.COLUMN_LOCATION_SETTING, setting);
+        values.put(LocationEntry.COLUMN_CITY_NAME, city);
+        values.put(LocationEntry.COLUMN_COORD_LAT, lat);
+        values.put(LocationEntry.COLUMN_COORD_LONG, lon);
+        return values;
+    }
+
+    /*
+        Nearest and bounding box lookups go through the spatial index, which has to follow every
+        insert, update and delete of the location table.
+     */
+    public void testSpatialLookups() {
+        ContentResolver resolver = mContext.getContentResolver();
+        long london = ContentUris.parseId(resolver.insert(LocationEntry.CONTENT_URI,
+                createLocationValues("London,GB", "London", 51.5085, -0.1257)));
+        long paris = ContentUris.parseId(resolver.insert(LocationEntry.CONTENT_URI,
+                createLocationValues("Paris,FR", "Paris", 48.8534, 2.3488)));
+        long sydney = ContentUris.parseId(resolver.insert(LocationEntry.CONTENT_URI,
+                createLocationValues("Sydney,AU", "Sydney", -33.8679, 151.2073)));
+
+        // Reading, about 60km west of London
+        Cursor cursor = resolver.query(
+                WeatherContract.buildNearestUri(LocationEntry.CONTENT_URI, 51.4542, -0.9731, 2),
+                new String[]{LocationEntry._ID}, null, null, null);
+        assertEquals("Error: Nearest lookup returned the wrong number of rows",
+                2, cursor.getCount());
+        cursor.moveToFirst();
+        assertEquals("Error: London isn't the nearest location to Reading",
+                london, cursor.getLong(0));
+        double distance = cursor.getDouble(cursor.getColumnIndex(WeatherContract.COLUMN_DISTANCE));
+        assertTrue("Error: Distance from Reading to London is off: " + distance,
+                distance > 50 && distance < 70);
+        cursor.moveToNext();
+        assertEquals("Error: Paris isn't the second nearest location to Reading",
+                paris, cursor.getLong(0));
+        cursor.close();
+
+        // Sydney is far from everywhere else, so the search box has to grow a few times first
+        cursor = resolver.query(
+                WeatherContract.buildNearestUri(LocationEntry.CONTENT_URI, -37.8, 145.0, 1),
+                new String[]{LocationEntry._ID}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: Sydney isn't the nearest location to Melbourne",
+                sydney, cursor.getLong(0));
+        cursor.close();
+
+        cursor = resolver.query(
+                WeatherContract.buildBoundsUri(LocationEntry.CONTENT_URI, 45, -5, 55, 5),
+                new String[]{LocationEntry._ID}, null, null, LocationEntry._ID + " ASC");
+        assertEquals("Error: Box around western Europe found the wrong locations",
+                2, cursor.getCount());
+        cursor.close();
+
+        // Moving a location moves it in the index, and deleting it takes it out
+        ContentValues moved = new ContentValues();
+        moved.put(LocationEntry.COLUMN_COORD_LAT, 51.4542);
+        moved.put(LocationEntry.COLUMN_COORD_LONG, -0.9731);
+        resolver.update(LocationEntry.CONTENT_URI, moved, LocationEntry._ID + " = ?",
+                new String[]{Long.toString(paris)});
+        cursor = resolver.query(
+                WeatherContract.buildBoundsUri(LocationEntry.CONTENT_URI, 51.4, -1, 51.5, -0.9),
+                new String[]{LocationEntry._ID}, null, null, null);
+        assertTrue("Error: The spatial index didn't follow an update", cursor.moveToFirst());
+        assertEquals(paris, cursor.getLong(0));
+        cursor.close();
+
+        resolver.delete(LocationEntry.CONTENT_URI, LocationEntry._ID + " = ?",
+                new String[]{Long.toString(paris)});
+        cursor = resolver.query(
+                WeatherContract.buildBoundsUri(LocationEntry.CONTENT_URI, 51.4, -1, 51.5, -0.9),
+                new String[]{LocationEntry._ID}, null, null, null);
+        assertEquals("Error: The spatial index didn't follow a delete", 0, cursor.getCount());
+        cursor.close();
+
+        // Cities are indexed through the same triggers
+        resolver.bulkInsert(WeatherContract.CityEntry.CONTENT_URI, new ContentValues[]{
+                createCityValues(1, "Near", "GB", 0), createCityValues(2, "Far", "GB", 0)});
+        ContentValues far = createCityValues(2, "Far", "GB", 0);
+        far.put(WeatherContract.CityEntry.COLUMN_COORD_LAT, 10.0);
+        resolver.bulkInsert(WeatherContract.CityEntry.CONTENT_URI, new ContentValues[]{far});
+        cursor = resolver.query(
+                WeatherContract.buildNearestUri(WeatherContract.CityEntry.CONTENT_URI, 9, 0, 1),
+                new String[]{WeatherContract.CityEntry._ID}, null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: A replaced city wasn't re-indexed", 2L, cursor.getLong(0));
+        cursor.close();
+
+        resolver.delete(WeatherContract.CityEntry.CONTENT_URI, null, null);
+    }
+
+    /*
+        The nearest lookup measures longitude the short way round, and searches both sides of
+        the antimeridian.  Columns other than the distance keep their types, and coordinates
+        that aren't numbers are refused, as is a limit that isn't.
+     */
+    public void testNearestAcrossAntimeridian() {
+        ContentResolver resolver = mContext.getContentResolver();
+        long taveuni = ContentUris.parseId(resolver.insert(LocationEntry.CONTENT_URI,
+                createLocationValues("Taveuni,FJ", "Taveuni", -16.85, 179.97)));
+        resolver.insert(LocationEntry.CONTENT_URI,
+                createLocationValues("Noumea,NC", "Noumea", -22.27, 166.44));
+
+        // Just east of the antimeridian, a few kilometres from Taveuni on the other side
+        Cursor cursor = resolver.query(
+                WeatherContract.buildNearestUri(LocationEntry.CONTENT_URI, -16.85, -179.97, 1),
+                new String[]{LocationEntry._ID, LocationEntry.COLUMN_COORD_LONG},
+                null, null, null);
+        assertTrue(cursor.moveToFirst());
+        assertEquals("Error: The nearest lookup didn't look across the antimeridian",
+                taveuni, cursor.getLong(0));
+        double distance = cursor.getDouble(cursor.getColumnIndex(WeatherContract.COLUMN_DISTANCE));
+        assertTrue("Error: Distance across the antimeridian is off: " + distance,
+                distance > 0 && distance < 10);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            assertEquals("Error: The nearest lookup changed a column's type",
+                    Cursor.FIELD_TYPE_INTEGER, cursor.getType(0));
+            assertEquals("Error: The nearest lookup changed a column's type",
+                    Cursor.FIELD_TYPE_FLOAT, cursor.getType(1));
+        }
+        cursor.close();
+
+        try {
+            resolver.query(
+                    WeatherContract.buildNearestUri(LocationEntry.CONTENT_URI, Double.NaN, 0, 1),
+                    null, null, null, null);
+            fail("Error: A nearest lookup at NaN wasn't refused");
+        } catch (IllegalArgumentException expected) {
+        }
+        try {
+            resolver.query(WeatherContract.buildBoundsUri(LocationEntry.CONTENT_URI,
+                    0, Double.NEGATIVE_INFINITY, 10, 10), null, null, null, null);
+            fail("Error: A bounds lookup to infinity wasn't refused");
+        } catch (IllegalArgumentException expected) {
+        }
+        Uri nearestUri = WeatherContract.buildNearestUri(LocationEntry.CONTENT_URI, 0, 0, 1);
+        try {
+            resolver.query(Uri.parse(nearestUri.toString().replace(
+                    WeatherContract.PARAM_NEAREST_LIMIT + "=1",
+                    WeatherContract.PARAM_NEAREST_LIMIT + "=one")), null, null, null, null);
+            fail("Error: A nearest lookup took a limit that isn't a number");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    /*
+        A batch of queries returns the same rows, in the same order, as running them one by one,
+        read from the database rather than the provider's result cache.
+     */
+    public void testQueryBatch() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestProviderPerformance.createWeatherValues(locationRowId,
+                        WeatherContract.normalizeDate(System.currentTimeMillis()), 7));
+
+        Uri forecastUri = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, System.currentTimeMillis());
+        Uri todayUri = WeatherEntry.buildWeatherLocationToday(TestUtilities.TEST_LOCATION);
+        String[] projection = {WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_SHORT_DESC};
+        Cursor[] results = WeatherContract.queryBatch(mContext.getContentResolver(),
+                WeatherContract.buildQuery(forecastUri, projection, null, null,
+                        WeatherEntry.COLUMN_DATE + " ASC"),
+                WeatherContract.buildQuery(todayUri, projection, null, null, null),
+                WeatherContract.buildQuery(LocationEntry.CONTENT_URI, null,
+                        LocationEntry._ID + " = ?", new String[]{Long.toString(locationRowId)},
+                        null));
+        assertEquals("Error: Batch returned the wrong number of results", 3, results.length);
+
+        Cursor forecast = mContext.getContentResolver().query(forecastUri, projection, null, null,
+                WeatherEntry.COLUMN_DATE + " ASC");
+        assertEquals("Error: Batched forecast has the wrong number of rows",
+                forecast.getCount(), results[0].getCount());
+        while (forecast.moveToNext()) {
+            assertTrue(results[0].moveToNext());
+            assertEquals("Error: Batched forecast rows don't match",
+                    forecast.getLong(0), results[0].getLong(0));
+            assertEquals(forecast.getString(1), results[0].getString(1));
+        }
+        forecast.close();
+
+        assertEquals("Error: Batched today query should be a single row",
+                1, results[1].getCount());
+        assertTrue(results[2].moveToFirst());
+        TestUtilities.validateCurrentRecord("Error: Batched location query doesn't match",
+                results[2], testValues);
+
+        for (Cursor result : results) {
+            result.close();
+        }
+
+        // Written behind the provider's back, so the forecast read above is still cached, but the
+        // batch reads its own snapshot rather than the cache
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        ContentValues changed = new ContentValues();
+        changed.put(WeatherEntry.COLUMN_SHORT_DESC, "Changed");
+        db.update(WeatherEntry.TABLE_NAME, changed, null, null);
+        db.close();
+        results = WeatherContract.queryBatch(mContext.getContentResolver(),
+                WeatherContract.buildQuery(forecastUri, projection, null, null,
+                        WeatherEntry.COLUMN_DATE + " ASC"));
+        assertTrue(results[0].moveToFirst());
+        assertEquals("Error: Batch read a result cached before it began", "Changed",
+                results[0].getString(1));
+        results[0].close();
+    }
+
+    /*
+        A batched result that doesn't fit in one cursor window fails the batch, rather than
+        coming back cut short with nothing to say so.
+     */
+    public void testQueryBatchTooLarge() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        // About 4MB of names, twice the size of a cursor window
+        StringBuilder name = new StringBuilder();
+        while (name.length() < 200) {
+            name.append("Llanfairpwllgwyngyll ");
+        }
+        ContentValues[] cities = new ContentValues[20000];
+        for (int i = 0; i < cities.length; i++) {
+            cities[i] = createCityValues(i + 1, name.toString() + i, "GB", 0);
+        }
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.delete(WeatherContract.CityEntry.CONTENT_URI, null, null);
+        resolver.bulkInsert(WeatherContract.CityEntry.CONTENT_URI, cities);
+        try {
+            WeatherContract.queryBatch(resolver, WeatherContract.buildQuery(
+                    WeatherContract.CityEntry.CONTENT_URI, null, null, null, null));
+            fail("Error: A batched result too big for its window wasn't refused");
+        } catch (IllegalArgumentException expected) {
+        } finally {
+            resolver.delete(WeatherContract.CityEntry.CONTENT_URI, null, null);
+        }
+    }
+
+    /*
+        Provider calls show up on the metrics URI under their operation and URI match, and the
+        histogram's percentiles are bounded by the bucket the calls fell in.
+     */
+    public void testMetrics() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                new ContentValues[]{TestUtilities.createWeatherValues(locationRowId)});
+        // A query is recorded once its cursor is read, which is when it runs
+        Cursor cursor = mContext.getContentResolver().query(
+                WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION), null, null, null,
+                null);
+        assertTrue(cursor.moveToFirst());
+        cursor.close();
+
+        cursor = mContext.getContentResolver().query(
+                WeatherContract.MetricsEntry.CONTENT_URI, null, null, null, null);
+        boolean foundQuery = false;
+        boolean foundBulkInsert = false;
+        int operation = cursor.getColumnIndex(WeatherContract.MetricsEntry.COLUMN_OPERATION);
+        int match = cursor.getColumnIndex(WeatherContract.MetricsEntry.COLUMN_MATCH);
+        int calls = cursor.getColumnIndex(WeatherContract.MetricsEntry.COLUMN_CALLS);
+        int rows = cursor.getColumnIndex(WeatherContract.MetricsEntry.COLUMN_ROWS);
+        while (cursor.moveToNext()) {
+            if (cursor.getInt(match) == WeatherProvider.WEATHER_WITH_LOCATION
+                    && "query".equals(cursor.getString(operation))) {
+                foundQuery = cursor.getLong(calls) >= 1 && cursor.getLong(rows) >= 1;
+            } else if (cursor.getInt(match) == WeatherProvider.WEATHER
+                    && "bulkInsert".equals(cursor.getString(operation))) {
+                foundBulkInsert = cursor.getLong(calls) >= 1 && cursor.getLong(rows) >= 1;
+            }
+        }
+        cursor.close();
+        assertTrue("Error: The weather query wasn't recorded", foundQuery);
+        assertTrue("Error: The weather bulk insert wasn't recorded", foundBulkInsert);
+
+        cursor = mContext.getContentResolver().query(
+                WeatherContract.MetricsEntry.SLOW_QUERIES_URI, null, null, null, null);
+        assertTrue("Error: The slow query log has no plan column",
+                cursor.getColumnIndex(WeatherContract.MetricsEntry.COLUMN_PLAN) != -1);
+        cursor.close();
+
+        // 3ms falls in the 2048-4096us bucket, 150us in the 128-256us one
+        assertEquals(11, ProviderMetrics.bucketFor(3000000));
+        assertEquals(7, ProviderMetrics.bucketFor(150000));
+        long[] histogram = new long[ProviderMetrics.HISTOGRAM_BUCKETS];
+        histogram[7] = 99;
+        histogram[11] = 1;
+        assertEquals(0.256, ProviderMetrics.percentileMillis(histogram, 100, 0.50), 1e-9);
+        assertEquals(4.096, ProviderMetrics.percentileMillis(histogram, 100, 1.0), 1e-9);
+    }
+
+    /*
+        The display columns of the forecast come back rendered the way the list would render
+        them itself, and are left null for days already past.  A day whose weather changes reads
+        as null, rather than stale, until the next sync renders it again.
+     */
+    public void testDisplayColumns() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestProviderPerformance.createWeatherValues(locationRowId,
+                        today - TestProviderPerformance.MILLISECONDS_IN_A_DAY, 8));
+
+        Uri forecastUri = WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION);
+        String[] projection = {
+                WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+                WeatherEntry.COLUMN_DATE,
+                WeatherEntry.COLUMN_WEATHER_ID,
+                WeatherEntry.COLUMN_MAX_TEMP,
+                WeatherEntry.COLUMN_MIN_TEMP,
+                DisplayEntry.COLUMN_FRIENDLY_DATE,
+                DisplayEntry.COLUMN_FRIENDLY_DATE_LONG,
+                DisplayEntry.COLUMN_DESCRIPTION,
+                DisplayEntry.COLUMN_HIGH_TEMP,
+                DisplayEntry.COLUMN_LOW_TEMP
+        };
+        String sortOrder = WeatherEntry.COLUMN_DATE + " ASC";
+
+        Cursor cursor = mContext.getContentResolver().query(forecastUri, projection, null, null,
+                sortOrder);
+        assertEquals("Error: Forecast has the wrong number of days", 8, cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertNull("Error: Yesterday shouldn't have been rendered", cursor.getString(5));
+        long firstDayId = 0;
+        while (cursor.moveToNext()) {
+            if (firstDayId == 0) {
+                firstDayId = cursor.getLong(0);
+            }
+            long date = cursor.getLong(1);
+            assertEquals("Error: Friendly date doesn't match",
+                    Utility.getFriendlyDayString(mContext, date, false), cursor.getString(5));
+            assertEquals("Error: Long friendly date doesn't match",
+                    Utility.getFriendlyDayString(mContext, date, true), cursor.getString(6));
+            assertEquals("Error: Description doesn't match",
+                    Utility.getStringForWeatherCondition(mContext, cursor.getInt(2)),
+                    cursor.getString(7));
+            assertEquals("Error: High temperature doesn't match",
+                    Utility.formatTemperature(mContext, cursor.getDouble(3)), cursor.getString(8));
+            assertEquals("Error: Low temperature doesn't match",
+                    Utility.formatTemperature(mContext, cursor.getDouble(4)), cursor.getString(9));
+        }
+        cursor.close();
+
+        ContentValues warmer = new ContentValues();
+        warmer.put(WeatherEntry.COLUMN_MAX_TEMP, 99.5);
+        assertEquals(1, mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, warmer,
+                WeatherEntry._ID + " = ?", new String[]{Long.toString(firstDayId)}));
+
+        cursor = mContext.getContentResolver().query(forecastUri, projection,
+                null, null, sortOrder);
+        assertTrue(cursor.moveToPosition(1));
+        assertNull("Error: Today's old rendering was read after its weather changed",
+                cursor.getString(8));
+        cursor.close();
+
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestProviderPerformance.createWeatherValues(locationRowId, today, 1));
+        cursor = mContext.getContentResolver().query(forecastUri, projection,
+                null, null, sortOrder);
+        assertTrue(cursor.moveToPosition(1));
+        assertEquals("Error: Today wasn't rendered again by the sync",
+                Utility.formatTemperature(mContext, cursor.getDouble(3)), cursor.getString(8));
+        cursor.close();
+    }
+
+    /*
+        A forecast snapshot reads back what was written, skips days before the one asked for,
+        cuts long descriptions on a character boundary, and isn't read when it doesn't match its
+        checksum or when its layout is one the reader doesn't know.
+     */
+    public void testForecastSnapshot() {
+        ForecastSnapshot.Day[] days = new ForecastSnapshot.Day[3];
+        for (int i = 0; i < days.length; i++) {
+            ForecastSnapshot.Day day = new ForecastSnapshot.Day();
+            day.date = TestUtilities.TEST_DATE + i * TestProviderPerformance.MILLISECONDS_IN_A_DAY;
+            day.weatherId = 800 + i;
+            day.minTemp = -3.25 + i;
+            day.maxTemp = 12.5 + i;
+            day.humidity = 81;
+            day.pressure = 1013.25;
+            day.windSpeed = 5.5;
+            day.degrees = 270;
+            day.shortDesc = "Clear";
+            days[i] = day;
+        }
+        // Longer than a record holds, with a two-byte character across the cut
+        StringBuilder longDesc = new StringBuilder();
+        while (longDesc.length() < ForecastSnapshot.DESC_BYTES - 2) {
+            longDesc.append('a');
+        }
+        days[2].shortDesc = longDesc.append("\u00e9\u00e9").toString();
+
+        ByteBuffer buffer = ByteBuffer.allocate(ForecastSnapshot.FILE_BYTES);
+        ForecastSnapshot.write(buffer, days, days.length);
+
+        ForecastSnapshot.Day read = new ForecastSnapshot.Day();
+        assertTrue(ForecastSnapshot.read(buffer, days[1].date, read));
+        assertEquals("Error: Snapshot read the wrong day", days[1].date, read.date);
+        assertEquals(days[1].weatherId, read.weatherId);
+        assertEquals(days[1].minTemp, read.minTemp);
+        assertEquals(days[1].maxTemp, read.maxTemp);
+        assertEquals(days[1].pressure, read.pressure);
+        assertEquals(days[1].shortDesc, read.shortDesc);
+
+        assertTrue(ForecastSnapshot.read(buffer, days[2].date, read));
+        assertTrue("Error: Long description wasn't cut to a prefix",
+                days[2].shortDesc.startsWith(read.shortDesc));
+        assertEquals("Error: Long description was cut inside a character",
+                ForecastSnapshot.DESC_BYTES - 2, read.shortDesc.length());
+
+        assertFalse("Error: Snapshot returned a day past its last",
+                ForecastSnapshot.read(buffer,
+                        days[2].date + TestProviderPerformance.MILLISECONDS_IN_A_DAY, read));
+
+        // A file damaged on disk
+        int weatherIdOffset = ForecastSnapshot.HEADER_BYTES + 8;
+        buffer.putInt(weatherIdOffset, buffer.getInt(weatherIdOffset) + 1);
+        assertFalse("Error: Snapshot that doesn't match its checksum was read",
+                ForecastSnapshot.read(buffer, days[0].date, read));
+        ForecastSnapshot.write(buffer, days, days.length);
+        assertTrue(ForecastSnapshot.read(buffer, days[0].date, read));
+
+        buffer.putInt(4, ForecastSnapshot.FORMAT_VERSION + 1);
+        assertFalse("Error: Snapshot of an unknown format was read",
+                ForecastSnapshot.read(buffer, days[0].date, read));
+    }
+
+    /*
+        The forecast repository hands out the same forecast until the provider is written to,
+        then reads a new one that has the write in it, with its display strings rendered.
+     */
+    public void testForecastRepository() {
+        ContentValues testValues = TestUtilities.createNorthPoleLocationValues();
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI, testValues);
+        long locationRowId = ContentUris.parseId(locationUri);
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestProviderPerformance.createWeatherValues(locationRowId,
+                        today - TestProviderPerformance.MILLISECONDS_IN_A_DAY, 8));
+
+        ForecastRepository repository = ForecastRepository.getInstance(mContext);
+        ForecastRepository.Forecast forecast = repository.getForecast(TestUtilities.TEST_LOCATION);
+        assertNotNull(forecast);
+        assertEquals("Error: Forecast should start today", 7, forecast.getCount());
+        assertEquals(today, forecast.getDate(0));
+        assertEquals(TestUtilities.TEST_LOCATION, forecast.getLocationSetting());
+        assertEquals(testValues.getAsDouble(LocationEntry.COLUMN_COORD_LAT),
+                forecast.getCoordLat());
+        for (int i = 0; i < forecast.getCount(); i++) {
+            assertEquals("Error: Days aren't in date order",
+                    today + i * TestProviderPerformance.MILLISECONDS_IN_A_DAY, forecast.getDate(i));
+            assertEquals(i, forecast.indexOfDate(forecast.getDate(i)));
+            assertEquals("Error: High temperature doesn't match",
+                    Utility.formatTemperature(mContext, forecast.getMaxTemp(i)),
+                    forecast.getHighTemp(i));
+            assertEquals(Utility.getFriendlyDayString(mContext, forecast.getDate(i), true),
+                    forecast.getFriendlyDate(i, true));
+        }
+        assertEquals(-1, forecast.indexOfDate(today - TestProviderPerformance.MILLISECONDS_IN_A_DAY));
+
+        assertSame("Error: Unchanged forecast was read again",
+                forecast, repository.getForecast(TestUtilities.TEST_LOCATION));
+
+        ContentValues warmer = new ContentValues();
+        warmer.put(WeatherEntry.COLUMN_MAX_TEMP, 99.5);
+        assertEquals(1, mContext.getContentResolver().update(WeatherEntry.CONTENT_URI, warmer,
+                WeatherEntry._ID + " = ?", new String[]{Long.toString(forecast.getId(0))}));
+
+        ForecastRepository.Forecast updated = repository.getForecast(TestUtilities.TEST_LOCATION);
+        assertNotSame("Error: Forecast wasn't read again after a write", forecast, updated);
+        assertEquals(99.5, updated.getMaxTemp(0));
+        assertEquals(Utility.formatTemperature(mContext, 99.5), updated.getHighTemp(0));
+        // What was handed out before doesn't change under its reader
+        assertEquals(TestUtilities.createWeatherValues(locationRowId)
+                .getAsDouble(WeatherEntry.COLUMN_MAX_TEMP), forecast.getMaxTemp(0));
+    }
+
+    static byte[] readBackup(ContentResolver resolver) throws IOException {
+        InputStream in = resolver.openInputStream(WeatherContract.BackupEntry.CONTENT_URI);
+        try {
+            ByteArrayOutputStream backup = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                backup.write(buffer, 0, read);
+            }
+            return backup.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    static void writeBackup(ContentResolver resolver, InputStream backup) throws IOException {
+        TestUtilities.TestContentObserver tco = TestUtilities.getTestContentObserver();
+        resolver.registerContentObserver(WeatherContract.BackupEntry.CONTENT_URI, false, tco);
+        OutputStream out = resolver.openOutputStream(WeatherContract.BackupEntry.CONTENT_URI);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = backup.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            out.close();
+        }
+        // The import carries on after the pipe is closed, and says when it's done
+        tco.waitForNotificationOrFail();
+        resolver.unregisterContentObserver(tco);
+    }
+
+    private static void assertSameRows(String error, Cursor expected, Cursor actual) {
+        assertEquals(error, expected.getCount(), actual.getCount());
+        while (expected.moveToNext() && actual.moveToNext()) {
+            for (int column = 0; column < expected.getColumnCount(); column++) {
+                assertEquals(error, expected.getString(column), actual.getString(column));
+            }
+        }
+        expected.close();
+        actual.close();
+    }
+
+    /*
+        A backup streamed out through the provider and written back into an emptied one brings
+        back every row as it was, with the city search index made again; a backup cut short,
+        or with more rows than its trailer says, is refused without touching the tables, even
+        after batches of it have been committed.  A second import isn't started while one is
+        running.  Forecast snapshots don't outlive the locations they were published for.
+     */
+    public void testBackup() throws Exception {
+        ContentResolver resolver = mContext.getContentResolver();
+        long locationRowId = ContentUris.parseId(resolver.insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues()));
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        resolver.bulkInsert(WeatherEntry.CONTENT_URI,
+                TestProviderPerformance.createWeatherValues(locationRowId, today, 7));
+        resolver.delete(WeatherContract.CityEntry.CONTENT_URI, null, null);
+        resolver.bulkInsert(WeatherContract.CityEntry.CONTENT_URI, new ContentValues[]{
+                createCityValues(2643743, "London", "GB", 7556900),
+                createCityValues(2988507, "Paris", "FR", 2138551)
+        });
+        Cursor weatherBefore = resolver.query(WeatherEntry.CONTENT_URI, null, null, null,
+                WeatherEntry._ID);
+        Cursor citiesBefore = resolver.query(WeatherContract.CityEntry.CONTENT_URI, null, null,
+                null, WeatherContract.CityEntry._ID);
+
+        byte[] backup = readBackup(resolver);
+        String text = new String(backup, "UTF-8");
+        assertTrue("Error: Backup doesn't start with its header: " + text,
+                text.startsWith("{\"" + DatabaseBackup.KEY_FORMAT + "\":\"" +
+                        DatabaseBackup.FORMAT + "\""));
+        assertTrue("Error: Backup doesn't end with its trailer: " + text,
+                text.contains("\n{\"" + DatabaseBackup.KEY_ROWS + "\":"));
+
+        ForecastSnapshot.publish(mContext, TestUtilities.TEST_LOCATION);
+        ForecastSnapshot.Day day = new ForecastSnapshot.Day();
+        assertTrue("Error: No snapshot was published",
+                ForecastSnapshot.readToday(mContext, TestUtilities.TEST_LOCATION, day));
+        deleteAllRecordsFromProvider();
+        assertFalse("Error: A snapshot outlived its location",
+                ForecastSnapshot.readToday(mContext, TestUtilities.TEST_LOCATION, day));
+        resolver.delete(WeatherContract.CityEntry.CONTENT_URI, null, null);
+
+        // It would drop the running import's staging tables
+        TestUtilities.TestContentObserver tco = TestUtilities.getTestContentObserver();
+        resolver.registerContentObserver(WeatherContract.BackupEntry.CONTENT_URI, false, tco);
+        OutputStream running = resolver.openOutputStream(WeatherContract.BackupEntry.CONTENT_URI);
+        try {
+            resolver.openOutputStream(WeatherContract.BackupEntry.CONTENT_URI);
+            fail("Error: A second import was started while one was running");
+        } catch (FileNotFoundException expected) {
+            // What we want
+        } finally {
+            // An empty backup, which fails
+            running.close();
+        }
+        tco.waitForNotificationOrFail();
+        resolver.unregisterContentObserver(tco);
+
+        writeBackup(resolver, new ByteArrayInputStream(backup));
+
+        assertSameRows("Error: Weather wasn't restored as it was", weatherBefore,
+                resolver.query(WeatherEntry.CONTENT_URI, null, null, null, WeatherEntry._ID));
+        assertSameRows("Error: Cities weren't restored as they were", citiesBefore,
+                resolver.query(WeatherContract.CityEntry.CONTENT_URI, null, null, null,
+                        WeatherContract.CityEntry._ID));
+        Cursor cursor = resolver.query(WeatherContract.CityEntry.buildCitySearchUri("lond", 10),
+                null, null, null, null);
+        assertEquals("Error: Restored cities can't be searched for", 1, cursor.getCount());
+        cursor.close();
+        cursor = resolver.query(WeatherEntry.buildWeatherLocation(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        assertEquals("Error: Restored weather isn't found through its location", 7,
+                cursor.getCount());
+        cursor.close();
+
+        String truncated = text.substring(0, text.lastIndexOf("{\"" + DatabaseBackup.KEY_ROWS));
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        try {
+            DatabaseBackup.restore(db, new ByteArrayInputStream(truncated.getBytes("UTF-8")));
+            fail("Error: A backup without its trailer was restored");
+        } catch (IOException expected) {
+            // What we want
+        }
+        assertEquals("Error: A failed restore changed the tables", 7, DatabaseUtils.queryNumEntries(
+                db, WeatherEntry.TABLE_NAME));
+
+        // More than a batch of extra cities, so some are committed before the count is checked
+        String[] lines = truncated.split("\n");
+        int rows = 0;
+        JSONArray cityRow = null;
+        int idColumn = -1;
+        for (int i = 0; i < lines.length; i++) {
+            if (lines[i].startsWith("[")) {
+                rows++;
+            } else if (lines[i].startsWith("{\"" + DatabaseBackup.KEY_TABLE + "\":\""
+                    + WeatherContract.CityEntry.TABLE_NAME + "\"")) {
+                JSONArray columns = new JSONObject(lines[i])
+                        .getJSONArray(DatabaseBackup.KEY_COLUMNS);
+                for (int column = 0; column < columns.length(); column++) {
+                    if (WeatherContract.CityEntry._ID.equals(columns.getString(column))) {
+                        idColumn = column;
+                    }
+                }
+                cityRow = new JSONArray(lines[i + 1]);
+            }
+        }
+        assertNotNull("Error: Backup has no cities", cityRow);
+        StringBuilder padded = new StringBuilder(truncated);
+        for (int i = 0; i <= DatabaseBackup.IMPORT_BATCH_ROWS; i++) {
+            cityRow.put(idColumn, 1000000 + i);
+            padded.append(cityRow).append('\n');
+        }
+        padded.append("{\"").append(DatabaseBackup.KEY_ROWS).append("\":").append(rows)
+                .append("}\n");
+        try {
+            DatabaseBackup.restore(db, new ByteArrayInputStream(
+                    padded.toString().getBytes("UTF-8")));
+            fail("Error: A backup with more rows than its trailer says was restored");
+        } catch (IOException expected) {
+            // What we want
+        }
+        assertEquals("Error: A failed restore changed the weather", 7,
+                DatabaseUtils.queryNumEntries(db, WeatherEntry.TABLE_NAME));
+        assertEquals("Error: A failed restore changed the cities", 2,
+                DatabaseUtils.queryNumEntries(db, WeatherContract.CityEntry.TABLE_NAME));
+        assertEquals("Error: A failed restore left its staging tables", 0,
+                DatabaseUtils.longForQuery(db, "SELECT count(*) FROM sqlite_master WHERE name " +
+                        "LIKE '" + DatabaseBackup.STAGING_PREFIX + "%'", null));
+        db.close();
+    }
+
+    /*
+        A block gives back exactly the points packed into it, however irregular their times
+        and however far their values jump, and a steady hourly series packs into a few bytes a
+        point, most of them the first point's.
+     */
+    public void testTimeSeriesBlock() {
+        long date = TimeSeriesBlock.getBlockDate(System.currentTimeMillis());
+        long hour = TestProviderPerformance.MILLISECONDS_IN_AN_HOUR;
+        long[] times = {date, date + 3 * hour, date + 6 * hour, date + 6 * hour + 1,
+                date + 24 * hour - 1};
+        long[][] values = {
+                {1250, 6500, 101325, 420, 18000, 800},
+                {-4000, 6500, 101300, 0, 0, 801},
+                {Integer.MAX_VALUE * 4L, 0, -101325, 1, 35999, 500},
+                {Long.MIN_VALUE, Long.MAX_VALUE, 0, 0, 0, 0},
+                {0, 0, 0, 0, 0, 0}
+        };
+        byte[] block = TimeSeriesBlock.encode(date, times, values, times.length);
+        assertEquals(times.length, TimeSeriesBlock.getCount(block));
+
+        TimeSeriesBlock.Decoder decoder = new TimeSeriesBlock.Decoder(block, date);
+        for (int i = 0; i < times.length; i++) {
+            assertTrue("Error: Block ended early", decoder.next());
+            assertEquals("Error: Wrong time for point " + i, times[i], decoder.getTime());
+            for (int v = 0; v < TimeSeriesBlock.VALUE_COUNT; v++) {
+                assertEquals("Error: Wrong value " + v + " for point " + i, values[i][v],
+                        decoder.getValue(v));
+            }
+        }
+        assertFalse("Error: Block has points past its count", decoder.next());
+
+        decoder = new TimeSeriesBlock.Decoder(block, date);
+        assertTrue(decoder.seek(date + 5 * hour));
+        assertEquals("Error: Seek stopped at the wrong point", times[2], decoder.getTime());
+        assertFalse("Error: Seek went past the end", decoder.seek(date + 24 * hour));
+
+        try {
+            TimeSeriesBlock.encode(date, new long[]{date + hour, date}, new long[2][6], 2);
+            fail("Error: Points out of order were packed");
+        } catch (IllegalArgumentException expected) {
+            // What we want
+        }
+        try {
+            TimeSeriesBlock.encode(date, new long[]{date + 24 * hour}, new long[1][6], 1);
+            fail("Error: A point of the next day was packed");
+        } catch (IllegalArgumentException expected) {
+            // What we want
+        }
+
+        long[] hourly = new long[24];
+        long[][] steady = new long[24][];
+        for (int i = 0; i < hourly.length; i++) {
+            hourly[i] = date + i * hour;
+            steady[i] = new long[]{1250 + (i % 2) * 10, 6500, 101325, 420, 18000, 800};
+        }
+        block = TimeSeriesBlock.encode(date, hourly, steady, hourly.length);
+        assertTrue("Error: A steady day took " + block.length + " bytes",
+                block.length <= hourly.length * 4);
+    }
+
+    /*
+        Points written to the hourly store come back decoded through a location's URI, for
+        exactly the range asked for, and a point at the time of a stored one replaces it while
+        the rest of its day is kept.
+     */
+    public void testHourlyPoints() {
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.delete(WeatherContract.HourlyEntry.CONTENT_URI, null, null);
+        long locationRowId = ContentUris.parseId(resolver.insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues()));
+        long hour = TestProviderPerformance.MILLISECONDS_IN_AN_HOUR;
+        long start = TimeSeriesBlock.getBlockDate(System.currentTimeMillis());
+        ContentValues[] values = TestProviderPerformance.createHourlyValues(locationRowId, start,
+                48, hour);
+        assertEquals(48, resolver.bulkInsert(WeatherContract.HourlyEntry.CONTENT_URI, values));
+
+        Cursor cursor = resolver.query(WeatherContract.HourlyEntry.CONTENT_URI, null, null, null,
+                null);
+        assertEquals("Error: Expected a block for each of the two days", 2, cursor.getCount());
+        cursor.close();
+
+        cursor = resolver.query(WeatherContract.HourlyEntry.buildHourlyLocationWithRange(
+                TestUtilities.TEST_LOCATION, start, start + 48 * hour), null, null, null, null);
+        assertEquals("Error: Not every point came back", 48, cursor.getCount());
+        int timeColumn = cursor.getColumnIndex(WeatherContract.HourlyEntry.POINT_TIME);
+        for (int i = 0; cursor.moveToNext(); i++) {
+            assertEquals("Error: Points aren't in time order", start + i * hour,
+                    cursor.getLong(timeColumn));
+            for (String column : new String[]{WeatherContract.HourlyEntry.POINT_TEMP,
+                    WeatherContract.HourlyEntry.POINT_HUMIDITY,
+                    WeatherContract.HourlyEntry.POINT_PRESSURE,
+                    WeatherContract.HourlyEntry.POINT_WIND_SPEED,
+                    WeatherContract.HourlyEntry.POINT_DEGREES}) {
+                assertEquals("Error: " + column + " of point " + i + " doesn't match",
+                        values[i].getAsDouble(column),
+                        cursor.getDouble(cursor.getColumnIndex(column)), 0.001);
+            }
+            assertEquals(values[i].getAsInteger(WeatherContract.HourlyEntry.POINT_WEATHER_ID)
+                    .intValue(), cursor.getInt(cursor.getColumnIndex(
+                    WeatherContract.HourlyEntry.POINT_WEATHER_ID)));
+        }
+        cursor.close();
+
+        String[] projection = {WeatherContract.HourlyEntry.POINT_TIME,
+                WeatherContract.HourlyEntry.POINT_TEMP};
+        cursor = resolver.query(WeatherContract.HourlyEntry.buildHourlyLocationWithRange(
+                TestUtilities.TEST_LOCATION, start + 10 * hour, start + 30 * hour), projection,
+                null, null, null);
+        assertEquals("Error: Range across two days returned the wrong points", 20,
+                cursor.getCount());
+        assertTrue(cursor.moveToFirst());
+        assertEquals(start + 10 * hour, cursor.getLong(0));
+        assertEquals(2, cursor.getColumnCount());
+        cursor.close();
+
+        ContentValues replaced = new ContentValues(values[10]);
+        replaced.put(WeatherContract.HourlyEntry.POINT_TEMP, 99.5);
+        ContentValues added = new ContentValues(values[10]);
+        added.put(WeatherContract.HourlyEntry.POINT_TIME, start + 10 * hour + hour / 2);
+        // The same point twice is only stored, and counted, once
+        assertEquals("Error: Points written weren't counted", 2,
+                resolver.bulkInsert(WeatherContract.HourlyEntry.CONTENT_URI,
+                        new ContentValues[]{replaced, added, added}));
+        cursor = resolver.query(WeatherContract.HourlyEntry.buildHourlyLocationWithRange(
+                TestUtilities.TEST_LOCATION, start, start + 24 * hour), projection, null, null,
+                null);
+        assertEquals("Error: Merged day has the wrong points", 25, cursor.getCount());
+        cursor.moveToPosition(10);
+        assertEquals(start + 10 * hour, cursor.getLong(0));
+        assertEquals("Error: Point wasn't replaced", 99.5, cursor.getDouble(1), 0.001);
+        cursor.moveToNext();
+        assertEquals(start + 10 * hour + hour / 2, cursor.getLong(0));
+        cursor.close();
+
+        cursor = resolver.query(WeatherContract.HourlyEntry.buildHourlyLocation("nowhere"),
+                null, null, null, null);
+        assertEquals("Error: Unknown location has points", 0, cursor.getCount());
+        cursor.close();
+        resolver.delete(WeatherContract.HourlyEntry.CONTENT_URI, null, null);
+    }
 }
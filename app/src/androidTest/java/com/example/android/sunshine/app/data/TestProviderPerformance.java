@@ -0,0 +1,750 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.CityEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+/*
+    Rough benchmarks for the WeatherProvider.  These aren't meant to be precise; they log their
+    numbers so that changes to the provider can be compared on the same device, and only fail
+    when something is badly off.
+ */
+public class TestProviderPerformance extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestProviderPerformance.class.getSimpleName();
+
+    static final long MILLISECONDS_IN_A_DAY = 1000 * 60 * 60 * 24;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+    }
+
+    static ContentValues[] createWeatherValues(long locationRowId, long startDate, int days) {
+        ContentValues[] values = new ContentValues[days];
+        long date = startDate;
+        for (int i = 0; i < days; i++, date += MILLISECONDS_IN_A_DAY) {
+            ContentValues weatherValues = TestUtilities.createWeatherValues(locationRowId);
+            weatherValues.put(WeatherEntry.COLUMN_DATE, date);
+            values[i] = weatherValues;
+        }
+        return values;
+    }
+
+    static final long MILLISECONDS_IN_AN_HOUR = 1000 * 60 * 60;
+    private static final int[] HOURLY_WEATHER_IDS = {800, 801, 802, 500, 501};
+
+    // Hourly points that change the way real weather does: temperature following the time of
+    // day, pressure, humidity and wind drifting, and the condition holding for hours at a time.
+    static ContentValues[] createHourlyValues(long locationRowId, long startTime, int points,
+                                              long stepMillis) {
+        Random random = new Random(points);
+        ContentValues[] values = new ContentValues[points];
+        double humidity = 70;
+        double pressure = 1013;
+        double degrees = 180;
+        int weatherId = HOURLY_WEATHER_IDS[0];
+        for (int i = 0; i < points; i++) {
+            long time = startTime + i * stepMillis;
+            double hourOfDay = (time % MILLISECONDS_IN_A_DAY) / (double) MILLISECONDS_IN_AN_HOUR;
+            humidity = Math.max(10, Math.min(100, humidity + random.nextGaussian() * 2));
+            pressure += random.nextGaussian() * 0.5;
+            degrees = (degrees + random.nextGaussian() * 10 + 360) % 360;
+            if (random.nextInt(12) == 0) {
+                weatherId = HOURLY_WEATHER_IDS[random.nextInt(HOURLY_WEATHER_IDS.length)];
+            }
+            ContentValues point = new ContentValues();
+            point.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, locationRowId);
+            point.put(WeatherContract.HourlyEntry.POINT_TIME, time);
+            point.put(WeatherContract.HourlyEntry.POINT_TEMP, roundMeasurement(
+                    12 + 6 * Math.sin(2 * Math.PI * (hourOfDay - 9) / 24)
+                            + random.nextGaussian() * 0.3));
+            point.put(WeatherContract.HourlyEntry.POINT_HUMIDITY, (double) Math.round(humidity));
+            point.put(WeatherContract.HourlyEntry.POINT_PRESSURE, roundMeasurement(pressure));
+            point.put(WeatherContract.HourlyEntry.POINT_WIND_SPEED,
+                    roundMeasurement(3 + random.nextDouble() * 4));
+            point.put(WeatherContract.HourlyEntry.POINT_DEGREES, (double) Math.round(degrees));
+            point.put(WeatherContract.HourlyEntry.POINT_WEATHER_ID, weatherId);
+            values[i] = point;
+        }
+        return values;
+    }
+
+    // To the precision the API reports and the store keeps
+    private static double roundMeasurement(double value) {
+        return Math.round(value * 100) / 100.0;
+    }
+
+    long insertTestLocation() {
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        return ContentUris.parseId(locationUri);
+    }
+
+    /*
+        Measures how long the forecast query takes while a large sync is being written.  With
+        write-ahead logging the reads run on their own connection and shouldn't have to wait for
+        the bulk insert's transaction to commit.
+     */
+    public void testReaderLatencyDuringBulkInsert() throws Exception {
+        long locationRowId = insertTestLocation();
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createWeatherValues(locationRowId, TestUtilities.TEST_DATE, 14));
+
+        final ContentValues[] bulkValues = createWeatherValues(locationRowId,
+                TestUtilities.TEST_DATE + 14 * MILLISECONDS_IN_A_DAY, 20000);
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI, bulkValues);
+            }
+        });
+
+        Uri forecastUri = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+        String[] projection = {WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP};
+
+        int reads = 0;
+        long totalNanos = 0;
+        long worstNanos = 0;
+        writer.start();
+        while (writer.isAlive()) {
+            long start = System.nanoTime();
+            Cursor cursor = mContext.getContentResolver().query(forecastUri, projection, null,
+                    null, WeatherEntry.COLUMN_DATE + " ASC LIMIT 14");
+            assertTrue("Error: Forecast query returned no rows during bulk insert",
+                    cursor.moveToFirst());
+            cursor.close();
+            long elapsed = System.nanoTime() - start;
+            totalNanos += elapsed;
+            worstNanos = Math.max(worstNanos, elapsed);
+            reads++;
+        }
+        writer.join();
+
+        assertTrue("Error: No reads completed while the bulk insert was running", reads > 0);
+        Log.d(LOG_TAG, "Reads during bulk insert: " + reads
+                + ", average " + (totalNanos / reads / 1000) + "us"
+                + ", worst " + (worstNanos / 1000) + "us");
+    }
+
+    /*
+        Query throughput for the forecast list's query shape, which the provider serves from its
+        cached SQL, against the same query with a projection the provider doesn't recognize and
+        so has to build from scratch.
+     */
+    public void testForecastQueryThroughput() {
+        long locationRowId = insertTestLocation();
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createWeatherValues(locationRowId, TestUtilities.TEST_DATE, 14));
+
+        Uri forecastUri = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, TestUtilities.TEST_DATE);
+        String sortOrder = WeatherEntry.COLUMN_DATE + " ASC";
+        String[] knownProjection = {WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP};
+        String[] adHocProjection = {WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP + " + 0"};
+
+        long knownNanos = timeQueries(forecastUri, knownProjection, sortOrder, QUERY_ITERATIONS);
+        long adHocNanos = timeQueries(forecastUri, adHocProjection, sortOrder, QUERY_ITERATIONS);
+
+        Log.d(LOG_TAG, "Forecast queries/s, cached shape: "
+                + (QUERY_ITERATIONS * 1000000000L / knownNanos)
+                + ", ad hoc shape: " + (QUERY_ITERATIONS * 1000000000L / adHocNanos));
+    }
+
+    static final int QUERY_ITERATIONS = 500;
+
+    long timeQueries(Uri uri, String[] projection, String sortOrder, int iterations) {
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            Cursor cursor = mContext.getContentResolver().query(uri, projection, null, null,
+                    sortOrder);
+            assertEquals("Error: Forecast query returned the wrong number of rows",
+                    14, cursor.getCount());
+            cursor.close();
+        }
+        return System.nanoTime() - start;
+    }
+
+    static final int CITY_COUNT = 20000;
+    static final String[] CITY_SEARCHES = {"l", "lo", "lon", "lond", "londo", "london"};
+
+    /*
+        Type-ahead latency of the city search over an index about the size of a country's worth
+        of cities, searching for each prefix as it would be typed.
+     */
+    public void testCitySearchLatency() {
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.delete(CityEntry.CONTENT_URI, null, null);
+        ContentValues[] cities = new ContentValues[CITY_COUNT];
+        for (int i = 0; i < CITY_COUNT; i++) {
+            // Names like "Lonbaf" share their first letters with many others, as real ones do
+            cities[i] = TestProvider.createCityValues(i + 1, "Lon" + Integer.toString(i, 26),
+                    "GB", i);
+        }
+        cities[0] = TestProvider.createCityValues(1, "London", "GB", CITY_COUNT);
+        resolver.bulkInsert(CityEntry.CONTENT_URI, cities);
+
+        long worstNanos = 0;
+        for (String search : CITY_SEARCHES) {
+            long start = System.nanoTime();
+            Cursor cursor = resolver.query(CityEntry.buildCitySearchUri(search, 10), null, null,
+                    null, null);
+            assertTrue("Error: City search found nothing for " + search, cursor.moveToFirst());
+            cursor.close();
+            long elapsed = System.nanoTime() - start;
+            worstNanos = Math.max(worstNanos, elapsed);
+            Log.d(LOG_TAG, "City search for \"" + search + "\": " + (elapsed / 1000) + "us");
+        }
+        Log.d(LOG_TAG, "Worst city search: " + (worstNanos / 1000) + "us");
+
+        resolver.delete(CityEntry.CONTENT_URI, null, null);
+    }
+
+    static final int NEAREST_ITERATIONS = 200;
+
+    /*
+        Nearest city lookups through the spatial index, against the same lookup done by sorting
+        every city by distance.
+     */
+    public void testNearestCityLatency() {
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.delete(CityEntry.CONTENT_URI, null, null);
+        // A grid of cities every tenth of a degree over a 20x10 degree patch of the world
+        ContentValues[] cities = new ContentValues[CITY_COUNT];
+        for (int i = 0; i < CITY_COUNT; i++) {
+            cities[i] = TestProvider.createCityValues(i + 1, "City" + i, "GB", i);
+            cities[i].put(CityEntry.COLUMN_COORD_LAT, 40 + (i / 200) * 0.1);
+            cities[i].put(CityEntry.COLUMN_COORD_LONG, -10 + (i % 200) * 0.1);
+        }
+        resolver.bulkInsert(CityEntry.CONTENT_URI, cities);
+
+        String[] projection = {CityEntry._ID};
+        long indexedNanos = 0;
+        long scanNanos = 0;
+        for (int i = 0; i < NEAREST_ITERATIONS; i++) {
+            double lat = 40 + (i % 100) * 0.1 + 0.03;
+            double lon = -10 + (i % 200) * 0.1 + 0.03;
+
+            long start = System.nanoTime();
+            Cursor indexed = resolver.query(
+                    WeatherContract.buildNearestUri(CityEntry.CONTENT_URI, lat, lon, 1),
+                    projection, null, null, null);
+            indexedNanos += System.nanoTime() - start;
+
+            start = System.nanoTime();
+            Cursor scanned = resolver.query(CityEntry.CONTENT_URI, projection, null, null,
+                    "(" + CityEntry.COLUMN_COORD_LAT + " - " + lat + ") * (" +
+                            CityEntry.COLUMN_COORD_LAT + " - " + lat + ") + (" +
+                            CityEntry.COLUMN_COORD_LONG + " - " + lon + ") * (" +
+                            CityEntry.COLUMN_COORD_LONG + " - " + lon + ") LIMIT 1");
+            scanNanos += System.nanoTime() - start;
+
+            assertTrue(indexed.moveToFirst() && scanned.moveToFirst());
+            assertEquals("Error: Indexed and scanned lookups found different cities",
+                    scanned.getLong(0), indexed.getLong(0));
+            indexed.close();
+            scanned.close();
+        }
+        Log.d(LOG_TAG, "Nearest city of " + CITY_COUNT + ", indexed: "
+                + (indexedNanos / NEAREST_ITERATIONS / 1000) + "us"
+                + ", full scan: " + (scanNanos / NEAREST_ITERATIONS / 1000) + "us");
+
+        resolver.delete(CityEntry.CONTENT_URI, null, null);
+    }
+
+    /*
+        What a two-pane screen reads when it opens: the forecast list, today's weather for the
+        detail pane, and the location.  Compares issuing them one by one with one batch.
+     */
+    public void testQueryBatchLatency() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long locationRowId = insertTestLocation();
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createWeatherValues(locationRowId,
+                        WeatherContract.normalizeDate(System.currentTimeMillis()), 14));
+
+        Uri forecastUri = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, System.currentTimeMillis());
+        Uri todayUri = WeatherEntry.buildWeatherLocationToday(TestUtilities.TEST_LOCATION);
+        String[] projection = {WeatherEntry.COLUMN_DATE, WeatherEntry.COLUMN_MAX_TEMP};
+        String sortOrder = WeatherEntry.COLUMN_DATE + " ASC";
+        Bundle[] queries = {
+                WeatherContract.buildQuery(forecastUri, projection, null, null, sortOrder),
+                WeatherContract.buildQuery(todayUri, projection, null, null, null),
+                WeatherContract.buildQuery(LocationEntry.CONTENT_URI, null, null, null, null)
+        };
+
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERY_ITERATIONS; i++) {
+            Cursor[] cursors = {
+                    mContext.getContentResolver().query(forecastUri, projection, null, null,
+                            sortOrder),
+                    mContext.getContentResolver().query(todayUri, projection, null, null, null),
+                    mContext.getContentResolver().query(LocationEntry.CONTENT_URI, null, null,
+                            null, null)
+            };
+            for (Cursor cursor : cursors) {
+                // Reading the rows is part of the cost; separate cursors fill their windows lazily
+                assertTrue(cursor.moveToLast());
+                cursor.close();
+            }
+        }
+        long separateNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < QUERY_ITERATIONS; i++) {
+            for (Cursor cursor : WeatherContract.queryBatch(mContext.getContentResolver(),
+                    queries)) {
+                assertTrue(cursor.moveToLast());
+                cursor.close();
+            }
+        }
+        long batchNanos = System.nanoTime() - start;
+
+        Log.d(LOG_TAG, "Two-pane queries, separate: "
+                + (separateNanos / QUERY_ITERATIONS / 1000) + "us"
+                + ", batched: " + (batchNanos / QUERY_ITERATIONS / 1000) + "us");
+    }
+
+    static final int STORAGE_ROWS = 36500;
+    static final int SCAN_ITERATIONS = 20;
+
+    static final String[] MEASUREMENT_COLUMNS = {
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES
+    };
+
+    /*
+        File size and full-scan time of a hundred location-years of weather with the
+        measurements stored as REAL, as they used to be, against the scaled integers the
+        provider stores now.  Both databases hold the same values, and decode to the same sums.
+     */
+    public void testMeasurementStorage() {
+        double[] real = measureStorage("storage_real.db", "REAL", 0);
+        double[] scaled = measureStorage("storage_scaled.db", "INTEGER",
+                WeatherEntry.MEASUREMENT_SCALE);
+
+        assertEquals("Error: Scaled measurements didn't decode to the stored values",
+                real[2], scaled[2], 0.01);
+        assertTrue("Error: Scaled measurements took more space than REAL ones",
+                scaled[0] < real[0]);
+        Log.d(LOG_TAG, "Measurement storage, REAL: " + (long) (real[0] / 1024) + "KB, scan "
+                + (long) (real[1] / SCAN_ITERATIONS / 1000) + "us"
+                + "; scaled INTEGER: " + (long) (scaled[0] / 1024) + "KB, scan "
+                + (long) (scaled[1] / SCAN_ITERATIONS / 1000) + "us");
+    }
+
+    // Fills a scratch database with STORAGE_ROWS rows of weather measurements in columns of the
+    // given type, scaled by scale unless it's 0.  Returns the file size, the time taken by
+    // SCAN_ITERATIONS scans summing every measurement, and that sum.
+    private double[] measureStorage(String name, String type, int scale) {
+        mContext.deleteDatabase(name);
+        File file = mContext.getDatabasePath(name);
+        SQLiteDatabase db = mContext.openOrCreateDatabase(name, Context.MODE_PRIVATE, null);
+        try {
+            StringBuilder create = new StringBuilder("CREATE TABLE ")
+                    .append(WeatherEntry.TABLE_NAME).append(" (")
+                    .append(WeatherEntry.COLUMN_LOC_KEY).append(" INTEGER NOT NULL, ")
+                    .append(WeatherEntry.COLUMN_DATE).append(" INTEGER NOT NULL");
+            StringBuilder insertSql = new StringBuilder("INSERT INTO ")
+                    .append(WeatherEntry.TABLE_NAME).append(" VALUES (?,?");
+            StringBuilder sum = new StringBuilder("SELECT (");
+            for (int i = 0; i < MEASUREMENT_COLUMNS.length; i++) {
+                create.append(", ").append(MEASUREMENT_COLUMNS[i]).append(' ').append(type)
+                        .append(" NOT NULL");
+                insertSql.append(",?");
+                sum.append(i == 0 ? "" : " + ").append("SUM(").append(MEASUREMENT_COLUMNS[i])
+                        .append(')');
+            }
+            db.execSQL(create.append(')').toString());
+            sum.append(')').append(scale == 0 ? "" : " / " + scale + ".0")
+                    .append(" FROM ").append(WeatherEntry.TABLE_NAME);
+
+            // The same values every run, with no more than the two decimal places the API sends
+            Random random = new Random(STORAGE_ROWS);
+            SQLiteStatement insert = db.compileStatement(insertSql.append(')').toString());
+            db.beginTransaction();
+            try {
+                for (int row = 0; row < STORAGE_ROWS; row++) {
+                    double min = -20 + random.nextInt(4000) / 100.0;
+                    double[] measurements = {
+                            min,
+                            min + random.nextInt(1500) / 100.0,
+                            random.nextInt(10001) / 100.0,
+                            950 + random.nextInt(10000) / 100.0,
+                            random.nextInt(3000) / 100.0,
+                            random.nextInt(36000) / 100.0
+                    };
+                    insert.bindLong(1, row % 100);
+                    insert.bindLong(2, TestUtilities.TEST_DATE
+                            + (row / 100) * MILLISECONDS_IN_A_DAY);
+                    for (int i = 0; i < measurements.length; i++) {
+                        if (scale == 0) {
+                            insert.bindDouble(i + 3, measurements[i]);
+                        } else {
+                            insert.bindLong(i + 3, Math.round(measurements[i] * scale));
+                        }
+                    }
+                    insert.executeInsert();
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            insert.close();
+
+            double total = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < SCAN_ITERATIONS; i++) {
+                Cursor cursor = db.rawQuery(sum.toString(), null);
+                assertTrue(cursor.moveToFirst());
+                total = cursor.getDouble(0);
+                cursor.close();
+            }
+            long scanNanos = System.nanoTime() - start;
+            return new double[]{file.length(), scanNanos, total};
+        } finally {
+            db.close();
+            mContext.deleteDatabase(name);
+        }
+    }
+
+    /*
+        How long the today widget, Muzei, Wear and the notification take to get today's weather
+        from the forecast snapshot, against asking the provider for it.
+     */
+    public void testSnapshotReadLatency() {
+        long locationRowId = insertTestLocation();
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createWeatherValues(locationRowId,
+                        WeatherContract.normalizeDate(System.currentTimeMillis()), 14));
+        ForecastSnapshot.publish(mContext, TestUtilities.TEST_LOCATION);
+
+        ForecastSnapshot.Day snapshot = new ForecastSnapshot.Day();
+        ForecastSnapshot.Day provider = new ForecastSnapshot.Day();
+        assertTrue("Error: No snapshot was published",
+                ForecastSnapshot.readToday(mContext, TestUtilities.TEST_LOCATION, snapshot));
+        assertTrue(ForecastSnapshot.queryToday(mContext, TestUtilities.TEST_LOCATION, provider));
+        assertEquals("Error: Snapshot and provider disagree on today",
+                provider.date, snapshot.date);
+        assertEquals(provider.maxTemp, snapshot.maxTemp);
+        assertEquals(provider.shortDesc, snapshot.shortDesc);
+
+        long start = System.nanoTime();
+        for (int i = 0; i < QUERY_ITERATIONS; i++) {
+            ForecastSnapshot.queryToday(mContext, TestUtilities.TEST_LOCATION, provider);
+        }
+        long providerNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < QUERY_ITERATIONS; i++) {
+            ForecastSnapshot.readToday(mContext, TestUtilities.TEST_LOCATION, snapshot);
+        }
+        long snapshotNanos = System.nanoTime() - start;
+
+        ForecastSnapshot.getFile(mContext, TestUtilities.TEST_LOCATION).delete();
+        Log.d(LOG_TAG, "Today's weather, provider: "
+                + (providerNanos / QUERY_ITERATIONS / 1000) + "us"
+                + ", snapshot: " + (snapshotNanos / QUERY_ITERATIONS) + "ns");
+    }
+
+    static final int COLD_START_RUNS = 10;
+
+    /*
+        The forecast list's first query of a newly created provider, with and without the
+        warm-up it starts in onCreate having finished first.  Each provider opens the database
+        anew, but the file itself is probably still in the OS page cache, so this is the open,
+        schema read, statement compiles and display rendering rather than disk reads.  The times
+        are only logged, since they're too close to compare reliably, but the query after a
+        warm-up must be served from the result the warm-up left in the cache.
+     */
+    public void testColdStartQuery() {
+        long locationRowId = insertTestLocation();
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                createWeatherValues(locationRowId,
+                        WeatherContract.normalizeDate(System.currentTimeMillis()), 14));
+        Uri forecastUri = WeatherEntry.buildWeatherLocationWithStartDate(
+                TestUtilities.TEST_LOCATION, System.currentTimeMillis());
+
+        // The first provider renders the display rows, which every later one finds done
+        firstQueryNanos(new WeatherProvider(false), forecastUri, false);
+        long coldNanos = 0;
+        long warmNanos = 0;
+        for (int i = 0; i < COLD_START_RUNS; i++) {
+            coldNanos += firstQueryNanos(new WeatherProvider(false), forecastUri, false);
+            warmNanos += firstQueryNanos(new WeatherProvider(false), forecastUri, true);
+        }
+        Log.d(LOG_TAG, "First forecast query, cold: "
+                + (coldNanos / COLD_START_RUNS / 1000) + "us"
+                + ", after warm-up: " + (warmNanos / COLD_START_RUNS / 1000) + "us");
+    }
+
+    private long firstQueryNanos(WeatherProvider provider, Uri forecastUri, boolean warmUp) {
+        provider.attachInfo(mContext, null);
+        try {
+            if (warmUp) {
+                provider.warmUp(TestUtilities.TEST_LOCATION);
+            }
+            int hits = provider.getQueryCache().getHitCount();
+            long start = System.nanoTime();
+            Cursor cursor = provider.query(forecastUri, ForecastRepository.FORECAST_COLUMNS,
+                    null, null, WeatherEntry.COLUMN_DATE + " ASC");
+            assertEquals(14, cursor.getCount());
+            cursor.close();
+            long nanos = System.nanoTime() - start;
+            assertEquals("Error: The first query wasn't served from the warm-up's result",
+                    warmUp ? hits + 1 : hits, provider.getQueryCache().getHitCount());
+            return nanos;
+        } finally {
+            provider.shutdown();
+        }
+    }
+
+    static final int BACKUP_HISTORY_DAYS = 3650;
+
+    /*
+        Export and import rates of a backup holding ten years of one location's weather and a
+        country's worth of cities.  The backup goes through a file rather than memory, as a real
+        one of hundreds of megabytes would have to.
+     */
+    public void testBackupThroughput() throws Exception {
+        ContentResolver resolver = mContext.getContentResolver();
+        long locationRowId = insertTestLocation();
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        resolver.bulkInsert(WeatherEntry.CONTENT_URI, createWeatherValues(locationRowId,
+                today - BACKUP_HISTORY_DAYS * MILLISECONDS_IN_A_DAY, BACKUP_HISTORY_DAYS));
+        resolver.delete(CityEntry.CONTENT_URI, null, null);
+        ContentValues[] cities = new ContentValues[CITY_COUNT];
+        for (int i = 0; i < CITY_COUNT; i++) {
+            cities[i] = TestProvider.createCityValues(i + 1, "City" + i, "GB", i);
+        }
+        resolver.bulkInsert(CityEntry.CONTENT_URI, cities);
+
+        File file = new File(mContext.getCacheDir(), "backup.ndjson");
+        long start = System.nanoTime();
+        InputStream in = resolver.openInputStream(WeatherContract.BackupEntry.CONTENT_URI);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+        } finally {
+            in.close();
+            out.close();
+        }
+        long exportNanos = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        InputStream backup = new FileInputStream(file);
+        try {
+            TestProvider.writeBackup(resolver, backup);
+        } finally {
+            backup.close();
+        }
+        long importNanos = System.nanoTime() - start;
+
+        Cursor cursor = resolver.query(CityEntry.CONTENT_URI, new String[]{CityEntry._ID}, null,
+                null, null);
+        assertEquals("Error: Not every city was imported", CITY_COUNT, cursor.getCount());
+        cursor.close();
+        long kilobytes = file.length() / 1024;
+        int rows = BACKUP_HISTORY_DAYS + CITY_COUNT;
+        Log.d(LOG_TAG, "Backup of " + rows + " rows, " + kilobytes + "KB, exported in "
+                + (exportNanos / 1000000) + "ms (" + (kilobytes * 1000000000L / exportNanos)
+                + "KB/s), imported in " + (importNanos / 1000000) + "ms ("
+                + (rows * 1000000000L / importNanos) + " rows/s)");
+
+        file.delete();
+        resolver.delete(CityEntry.CONTENT_URI, null, null);
+    }
+
+    static final int HOURLY_HISTORY_DAYS = 365;
+
+    private static long getDatabaseBytes(SQLiteDatabase db) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA page_count", null)
+                * DatabaseUtils.longForQuery(db, "PRAGMA page_size", null);
+    }
+
+    /*
+        Space a year of one location's hourly points takes in the hourly store, against a row per
+        point in the weather table's stored form, each measured as the pages of a database
+        holding nothing else.
+     */
+    public void testHourlyCompressionRatio() {
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.delete(WeatherContract.HourlyEntry.CONTENT_URI, null, null);
+        long locationRowId = insertTestLocation();
+        int points = HOURLY_HISTORY_DAYS * 24;
+        long start = TimeSeriesBlock.getBlockDate(System.currentTimeMillis())
+                - HOURLY_HISTORY_DAYS * MILLISECONDS_IN_A_DAY;
+        ContentValues[] values = createHourlyValues(locationRowId, start, points,
+                MILLISECONDS_IN_AN_HOUR);
+        resolver.bulkInsert(WeatherContract.HourlyEntry.CONTENT_URI, values);
+
+        SQLiteDatabase blocks = SQLiteDatabase.create(null);
+        SQLiteDatabase rows = SQLiteDatabase.create(null);
+        try {
+            blocks.execSQL("CREATE TABLE hourly (location_id INTEGER NOT NULL, date INTEGER " +
+                    "NOT NULL, count INTEGER NOT NULL, block BLOB NOT NULL, " +
+                    "PRIMARY KEY (location_id, date))");
+            Cursor cursor = resolver.query(WeatherContract.HourlyEntry.CONTENT_URI,
+                    new String[]{WeatherContract.HourlyEntry.COLUMN_LOC_KEY,
+                            WeatherContract.HourlyEntry.COLUMN_DATE,
+                            WeatherContract.HourlyEntry.COLUMN_COUNT,
+                            WeatherContract.HourlyEntry.COLUMN_BLOCK}, null, null, null);
+            assertEquals("Error: Expected a block a day", HOURLY_HISTORY_DAYS, cursor.getCount());
+            long blockBytes = 0;
+            blocks.beginTransaction();
+            while (cursor.moveToNext()) {
+                ContentValues block = new ContentValues();
+                block.put(WeatherContract.HourlyEntry.COLUMN_LOC_KEY, cursor.getLong(0));
+                block.put(WeatherContract.HourlyEntry.COLUMN_DATE, cursor.getLong(1));
+                block.put(WeatherContract.HourlyEntry.COLUMN_COUNT, cursor.getInt(2));
+                block.put(WeatherContract.HourlyEntry.COLUMN_BLOCK, cursor.getBlob(3));
+                blockBytes += cursor.getBlob(3).length;
+                blocks.insert("hourly", null, block);
+            }
+            blocks.setTransactionSuccessful();
+            blocks.endTransaction();
+            cursor.close();
+
+            // The weather table's layout, down to the index every location query goes through
+            rows.execSQL("CREATE TABLE hourly_rows (_id INTEGER PRIMARY KEY AUTOINCREMENT, " +
+                    "location_id INTEGER NOT NULL, time INTEGER NOT NULL, " +
+                    "weather_id INTEGER NOT NULL, temp INTEGER NOT NULL, " +
+                    "humidity INTEGER NOT NULL, pressure INTEGER NOT NULL, " +
+                    "wind INTEGER NOT NULL, degrees INTEGER NOT NULL, " +
+                    "UNIQUE (time, location_id) ON CONFLICT REPLACE)");
+            rows.execSQL("CREATE INDEX hourly_rows_location_time ON hourly_rows " +
+                    "(location_id, time)");
+            rows.beginTransaction();
+            for (ContentValues point : values) {
+                ContentValues row = new ContentValues(point);
+                for (String column : new String[]{WeatherContract.HourlyEntry.POINT_TEMP,
+                        WeatherContract.HourlyEntry.POINT_HUMIDITY,
+                        WeatherContract.HourlyEntry.POINT_PRESSURE,
+                        WeatherContract.HourlyEntry.POINT_WIND_SPEED,
+                        WeatherContract.HourlyEntry.POINT_DEGREES}) {
+                    row.put(column, WeatherEntry.encodeMeasurement(row.getAsDouble(column)));
+                }
+                rows.insert("hourly_rows", null, row);
+            }
+            rows.setTransactionSuccessful();
+            rows.endTransaction();
+
+            long blockDatabaseBytes = getDatabaseBytes(blocks);
+            long rowDatabaseBytes = getDatabaseBytes(rows);
+            Log.d(LOG_TAG, points + " hourly points: " + blockBytes + " bytes of blocks ("
+                    + (blockBytes * 100 / points / 100.0) + " a point), " + blockDatabaseBytes
+                    + " bytes stored, against " + rowDatabaseBytes + " bytes as rows, "
+                    + (rowDatabaseBytes * 10 / blockDatabaseBytes / 10.0) + "x");
+            assertTrue("Error: Blocks take more space than rows",
+                    blockDatabaseBytes < rowDatabaseBytes);
+        } finally {
+            blocks.close();
+            rows.close();
+        }
+        resolver.delete(WeatherContract.HourlyEntry.CONTENT_URI, null, null);
+    }
+
+    /*
+        How fast blocks decode, on their own and through a provider query of a range of them,
+        for a year of hourly points.
+     */
+    public void testHourlyDecodeThroughput() {
+        ContentResolver resolver = mContext.getContentResolver();
+        resolver.delete(WeatherContract.HourlyEntry.CONTENT_URI, null, null);
+        long locationRowId = insertTestLocation();
+        int points = HOURLY_HISTORY_DAYS * 24;
+        long start = TimeSeriesBlock.getBlockDate(System.currentTimeMillis())
+                - HOURLY_HISTORY_DAYS * MILLISECONDS_IN_A_DAY;
+        resolver.bulkInsert(WeatherContract.HourlyEntry.CONTENT_URI,
+                createHourlyValues(locationRowId, start, points, MILLISECONDS_IN_AN_HOUR));
+
+        Cursor cursor = resolver.query(WeatherContract.HourlyEntry.CONTENT_URI,
+                new String[]{WeatherContract.HourlyEntry.COLUMN_DATE,
+                        WeatherContract.HourlyEntry.COLUMN_BLOCK}, null, null, null);
+        long[] dates = new long[cursor.getCount()];
+        byte[][] blocks = new byte[cursor.getCount()][];
+        for (int i = 0; cursor.moveToNext(); i++) {
+            dates[i] = cursor.getLong(0);
+            blocks[i] = cursor.getBlob(1);
+        }
+        cursor.close();
+
+        long decodeStart = System.nanoTime();
+        long checksum = 0;
+        int decoded = 0;
+        for (int i = 0; i < blocks.length; i++) {
+            TimeSeriesBlock.Decoder decoder = new TimeSeriesBlock.Decoder(blocks[i], dates[i]);
+            while (decoder.next()) {
+                checksum += decoder.getValue(TimeSeriesBlock.VALUE_TEMP);
+                decoded++;
+            }
+        }
+        long decodeNanos = System.nanoTime() - decodeStart;
+        assertEquals("Error: Not every point was decoded", points, decoded);
+
+        Uri rangeUri = WeatherContract.HourlyEntry.buildHourlyLocationWithRange(
+                TestUtilities.TEST_LOCATION, start, start + points * MILLISECONDS_IN_AN_HOUR);
+        long queryStart = System.nanoTime();
+        cursor = resolver.query(rangeUri, null, null, null, null);
+        int queried = cursor.getCount();
+        cursor.close();
+        long queryNanos = System.nanoTime() - queryStart;
+        assertEquals("Error: Range query missed points", points, queried);
+
+        Log.d(LOG_TAG, "Decoded " + points + " hourly points in " + (decodeNanos / 1000)
+                + "us (" + (points * 1000000000L / decodeNanos) + " points/s, checksum "
+                + checksum + "), range query of them in " + (queryNanos / 1000) + "us ("
+                + (points * 1000000000L / queryNanos) + " points/s)");
+        resolver.delete(WeatherContract.HourlyEntry.CONTENT_URI, null, null);
+    }
+}
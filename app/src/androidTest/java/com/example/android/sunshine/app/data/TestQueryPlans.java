@@ -0,0 +1,394 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentProviderClient;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.net.Uri;
+import android.os.Build;
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.CityEntry;
+import com.example.android.sunshine.app.data.WeatherContract.ForecastHistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.util.regex.Pattern;
+
+/*
+    Checks that each of the provider's routes, queried the way the app queries them, gets a plan
+    that uses the index meant for it, so that a change to a projection or selection can't quietly
+    turn a lookup into a scan of the whole table.  The SQL checked is the SQL the provider really
+    ran, captured by its cursor factory.
+ */
+public class TestQueryPlans extends AndroidTestCase {
+
+    public static final String LOG_TAG = TestQueryPlans.class.getSimpleName();
+
+    static final long MILLISECONDS_IN_A_DAY = 1000 * 60 * 60 * 24;
+
+    // How a lookup of the weather table through its (location_id, date) index is planned
+    private static final String WEATHER_LOCATION_INDEX =
+            " USING (COVERING )?INDEX " + WeatherEntry.INDEX_LOCATION_DATE;
+    private static final String ROWID_LOOKUP = " USING INTEGER PRIMARY KEY";
+
+    private ContentProviderClient mClient;
+    private WeatherProvider mProvider;
+    private SQLiteDatabase mDb;
+    private long mToday;
+    private long mLocationRowId;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mContext.getContentResolver().delete(WeatherEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(LocationEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(ForecastHistoryEntry.CONTENT_URI, null, null);
+        mContext.getContentResolver().delete(CityEntry.CONTENT_URI, null, null);
+
+        mClient = mContext.getContentResolver().acquireContentProviderClient(
+                WeatherContract.CONTENT_AUTHORITY);
+        mProvider = (WeatherProvider) mClient.getLocalContentProvider();
+        mDb = new WeatherDbHelper(mContext).getReadableDatabase();
+
+        Uri locationUri = mContext.getContentResolver().insert(LocationEntry.CONTENT_URI,
+                TestUtilities.createNorthPoleLocationValues());
+        mLocationRowId = ContentUris.parseId(locationUri);
+        mToday = WeatherContract.normalizeDate(System.currentTimeMillis());
+        mContext.getContentResolver().bulkInsert(WeatherEntry.CONTENT_URI,
+                TestProviderPerformance.createWeatherValues(mLocationRowId, mToday, 14));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDb.close();
+        mClient.release();
+        super.tearDown();
+    }
+
+    // Runs the query through the provider and returns SQLite's plan for the SQL it ran.
+    String planOf(Uri uri, String[] projection, String selection, String[] selectionArgs,
+                  String sortOrder) {
+        Cursor cursor = mContext.getContentResolver().query(uri, projection, selection,
+                selectionArgs, sortOrder);
+        cursor.close();
+        String sql = mProvider.getLastQuerySql();
+        assertNotNull("Error: The provider didn't run any SQL for " + uri, sql);
+        return explain(sql);
+    }
+
+    // One step of the plan per line, e.g. "SEARCH TABLE weather USING INDEX ..."
+    String explain(String sql) {
+        Cursor cursor = mDb.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+        int detail = cursor.getColumnIndex("detail");
+        StringBuilder plan = new StringBuilder();
+        while (cursor.moveToNext()) {
+            plan.append(cursor.getString(detail)).append('\n');
+        }
+        cursor.close();
+        return plan.toString();
+    }
+
+    /*
+        Fails unless the plan reads table (or its alias) through access, and never scans the
+        whole of it.  Newer SQLite leaves "TABLE" out of the plan and names aliased tables by
+        their alias alone, so both forms are accepted.
+     */
+    static void assertPlanUses(String route, String plan, String table, String access) {
+        Pattern uses = Pattern.compile("(SEARCH|SCAN) (TABLE )?" + table + access);
+        assertTrue("Error: " + route + " doesn't read " + table + " through" + access + ":\n"
+                + plan, uses.matcher(plan).find());
+        Pattern fullScan = Pattern.compile("SCAN (TABLE )?" + table + "( \\(|\\n)");
+        assertFalse("Error: " + route + " scans the whole of " + table + ":\n" + plan,
+                fullScan.matcher(plan).find());
+    }
+
+    // ForecastFragment's list, and the Wear and Muzei forecasts: today onwards, by date.
+    public void testForecastListPlan() {
+        String plan = planOf(
+                WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION, mToday),
+                null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertPlanUses("weather/*?date=", plan, WeatherEntry.TABLE_NAME, WEATHER_LOCATION_INDEX);
+    }
+
+    // DetailFragment's one day, and the today route used by the widgets and the notification.
+    public void testSingleDayPlans() {
+        String plan = planOf(
+                WeatherEntry.buildWeatherLocationWithDate(TestUtilities.TEST_LOCATION, mToday),
+                null, null, null, null);
+        assertPlanUses("weather/*/#", plan, WeatherEntry.TABLE_NAME, WEATHER_LOCATION_INDEX);
+
+        plan = planOf(WeatherEntry.buildWeatherLocationToday(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        assertPlanUses("weather/*/today", plan, WeatherEntry.TABLE_NAME, WEATHER_LOCATION_INDEX);
+    }
+
+    // The routes by location row id, and the detail widget's and paging's limited queries.
+    public void testLocationIdPlans() {
+        String plan = planOf(WeatherEntry.buildWeatherLocationId(mLocationRowId),
+                null, null, null, null);
+        assertPlanUses("weather/id/#", plan, WeatherEntry.TABLE_NAME, WEATHER_LOCATION_INDEX);
+
+        plan = planOf(WeatherEntry.buildWeatherLocationIdWithDate(mLocationRowId, mToday),
+                null, null, null, null);
+        assertPlanUses("weather/id/#/#", plan, WeatherEntry.TABLE_NAME, WEATHER_LOCATION_INDEX);
+
+        plan = planOf(WeatherEntry.buildWeatherWithLimit(
+                WeatherEntry.buildWeatherLocationWithStartDate(TestUtilities.TEST_LOCATION,
+                        mToday), 14), null, null, null, WeatherEntry.COLUMN_DATE + " ASC");
+        assertPlanUses("weather/*?limit=", plan, WeatherEntry.TABLE_NAME, WEATHER_LOCATION_INDEX);
+
+        plan = planOf(WeatherEntry.buildWeatherPageAfter(
+                WeatherEntry.buildWeatherLocationId(mLocationRowId), mToday, 7),
+                null, null, null, null);
+        assertPlanUses("weather/id/#?after_date=", plan, WeatherEntry.TABLE_NAME,
+                WEATHER_LOCATION_INDEX);
+    }
+
+    public void testStatsPlan() {
+        String plan = planOf(WeatherEntry.buildWeatherStats(mToday,
+                mToday + 6 * MILLISECONDS_IN_A_DAY, mLocationRowId), null, null, null, null);
+        assertPlanUses("weather/stats", plan, WeatherEntry.TABLE_NAME, WEATHER_LOCATION_INDEX);
+    }
+
+    // The sync adapter's lookup of a location by its setting, and the provider's own.
+    public void testLocationLookupPlans() {
+        String settingIndex = " USING (COVERING )?INDEX sqlite_autoindex_" +
+                LocationEntry.TABLE_NAME + "_1";
+        String plan = planOf(LocationEntry.CONTENT_URI, new String[]{LocationEntry._ID},
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?",
+                new String[]{TestUtilities.TEST_LOCATION}, null);
+        assertPlanUses("location", plan, LocationEntry.TABLE_NAME, settingIndex);
+
+        plan = explain("SELECT " + LocationEntry._ID + " FROM " + LocationEntry.TABLE_NAME +
+                " WHERE " + LocationEntry.TABLE_NAME + "." +
+                LocationEntry.COLUMN_LOCATION_SETTING + " = ?");
+        assertPlanUses("location id lookup", plan, LocationEntry.TABLE_NAME, settingIndex);
+    }
+
+    // Sync deletes the days before today for every location at once, so it leans on the
+    // UNIQUE (date, location_id) index instead of the per-location one.
+    public void testSyncPruningPlan() {
+        String plan = explain("DELETE FROM " + WeatherEntry.TABLE_NAME +
+                " WHERE " + WeatherEntry.COLUMN_DATE + " <= ?");
+        assertPlanUses("sync pruning", plan, WeatherEntry.TABLE_NAME,
+                " USING (COVERING )?INDEX sqlite_autoindex_" + WeatherEntry.TABLE_NAME + "_1");
+    }
+
+    public void testHistoryAccuracyPlan() {
+        String plan = planOf(ForecastHistoryEntry.buildAccuracyUri(TestUtilities.TEST_LOCATION),
+                null, null, null, null);
+        String primaryKey = " USING (COVERING )?INDEX sqlite_autoindex_" +
+                ForecastHistoryEntry.TABLE_NAME + "_1";
+        assertPlanUses("history/*/accuracy", plan,
+                "(" + ForecastHistoryEntry.TABLE_NAME + " AS )?forecast", primaryKey);
+        assertPlanUses("history/*/accuracy", plan,
+                "(" + ForecastHistoryEntry.TABLE_NAME + " AS )?actual", primaryKey);
+    }
+
+    public void testCityPlans() {
+        mContext.getContentResolver().bulkInsert(CityEntry.CONTENT_URI, new ContentValues[]{
+                TestProvider.createCityValues(2643743, "London", "GB", 7556900)});
+
+        String plan = planOf(CityEntry.buildCitySearchUri("lond", 10), null, null, null, null);
+        assertPlanUses("city/search", plan, CityEntry.FTS_TABLE_NAME, " VIRTUAL TABLE INDEX");
+        assertPlanUses("city/search", plan, CityEntry.TABLE_NAME, ROWID_LOOKUP);
+
+        plan = planOf(WeatherContract.buildNearestUri(CityEntry.CONTENT_URI, 51.5, -0.1, 1),
+                new String[]{CityEntry._ID}, null, null, null);
+        assertPlanUses("city/nearest", plan, CityEntry.SPATIAL_INDEX_NAME, spatialAccess(
+                CityEntry.SPATIAL_INDEX_NAME));
+        assertPlanUses("city/nearest", plan, CityEntry.TABLE_NAME, ROWID_LOOKUP);
+    }
+
+    public void testLocationSpatialPlans() {
+        String plan = planOf(WeatherContract.buildBoundsUri(LocationEntry.CONTENT_URI,
+                60, -150, 70, -140), new String[]{LocationEntry._ID}, null, null, null);
+        assertPlanUses("location/bounds", plan, LocationEntry.SPATIAL_INDEX_NAME, spatialAccess(
+                LocationEntry.SPATIAL_INDEX_NAME));
+        assertPlanUses("location/bounds", plan, LocationEntry.TABLE_NAME, ROWID_LOOKUP);
+    }
+
+    // An R*Tree, or the plain table that stands in for it without the module.
+    private static String spatialAccess(String index) {
+        return "( VIRTUAL TABLE INDEX| USING (COVERING )?INDEX " + index + "_lat)";
+    }
+
+    static final int SYNTHETIC_LOCATIONS = 1000;
+    static final int SYNTHETIC_DAYS = 2 * 365;
+    static final int SYNTHETIC_HISTORY_DAYS = 60;
+    static final int SYNTHETIC_CITIES = 20000;
+    static final int ROUTE_ITERATIONS = 50;
+    // Generous enough for a slow device; a route only gets near it by scanning the table
+    static final long MAX_ROUTE_MILLIS = 50;
+
+    /*
+        Times each route whose plan is checked above against two years of weather and two months
+        of forecast history for a thousand locations, and twenty thousand cities.  Every
+        iteration asks about a different location, so the provider's result cache doesn't hide
+        the cost of the query.
+     */
+    public void testRouteLatencyOnLargeDatabase() {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        long firstDay = mToday - (SYNTHETIC_DAYS - 14) * MILLISECONDS_IN_A_DAY;
+        long[] locationIds = new long[SYNTHETIC_LOCATIONS];
+        SQLiteDatabase db = new WeatherDbHelper(mContext).getWritableDatabase();
+        db.beginTransaction();
+        try {
+            SQLiteStatement insertLocation = db.compileStatement("INSERT INTO " +
+                    LocationEntry.TABLE_NAME + " (" + LocationEntry.COLUMN_LOCATION_SETTING +
+                    ", " + LocationEntry.COLUMN_CITY_NAME + ", " + LocationEntry.COLUMN_COORD_LAT +
+                    ", " + LocationEntry.COLUMN_COORD_LONG + ") VALUES (?, ?, ?, ?)");
+            SQLiteStatement insertWeather = db.compileStatement("INSERT INTO " +
+                    WeatherEntry.TABLE_NAME + " (" + WeatherEntry.COLUMN_LOC_KEY + ", " +
+                    WeatherEntry.COLUMN_DATE + ", " + WeatherEntry.COLUMN_SHORT_DESC + ", " +
+                    WeatherEntry.COLUMN_WEATHER_ID + ", " + WeatherEntry.COLUMN_MIN_TEMP + ", " +
+                    WeatherEntry.COLUMN_MAX_TEMP + ", " + WeatherEntry.COLUMN_HUMIDITY + ", " +
+                    WeatherEntry.COLUMN_PRESSURE + ", " + WeatherEntry.COLUMN_WIND_SPEED + ", " +
+                    WeatherEntry.COLUMN_DEGREES + ") VALUES (?, ?, 'Clear', 800, ?, ?, 50, 1010, 5, 180)");
+            // A forecast made the day before and the day's own, for each of the last few weeks
+            SQLiteStatement insertHistory = db.compileStatement("INSERT INTO " +
+                    ForecastHistoryEntry.TABLE_NAME + " (" + ForecastHistoryEntry.COLUMN_LOC_KEY +
+                    ", " + ForecastHistoryEntry.COLUMN_DATE + ", " +
+                    ForecastHistoryEntry.COLUMN_HORIZON + ", " +
+                    ForecastHistoryEntry.COLUMN_WEATHER_ID + ", " +
+                    ForecastHistoryEntry.COLUMN_MIN_TEMP + ", " +
+                    ForecastHistoryEntry.COLUMN_MAX_TEMP + ") VALUES (?, ?, ?, 800, ?, ?)");
+            for (int location = 0; location < SYNTHETIC_LOCATIONS; location++) {
+                insertLocation.bindString(1, "synthetic" + location);
+                insertLocation.bindString(2, "Synthetic " + location);
+                insertLocation.bindDouble(3, location % 180 - 90);
+                insertLocation.bindDouble(4, location % 360 - 180);
+                locationIds[location] = insertLocation.executeInsert();
+                for (int day = 0; day < SYNTHETIC_DAYS; day++) {
+                    insertWeather.bindLong(1, locationIds[location]);
+                    insertWeather.bindLong(2, firstDay + day * MILLISECONDS_IN_A_DAY);
+                    insertWeather.bindDouble(3, day % 20);
+                    insertWeather.bindDouble(4, day % 20 + 10);
+                    insertWeather.executeInsert();
+                }
+                for (int day = 0; day < SYNTHETIC_HISTORY_DAYS; day++) {
+                    for (int horizon = 0; horizon < 2; horizon++) {
+                        insertHistory.bindLong(1, locationIds[location]);
+                        insertHistory.bindLong(2, mToday - day * MILLISECONDS_IN_A_DAY);
+                        insertHistory.bindLong(3, horizon);
+                        insertHistory.bindLong(4, (day % 20 + horizon) *
+                                WeatherEntry.MEASUREMENT_SCALE);
+                        insertHistory.bindLong(5, (day % 20 + 10) *
+                                WeatherEntry.MEASUREMENT_SCALE);
+                        insertHistory.executeInsert();
+                    }
+                }
+            }
+            insertLocation.close();
+            insertWeather.close();
+            insertHistory.close();
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            db.close();
+        }
+        // Through the provider, which fills the search index as well
+        ContentValues[] cities = new ContentValues[SYNTHETIC_CITIES];
+        for (int city = 0; city < SYNTHETIC_CITIES; city++) {
+            ContentValues values = TestProvider.createCityValues(city + 1, "Town" + city, "XX",
+                    city);
+            values.put(CityEntry.COLUMN_COORD_LAT, (double) (city % 170 - 85));
+            values.put(CityEntry.COLUMN_COORD_LONG, (double) (city * 7 % 360 - 180));
+            cities[city] = values;
+        }
+        mContext.getContentResolver().bulkInsert(CityEntry.CONTENT_URI, cities);
+
+        String sortOrder = WeatherEntry.COLUMN_DATE + " ASC";
+        String[] routes = {"weather/*?date=", "weather/*/#", "weather/*/today", "weather/stats",
+                "weather/id/#", "weather/id/#/#", "weather/*?limit=", "weather/id/#?after_date=",
+                "location by setting", "history/*/accuracy", "city/search", "city/nearest",
+                "location/nearest", "location/bounds"};
+        long[] nanos = new long[routes.length];
+        for (int i = 0; i < ROUTE_ITERATIONS; i++) {
+            int location = i * 17 % SYNTHETIC_LOCATIONS;
+            String setting = "synthetic" + location;
+            long locationId = locationIds[location];
+            double latitude = location % 180 - 90;
+            double longitude = location % 360 - 180;
+            int route = 0;
+
+            nanos[route++] += timeQuery(
+                    WeatherEntry.buildWeatherLocationWithStartDate(setting, mToday),
+                    null, null, null, sortOrder);
+            nanos[route++] += timeQuery(WeatherEntry.buildWeatherLocationWithDate(setting, mToday),
+                    null, null, null, null);
+            nanos[route++] += timeQuery(WeatherEntry.buildWeatherLocationToday(setting),
+                    null, null, null, null);
+            nanos[route++] += timeQuery(WeatherEntry.buildWeatherStats(firstDay, mToday,
+                    locationId), null, null, null, null);
+            nanos[route++] += timeQuery(WeatherEntry.buildWeatherLocationId(locationId),
+                    null, null, null, null);
+            nanos[route++] += timeQuery(
+                    WeatherEntry.buildWeatherLocationIdWithDate(locationId, mToday),
+                    null, null, null, null);
+            nanos[route++] += timeQuery(WeatherEntry.buildWeatherWithLimit(
+                    WeatherEntry.buildWeatherLocationWithStartDate(setting, mToday), 14),
+                    null, null, null, sortOrder);
+            nanos[route++] += timeQuery(WeatherEntry.buildWeatherPageAfter(
+                    WeatherEntry.buildWeatherLocationId(locationId), mToday, 7),
+                    null, null, null, null);
+            nanos[route++] += timeQuery(LocationEntry.CONTENT_URI,
+                    new String[]{LocationEntry._ID},
+                    LocationEntry.COLUMN_LOCATION_SETTING + " = ?", new String[]{setting}, null);
+            nanos[route++] += timeQuery(ForecastHistoryEntry.buildAccuracyUri(setting),
+                    null, null, null, null);
+            nanos[route++] += timeQuery(CityEntry.buildCitySearchUri("town" + location, 10),
+                    null, null, null, null);
+            nanos[route++] += timeQuery(WeatherContract.buildNearestUri(CityEntry.CONTENT_URI,
+                    latitude + 0.5, longitude + 0.5, 5), new String[]{CityEntry._ID},
+                    null, null, null);
+            nanos[route++] += timeQuery(WeatherContract.buildNearestUri(LocationEntry.CONTENT_URI,
+                    latitude + 0.5, longitude + 0.5, 5), new String[]{LocationEntry._ID},
+                    null, null, null);
+            nanos[route++] += timeQuery(WeatherContract.buildBoundsUri(LocationEntry.CONTENT_URI,
+                    latitude - 1, longitude - 1, latitude + 1, longitude + 1),
+                    new String[]{LocationEntry._ID}, null, null, null);
+        }
+
+        for (int i = 0; i < routes.length; i++) {
+            long average = nanos[i] / ROUTE_ITERATIONS;
+            Log.d(LOG_TAG, "Average " + routes[i] + " query over "
+                    + SYNTHETIC_LOCATIONS * SYNTHETIC_DAYS + " rows: " + (average / 1000) + "us");
+            assertTrue("Error: The " + routes[i] + " route took " + (average / 1000000)
+                    + "ms on average", average / 1000000 < MAX_ROUTE_MILLIS);
+        }
+        mContext.getContentResolver().delete(CityEntry.CONTENT_URI, null, null);
+    }
+
+    // How long the query takes to run and read, in nanoseconds.
+    private long timeQuery(Uri uri, String[] projection, String selection,
+                           String[] selectionArgs, String sortOrder) {
+        long start = System.nanoTime();
+        Cursor cursor = mContext.getContentResolver().query(uri, projection, selection,
+                selectionArgs, sortOrder);
+        cursor.getCount();
+        cursor.close();
+        return System.nanoTime() - start;
+    }
+}
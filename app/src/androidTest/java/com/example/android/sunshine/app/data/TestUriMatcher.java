@@ -34,8 +34,23 @@ public class TestUriMatcher extends AndroidTestCase {
     private static final Uri TEST_WEATHER_DIR = WeatherContract.WeatherEntry.CONTENT_URI;
     private static final Uri TEST_WEATHER_WITH_LOCATION_DIR = WeatherContract.WeatherEntry.buildWeatherLocation(LOCATION_QUERY);
     private static final Uri TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationWithDate(LOCATION_QUERY, TEST_DATE);
+    private static final Uri TEST_WEATHER_TODAY_DIR = WeatherContract.WeatherEntry.buildWeatherLocationToday(LOCATION_QUERY);
+    private static final Uri TEST_WEATHER_STATS_DIR = WeatherContract.WeatherEntry.buildWeatherStats(TEST_DATE, TEST_DATE, TEST_LOCATION_ID);
+    private static final Uri TEST_WEATHER_WITH_LOCATION_ID_DIR = WeatherContract.WeatherEntry.buildWeatherLocationId(TEST_LOCATION_ID);
+    private static final Uri TEST_WEATHER_WITH_LOCATION_ID_AND_DATE_DIR = WeatherContract.WeatherEntry.buildWeatherLocationIdWithDate(TEST_LOCATION_ID, TEST_DATE);
     // content://com.example.android.sunshine.app/location"
     private static final Uri TEST_LOCATION_DIR = WeatherContract.LocationEntry.CONTENT_URI;
+    private static final Uri TEST_CITY_DIR = WeatherContract.CityEntry.CONTENT_URI;
+    private static final Uri TEST_CITY_SEARCH_DIR = WeatherContract.CityEntry.buildCitySearchUri("lond", 10);
+    private static final Uri TEST_LOCATION_NEAREST_DIR = WeatherContract.buildNearestUri(TEST_LOCATION_DIR, 51.5, -0.12, 1);
+    private static final Uri TEST_LOCATION_BOUNDS_DIR = WeatherContract.buildBoundsUri(TEST_LOCATION_DIR, 51, -1, 52, 1);
+    private static final Uri TEST_CITY_NEAREST_DIR = WeatherContract.buildNearestUri(TEST_CITY_DIR, 51.5, -0.12, 1);
+    private static final Uri TEST_CITY_BOUNDS_DIR = WeatherContract.buildBoundsUri(TEST_CITY_DIR, 51, -1, 52, 1);
+    private static final Uri TEST_METRICS_DIR = WeatherContract.MetricsEntry.CONTENT_URI;
+    private static final Uri TEST_METRICS_SLOW_QUERIES_DIR = WeatherContract.MetricsEntry.SLOW_QUERIES_URI;
+    private static final Uri TEST_BACKUP_DIR = WeatherContract.BackupEntry.CONTENT_URI;
+    private static final Uri TEST_HOURLY_DIR = WeatherContract.HourlyEntry.CONTENT_URI;
+    private static final Uri TEST_HOURLY_WITH_LOCATION_DIR = WeatherContract.HourlyEntry.buildHourlyLocationWithRange(LOCATION_QUERY, TEST_DATE, TEST_DATE);
 
     /*
         Students: This function tests that your UriMatcher returns the correct integer value
@@ -51,7 +66,56 @@ public class TestUriMatcher extends AndroidTestCase {
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_DIR), WeatherProvider.WEATHER_WITH_LOCATION);
         assertEquals("Error: The WEATHER WITH LOCATION AND DATE URI was matched incorrectly.",
                 testMatcher.match(TEST_WEATHER_WITH_LOCATION_AND_DATE_DIR), WeatherProvider.WEATHER_WITH_LOCATION_AND_DATE);
+        assertEquals("Error: The WEATHER TODAY URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_TODAY_DIR), WeatherProvider.WEATHER_TODAY);
+        assertEquals("Error: The WEATHER WITH LOCATION ID URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_WITH_LOCATION_ID_DIR), WeatherProvider.WEATHER_WITH_LOCATION_ID);
+        assertEquals("Error: The WEATHER WITH LOCATION ID AND DATE URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_WITH_LOCATION_ID_AND_DATE_DIR), WeatherProvider.WEATHER_WITH_LOCATION_ID_AND_DATE);
+        assertEquals("Error: The WEATHER STATS URI was matched incorrectly.",
+                testMatcher.match(TEST_WEATHER_STATS_DIR), WeatherProvider.WEATHER_STATS);
         assertEquals("Error: The LOCATION URI was matched incorrectly.",
                 testMatcher.match(TEST_LOCATION_DIR), WeatherProvider.LOCATION);
+        assertEquals("Error: The CITY URI was matched incorrectly.",
+                testMatcher.match(TEST_CITY_DIR), WeatherProvider.CITY);
+        assertEquals("Error: The CITY SEARCH URI was matched incorrectly.",
+                testMatcher.match(TEST_CITY_SEARCH_DIR), WeatherProvider.CITY_SEARCH);
+        assertEquals("Error: The LOCATION NEAREST URI was matched incorrectly.",
+                testMatcher.match(TEST_LOCATION_NEAREST_DIR), WeatherProvider.LOCATION_NEAREST);
+        assertEquals("Error: The LOCATION BOUNDS URI was matched incorrectly.",
+                testMatcher.match(TEST_LOCATION_BOUNDS_DIR), WeatherProvider.LOCATION_BOUNDS);
+        assertEquals("Error: The CITY NEAREST URI was matched incorrectly.",
+                testMatcher.match(TEST_CITY_NEAREST_DIR), WeatherProvider.CITY_NEAREST);
+        assertEquals("Error: The CITY BOUNDS URI was matched incorrectly.",
+                testMatcher.match(TEST_CITY_BOUNDS_DIR), WeatherProvider.CITY_BOUNDS);
+        assertEquals("Error: The METRICS URI was matched incorrectly.",
+                testMatcher.match(TEST_METRICS_DIR), WeatherProvider.METRICS);
+        assertEquals("Error: The METRICS SLOW QUERIES URI was matched incorrectly.",
+                testMatcher.match(TEST_METRICS_SLOW_QUERIES_DIR), WeatherProvider.METRICS_SLOW_QUERIES);
+        assertEquals("Error: The BACKUP URI was matched incorrectly.",
+                testMatcher.match(TEST_BACKUP_DIR), WeatherProvider.BACKUP);
+        assertEquals("Error: The HOURLY URI was matched incorrectly.",
+                testMatcher.match(TEST_HOURLY_DIR), WeatherProvider.HOURLY);
+        assertEquals("Error: The HOURLY WITH LOCATION URI was matched incorrectly.",
+                testMatcher.match(TEST_HOURLY_WITH_LOCATION_DIR), WeatherProvider.HOURLY_WITH_LOCATION);
+    }
+
+    /*
+        The matcher takes the first route whose segment matches, so a location setting that is
+        one of the weather URIs' own segments would be read as that route.  Those settings are
+        refused when building a URI, and the provider won't store them either.
+     */
+    public void testReservedLocationSettings() {
+        String[] reserved = {WeatherContract.WeatherEntry.PATH_LOCATION_ID,
+                WeatherContract.WeatherEntry.PATH_STATS};
+        for (String locationSetting : reserved) {
+            assertTrue(WeatherContract.WeatherEntry.isReservedLocationSetting(locationSetting));
+            try {
+                WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting);
+                fail("Error: Built a weather URI for the reserved setting " + locationSetting);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+        assertFalse(WeatherContract.WeatherEntry.isReservedLocationSetting(LOCATION_QUERY));
     }
 }
@@ -62,6 +62,30 @@ public class TestUtilities extends AndroidTestCase {
         return weatherValues;
     }
 
+    /*
+        The weather values as the database stores them, with the measurements scaled to
+        integers.  Use this for rows written straight to the database rather than through the
+        provider.
+     */
+    static ContentValues encodeWeatherValues(ContentValues weatherValues) {
+        String[] measurements = {
+                WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+                WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+                WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+                WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+                WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+                WeatherContract.WeatherEntry.COLUMN_DEGREES
+        };
+        ContentValues encoded = new ContentValues(weatherValues);
+        for (String column : measurements) {
+            if (weatherValues.containsKey(column)) {
+                encoded.put(column, WeatherContract.WeatherEntry.encodeMeasurement(
+                        weatherValues.getAsDouble(column)));
+            }
+        }
+        return encoded;
+    }
+
     /*
         Students: You can uncomment this helper function once you have finished creating the
         LocationEntry part of the WeatherContract.
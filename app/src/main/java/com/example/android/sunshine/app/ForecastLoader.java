@@ -0,0 +1,90 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app;
+
+import android.content.Context;
+import android.support.v4.content.AsyncTaskLoader;
+
+import com.example.android.sunshine.app.data.ForecastRepository;
+import com.example.android.sunshine.app.data.WeatherContract;
+
+/**
+ * Loads a location's forecast from the {@link ForecastRepository}, and loads it again whenever
+ * the location's weather changes, the way a CursorLoader would requery.
+ */
+class ForecastLoader extends AsyncTaskLoader<ForecastRepository.Forecast> {
+
+    private final String mLocationSetting;
+    private final ForceLoadContentObserver mObserver = new ForceLoadContentObserver();
+    private boolean mObserving;
+    private ForecastRepository.Forecast mForecast;
+
+    ForecastLoader(Context context, String locationSetting) {
+        super(context);
+        mLocationSetting = locationSetting;
+    }
+
+    @Override
+    public ForecastRepository.Forecast loadInBackground() {
+        return ForecastRepository.getInstance(getContext()).getForecast(mLocationSetting);
+    }
+
+    @Override
+    public void deliverResult(ForecastRepository.Forecast forecast) {
+        if (isReset()) {
+            return;
+        }
+        mForecast = forecast;
+        if (isStarted()) {
+            super.deliverResult(forecast);
+        }
+    }
+
+    @Override
+    protected void onStartLoading() {
+        if (!mObserving) {
+            // The provider notifies a location's weather under both its setting and its id, so
+            // the setting alone hears every change to it, and changes to all weather, without
+            // waking up for other locations'
+            getContext().getContentResolver().registerContentObserver(
+                    WeatherContract.WeatherEntry.buildWeatherLocation(mLocationSetting), true,
+                    mObserver);
+            mObserving = true;
+        }
+        if (mForecast != null) {
+            deliverResult(mForecast);
+        }
+        if (takeContentChanged() || mForecast == null) {
+            forceLoad();
+        }
+    }
+
+    @Override
+    protected void onStopLoading() {
+        cancelLoad();
+    }
+
+    @Override
+    protected void onReset() {
+        super.onReset();
+        onStopLoading();
+        mForecast = null;
+        if (mObserving) {
+            getContext().getContentResolver().unregisterContentObserver(mObserver);
+            mObserving = false;
+        }
+    }
+}
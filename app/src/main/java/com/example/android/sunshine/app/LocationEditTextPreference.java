@@ -15,6 +15,7 @@ import android.view.ViewGroup;
 import android.widget.Button;
 import android.widget.EditText;
 
+import com.example.android.sunshine.app.data.WeatherContract;
 import com.google.android.gms.common.ConnectionResult;
 import com.google.android.gms.common.GoogleApiAvailability;
 import com.google.android.gms.common.GooglePlayServicesNotAvailableException;
@@ -107,8 +108,10 @@ public class LocationEditTextPreference extends EditTextPreference {
                     AlertDialog dialog = (AlertDialog) d;
                     Button positiveButton = dialog.getButton(AlertDialog.BUTTON_POSITIVE);
 
-                    // Disable to OK (positive) button if the EditText is not up to minimum length
-                    positiveButton.setEnabled((s.length() < mMinLength) ? false : true);
+                    // Disable to OK (positive) button if the EditText is not up to minimum length,
+                    // or is a word the weather URIs keep for themselves
+                    positiveButton.setEnabled(s.length() >= mMinLength &&
+                            !WeatherContract.WeatherEntry.isReservedLocationSetting(s.toString()));
                 }
             }
         });
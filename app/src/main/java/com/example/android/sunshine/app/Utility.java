@@ -68,8 +68,12 @@ public class Utility {
     }
 
     public static String formatTemperature(Context context, double temperature) {
-        String suffix = "\u00B0";
-        if (!isMetric(context)) {
+        return formatTemperature(context, temperature, isMetric(context));
+    }
+
+    public static String formatTemperature(Context context, double temperature,
+                                           boolean isMetric) {
+        if (!isMetric) {
             temperature = (temperature * 1.8) + 32;
         }
         return String.format(context.getString(R.string.format_temperature), temperature);
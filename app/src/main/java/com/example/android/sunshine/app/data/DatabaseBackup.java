@@ -0,0 +1,433 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
+import android.util.Base64;
+
+import com.example.android.sunshine.app.data.WeatherContract.CityEntry;
+import com.example.android.sunshine.app.data.WeatherContract.ForecastHistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Writes the database's tables out as newline delimited JSON, and reads them back in, for the
+ * BackupEntry URI.  Either way only a page of rows is held at a time, so a backup can be
+ * hundreds of megabytes: the export reads each table in pages of EXPORT_PAGE_ROWS by rowid,
+ * each page a cursor window of its own, and the import inserts a line at a time through one
+ * compiled statement into staging tables, committing every IMPORT_BATCH_ROWS rows.  Only once
+ * the whole backup is in and its row count checks out are the staging tables swapped in, in
+ * one transaction, so a backup that's cut short or fails part way leaves the tables as they
+ * were.
+ *
+ * A backup is a header line, then for each table a line naming it and its columns followed by
+ * a line per row holding its values in the same order, then a trailer with the number of rows.
+ * Values are as the table stores them, a blob as an object holding it in base64, so a backup
+ * only goes back into a database of the same schema version.  The display rows, the spatial
+ * indexes and the city search index aren't in it; they're derived from the rest, and made
+ * again as the rows go back in.
+ */
+final class DatabaseBackup {
+
+    static final String FORMAT = "sunshine-backup";
+    static final int FORMAT_VERSION = 1;
+
+    // Rows read per query when exporting.  A page is well inside a cursor window however wide
+    // its rows are, and the next one starts after the last rowid of this one, so reading on
+    // never has to step over the rows already read.
+    static final int EXPORT_PAGE_ROWS = 1000;
+
+    // Rows written per transaction when importing into the staging tables.  Big enough that the
+    // cost of each commit is spread thin, small enough that a sync waiting to write isn't held
+    // up for long.
+    static final int IMPORT_BATCH_ROWS = 5000;
+
+    // The staging table of a table is named with this in front.
+    static final String STAGING_PREFIX = "restore_";
+
+    // Backed up in this order, so that locations go back in before the weather that refers to
+    // them.
+    static final String[] TABLES = {
+            LocationEntry.TABLE_NAME,
+            WeatherEntry.TABLE_NAME,
+            ForecastHistoryEntry.TABLE_NAME,
+            HourlyEntry.TABLE_NAME,
+            CityEntry.TABLE_NAME
+    };
+
+    static final String KEY_FORMAT = "format";
+    static final String KEY_VERSION = "version";
+    static final String KEY_SCHEMA = "schema";
+    static final String KEY_TABLE = "table";
+    static final String KEY_COLUMNS = "columns";
+    static final String KEY_ROWS = "rows";
+    static final String KEY_BASE64 = "base64";
+
+    // Known by name rather than by Cursor.getType, which older devices don't have.
+    private static final Set<String> BLOB_COLUMNS =
+            new HashSet<>(Arrays.asList(HourlyEntry.COLUMN_BLOCK));
+
+    private static final int BUFFER_CHARS = 64 * 1024;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private DatabaseBackup() {
+    }
+
+    /**
+     * Writes a backup of db to out, returning the number of rows written.  Each page is read on
+     * its own rather than in one transaction, which would keep a sync from writing for as long
+     * as whoever is reading the backup takes; a day a sync replaces part way through is in the
+     * backup either as it was or as it became.  Doesn't close out.
+     */
+    static int export(SQLiteDatabase db, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, UTF_8), BUFFER_CHARS);
+        writer.write("{" + JSONObject.quote(KEY_FORMAT) + ":" + JSONObject.quote(FORMAT) + "," +
+                JSONObject.quote(KEY_VERSION) + ":" + FORMAT_VERSION + "," +
+                JSONObject.quote(KEY_SCHEMA) + ":" + WeatherDbHelper.DATABASE_VERSION + "}\n");
+        int rows = 0;
+        for (String table : TABLES) {
+            rows += exportTable(db, table, writer);
+        }
+        writer.write("{" + JSONObject.quote(KEY_ROWS) + ":" + rows + "}\n");
+        writer.flush();
+        return rows;
+    }
+
+    private static int exportTable(SQLiteDatabase db, String table, Writer writer)
+            throws IOException {
+        // The rowid comes first to page by, and isn't written; where the table has an _id it's
+        // the same value, and where it hasn't nothing refers to it
+        final String sql = "SELECT rowid, * FROM " + table +
+                " WHERE rowid > CAST(? AS INTEGER) ORDER BY rowid LIMIT " + EXPORT_PAGE_ROWS;
+        long lastRowId = Long.MIN_VALUE;
+        boolean[] blobColumns = null;
+        int rows = 0;
+        int pageRows;
+        do {
+            Cursor cursor = db.rawQuery(sql, new String[]{Long.toString(lastRowId)});
+            try {
+                if (blobColumns == null) {
+                    String[] columnNames = cursor.getColumnNames();
+                    writeColumns(writer, table, columnNames);
+                    blobColumns = new boolean[columnNames.length];
+                    for (int column = 0; column < columnNames.length; column++) {
+                        blobColumns[column] = BLOB_COLUMNS.contains(columnNames[column]);
+                    }
+                }
+                pageRows = cursor.getCount();
+                while (cursor.moveToNext()) {
+                    lastRowId = cursor.getLong(0);
+                    writeRow(writer, cursor, blobColumns);
+                }
+            } finally {
+                cursor.close();
+            }
+            rows += pageRows;
+        } while (pageRows == EXPORT_PAGE_ROWS);
+        return rows;
+    }
+
+    private static void writeColumns(Writer writer, String table, String[] columnNames)
+            throws IOException {
+        writer.write("{" + JSONObject.quote(KEY_TABLE) + ":" + JSONObject.quote(table) + "," +
+                JSONObject.quote(KEY_COLUMNS) + ":[");
+        for (int column = 1; column < columnNames.length; column++) {
+            if (column > 1) {
+                writer.write(',');
+            }
+            writer.write(JSONObject.quote(columnNames[column]));
+        }
+        writer.write("]}\n");
+    }
+
+    private static void writeRow(Writer writer, Cursor cursor, boolean[] blobColumns)
+            throws IOException {
+        writer.write('[');
+        for (int column = 1; column < cursor.getColumnCount(); column++) {
+            if (column > 1) {
+                writer.write(',');
+            }
+            writer.write(formatValue(cursor, column, blobColumns[column]));
+        }
+        writer.write("]\n");
+    }
+
+    private static String formatValue(Cursor cursor, int column, boolean blob) {
+        if (cursor.isNull(column)) {
+            return "null";
+        }
+        if (blob) {
+            // Unwrapped, as a line break would end the row
+            return "{" + JSONObject.quote(KEY_BASE64) + ":\"" +
+                    Base64.encodeToString(cursor.getBlob(column), Base64.NO_WRAP) + "\"}";
+        }
+        // Cursor.getType only exists from Honeycomb on; before that every value is written as
+        // the string SQLite hands back, and the column's affinity turns it back on import.
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return JSONObject.quote(cursor.getString(column));
+        }
+        switch (cursor.getType(column)) {
+            case Cursor.FIELD_TYPE_INTEGER:
+                return Long.toString(cursor.getLong(column));
+            case Cursor.FIELD_TYPE_FLOAT:
+                // Enough digits to read back the same double
+                return Double.toString(cursor.getDouble(column));
+            default:
+                return JSONObject.quote(cursor.getString(column));
+        }
+    }
+
+    /**
+     * Replaces the tables of db with the backup read from in, returning the number of rows
+     * read.  The rows go into staging tables first, a batch at a time, and replace the tables'
+     * only after the trailer's row count matches, so an import that fails part way, or a backup
+     * that's cut short, leaves the tables as they were.  The swap copies every row again inside
+     * one write transaction, and until it's done the database holds the backup twice over.
+     * Doesn't close in.
+     */
+    static int restore(SQLiteDatabase db, InputStream in) throws IOException {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, UTF_8), BUFFER_CHARS);
+        try {
+            readHeader(reader.readLine());
+            createStagingTables(db);
+            try {
+                int rows = readTables(db, reader);
+                swapStagingTables(db);
+                return rows;
+            } finally {
+                dropStagingTables(db);
+            }
+        } catch (JSONException e) {
+            throw new IOException("Malformed backup: " + e.getMessage());
+        }
+    }
+
+    private static void readHeader(String line) throws IOException, JSONException {
+        if (line == null) {
+            throw new IOException("Empty backup");
+        }
+        JSONObject header = new JSONObject(line);
+        if (!FORMAT.equals(header.optString(KEY_FORMAT))) {
+            throw new IOException("Not a backup: " + line);
+        }
+        if (header.getInt(KEY_VERSION) != FORMAT_VERSION) {
+            throw new IOException("Unknown backup version " + header.getInt(KEY_VERSION));
+        }
+        if (header.getInt(KEY_SCHEMA) != WeatherDbHelper.DATABASE_VERSION) {
+            throw new IOException("Backup of schema version " + header.getInt(KEY_SCHEMA) +
+                    ", not " + WeatherDbHelper.DATABASE_VERSION);
+        }
+    }
+
+    // Reads the backup's rows into the staging tables, returning how many there were once the
+    // trailer says that's all of them.
+    private static int readTables(SQLiteDatabase db, BufferedReader reader)
+            throws IOException, JSONException {
+        TableImport table = null;
+        int rows = 0;
+        int batchRows = 0;
+        WeatherProvider.beginWriteTransaction(db);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.length() == 0) {
+                    continue;
+                }
+                if (line.charAt(0) == '[') {
+                    if (table == null) {
+                        throw new IOException("Row before any table");
+                    }
+                    table.insert(new JSONArray(line));
+                    rows++;
+                    if (++batchRows == IMPORT_BATCH_ROWS) {
+                        db.setTransactionSuccessful();
+                        db.endTransaction();
+                        WeatherProvider.beginWriteTransaction(db);
+                        batchRows = 0;
+                    }
+                    continue;
+                }
+
+                JSONObject object = new JSONObject(line);
+                if (object.has(KEY_TABLE)) {
+                    if (table != null) {
+                        table.close();
+                        table = null;
+                    }
+                    table = new TableImport(db, object.getString(KEY_TABLE),
+                            object.getJSONArray(KEY_COLUMNS));
+                } else if (object.has(KEY_ROWS)) {
+                    if (object.getInt(KEY_ROWS) != rows) {
+                        throw new IOException("Backup of " + object.getInt(KEY_ROWS) +
+                                " rows had " + rows);
+                    }
+                    db.setTransactionSuccessful();
+                    return rows;
+                }
+            }
+            throw new IOException("Backup ended after " + rows + " rows");
+        } finally {
+            db.endTransaction();
+            if (table != null) {
+                table.close();
+            }
+        }
+    }
+
+    // Empty copies of the tables' columns, without their constraints, indexes or triggers, so
+    // the rows going in aren't checked or indexed twice.  Any left by an import that died part
+    // way are dropped first.
+    private static void createStagingTables(SQLiteDatabase db) {
+        dropStagingTables(db);
+        for (String table : TABLES) {
+            db.execSQL("CREATE TABLE " + STAGING_PREFIX + table + " AS SELECT * FROM " + table +
+                    " WHERE 0");
+        }
+    }
+
+    private static void dropStagingTables(SQLiteDatabase db) {
+        for (String table : TABLES) {
+            db.execSQL("DROP TABLE IF EXISTS " + STAGING_PREFIX + table);
+        }
+    }
+
+    // Replaces the tables' rows with the staging tables', in TABLES order so locations go in
+    // before the weather that refers to them.  The copies have the same columns in the same
+    // order, so the rows go across whole.  Inserting fires the triggers that fill the spatial
+    // indexes; the city search index is filled from the cities once they're in.
+    private static void swapStagingTables(SQLiteDatabase db) {
+        WeatherProvider.beginWriteTransaction(db);
+        try {
+            clearTables(db);
+            for (String table : TABLES) {
+                db.execSQL("INSERT INTO " + table + " SELECT * FROM " + STAGING_PREFIX + table);
+            }
+            db.execSQL("INSERT INTO " + CityEntry.FTS_TABLE_NAME + " (docid," +
+                    CityEntry.COLUMN_CITY_NAME + "," + CityEntry.COLUMN_COUNTRY + ") SELECT " +
+                    CityEntry._ID + "," + CityEntry.COLUMN_CITY_NAME + "," +
+                    CityEntry.COLUMN_COUNTRY + " FROM " + CityEntry.TABLE_NAME);
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    // Emptying the weather clears its display rows through the triggers, and the tables'
+    // spatial indexes the same way.
+    private static void clearTables(SQLiteDatabase db) {
+        for (int i = TABLES.length - 1; i >= 0; i--) {
+            db.delete(TABLES[i], null, null);
+        }
+        db.delete(CityEntry.FTS_TABLE_NAME, null, null);
+    }
+
+    // The columns a table of this database has, to check a backup's against before they go
+    // into any SQL.
+    private static Set<String> getColumns(SQLiteDatabase db, String table) {
+        Set<String> columns = new HashSet<>();
+        Cursor cursor = db.rawQuery("PRAGMA table_info(" + table + ")", null);
+        try {
+            int nameColumn = cursor.getColumnIndexOrThrow("name");
+            while (cursor.moveToNext()) {
+                columns.add(cursor.getString(nameColumn));
+            }
+        } finally {
+            cursor.close();
+        }
+        return columns;
+    }
+
+    // Inserts the rows of one table of a backup into its staging table.
+    private static final class TableImport {
+        private final int mColumnCount;
+        private final SQLiteStatement mInsert;
+
+        TableImport(SQLiteDatabase db, String table, JSONArray columnNames)
+                throws IOException, JSONException {
+            if (!Arrays.asList(TABLES).contains(table)) {
+                throw new IOException("Not a table a backup holds: " + table);
+            }
+            Set<String> tableColumns = getColumns(db, table);
+            mColumnCount = columnNames.length();
+            StringBuilder sql = new StringBuilder("INSERT INTO " + STAGING_PREFIX + table + " (");
+            for (int i = 0; i < mColumnCount; i++) {
+                String column = columnNames.getString(i);
+                if (!tableColumns.contains(column)) {
+                    throw new IOException(table + " has no column " + column);
+                }
+                sql.append(i == 0 ? "" : ",").append(column);
+            }
+            sql.append(") VALUES (");
+            for (int i = 0; i < mColumnCount; i++) {
+                sql.append(i == 0 ? "?" : ",?");
+            }
+            sql.append(")");
+            mInsert = db.compileStatement(sql.toString());
+        }
+
+        void insert(JSONArray row) throws IOException, JSONException {
+            if (row.length() != mColumnCount) {
+                throw new IOException("Row of " + row.length() + " values for " + mColumnCount +
+                        " columns");
+            }
+            for (int i = 0; i < mColumnCount; i++) {
+                bind(mInsert, i + 1, row.get(i));
+            }
+            mInsert.executeInsert();
+        }
+
+        private static void bind(SQLiteStatement statement, int index, Object value)
+                throws JSONException {
+            if (value == JSONObject.NULL) {
+                statement.bindNull(index);
+            } else if (value instanceof JSONObject) {
+                statement.bindBlob(index, Base64.decode(
+                        ((JSONObject) value).getString(KEY_BASE64), Base64.DEFAULT));
+            } else if (value instanceof Integer || value instanceof Long) {
+                statement.bindLong(index, ((Number) value).longValue());
+            } else if (value instanceof Number) {
+                statement.bindDouble(index, ((Number) value).doubleValue());
+            } else {
+                statement.bindString(index, value.toString());
+            }
+        }
+
+        void close() {
+            mInsert.close();
+        }
+    }
+}
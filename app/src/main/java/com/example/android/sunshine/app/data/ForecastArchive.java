@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The raw forecast responses the sync last fetched, one per location, for the most recently
+ * synced MAX_LOCATIONS locations.  The database is only a cache of these, so when it has to be
+ * thrown away, because it's corrupt or an upgrade dropped its tables, it's filled again from
+ * here in a few milliseconds rather than staying empty until the next sync gets through.
+ *
+ * Each file is the fetch time on the first line, the location setting on the second and the
+ * response, as it came, after that.
+ */
+public final class ForecastArchive {
+    private static final String LOG_TAG = ForecastArchive.class.getSimpleName();
+
+    static final int MAX_LOCATIONS = 4;
+
+    private static final String ARCHIVE_DIR = "responses";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private ForecastArchive() {
+    }
+
+    /**
+     * Archives a response for the location that the sync fetched at fetchedAt and has stored,
+     * replacing the location's last one.
+     */
+    public static void save(Context context, String locationSetting, String forecastJsonStr,
+                            long fetchedAt) {
+        File file = getFile(context, locationSetting);
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            Log.e(LOG_TAG, "Couldn't create " + dir);
+            return;
+        }
+        // Written aside and renamed over the old one, so a crash part way through never
+        // leaves a truncated response to be replayed
+        File temp = new File(dir, file.getName() + TEMP_SUFFIX);
+        try {
+            Writer writer = new OutputStreamWriter(new FileOutputStream(temp), UTF_8);
+            try {
+                writer.write(Long.toString(fetchedAt));
+                writer.write('\n');
+                writer.write(locationSetting);
+                writer.write('\n');
+                writer.write(forecastJsonStr);
+            } finally {
+                writer.close();
+            }
+            if (!temp.renameTo(file)) {
+                throw new IOException("Couldn't rename " + temp + " to " + file);
+            }
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error archiving the response for " + locationSetting, e);
+            temp.delete();
+            return;
+        }
+
+        File[] files = listNewestFirst(context);
+        for (int i = MAX_LOCATIONS; i < files.length; i++) {
+            files[i].delete();
+        }
+    }
+
+    /**
+     * Stores every archived response in db, which has just been created and so is empty.  Days
+     * already past are left out, as a sync would have deleted them.  Returns the number of days
+     * stored.
+     */
+    static int replay(Context context, SQLiteDatabase db) {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        int days = 0;
+        db.beginTransaction();
+        try {
+            for (File file : listNewestFirst(context)) {
+                days += replay(db, file, today);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        return days;
+    }
+
+    private static int replay(SQLiteDatabase db, File file, long today) {
+        String locationSetting;
+        ForecastResponse response;
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(new FileInputStream(file), UTF_8));
+            try {
+                long fetchedAt = Long.parseLong(reader.readLine());
+                locationSetting = reader.readLine();
+                StringBuilder json = new StringBuilder();
+                char[] buffer = new char[4096];
+                int read;
+                while ((read = reader.read(buffer)) != -1) {
+                    json.append(buffer, 0, read);
+                }
+                response = ForecastResponse.parse(json.toString(), fetchedAt);
+            } finally {
+                reader.close();
+            }
+        } catch (IOException | NumberFormatException | JSONException e) {
+            // One bad file shouldn't keep the others out
+            Log.e(LOG_TAG, "Couldn't replay " + file, e);
+            return 0;
+        }
+        if (locationSetting == null || response.getCityName() == null) {
+            return 0;
+        }
+
+        ContentValues locationValues = new ContentValues();
+        locationValues.put(LocationEntry.COLUMN_LOCATION_SETTING, locationSetting);
+        locationValues.put(LocationEntry.COLUMN_CITY_NAME, response.getCityName());
+        locationValues.put(LocationEntry.COLUMN_COORD_LAT, response.getCityLatitude());
+        locationValues.put(LocationEntry.COLUMN_COORD_LONG, response.getCityLongitude());
+        long locationId = db.insert(LocationEntry.TABLE_NAME, null, locationValues);
+        if (locationId == -1) {
+            return 0;
+        }
+
+        int days = 0;
+        for (ContentValues values : response.getWeatherValues(locationId)) {
+            if (values.getAsLong(WeatherEntry.COLUMN_DATE) < today) {
+                continue;
+            }
+            if (db.insert(WeatherEntry.TABLE_NAME, null,
+                    WeatherProvider.encodeMeasurements(values)) != -1) {
+                days++;
+            }
+        }
+        return days;
+    }
+
+    static File getFile(Context context, String locationSetting) {
+        return new File(new File(context.getFilesDir(), ARCHIVE_DIR),
+                "forecast_" + Uri.encode(locationSetting));
+    }
+
+    private static File[] listNewestFirst(Context context) {
+        File[] files = new File(context.getFilesDir(), ARCHIVE_DIR).listFiles();
+        if (files == null) {
+            return new File[0];
+        }
+        int count = 0;
+        for (File file : files) {
+            if (!file.getName().endsWith(TEMP_SUFFIX)) {
+                files[count++] = file;
+            }
+        }
+        files = Arrays.copyOf(files, count);
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File lhs, File rhs) {
+                long left = lhs.lastModified();
+                long right = rhs.lastModified();
+                return left > right ? -1 : left == right ? 0 : 1;
+            }
+        });
+        return files;
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteStatement;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.Utility;
+
+import java.util.Locale;
+
+/**
+ * Renders the display columns of a day's weather, the same way the forecast list and widgets
+ * work them out for themselves.  An instance renders for the locale, units preference and day
+ * current when it was made, which together are its variant.  Making one reads the preferences,
+ * so everything uses the one WeatherProvider.getDisplay holds rather than make its own.
+ */
+class ForecastDisplay {
+
+    // The columns bound by bind, in order.
+    static final String[] COLUMNS = {
+            WeatherContract.DisplayEntry.COLUMN_WEATHER_KEY,
+            WeatherContract.DisplayEntry.COLUMN_VARIANT,
+            WeatherContract.DisplayEntry.COLUMN_FRIENDLY_DATE,
+            WeatherContract.DisplayEntry.COLUMN_FRIENDLY_DATE_LONG,
+            WeatherContract.DisplayEntry.COLUMN_DESCRIPTION,
+            WeatherContract.DisplayEntry.COLUMN_HIGH_TEMP,
+            WeatherContract.DisplayEntry.COLUMN_LOW_TEMP
+    };
+
+    private final Context mContext;
+    private final boolean mMetric;
+    private final Locale mLocale;
+    private final String mVariant;
+    private final long mNextDay;
+
+    ForecastDisplay(Context context) {
+        mContext = context;
+        mMetric = Utility.isMetric(context);
+        mLocale = Locale.getDefault();
+        Time time = new Time();
+        time.setToNow();
+        // The friendly dates are relative to today, so they go stale at midnight too
+        mVariant = mLocale + "|" + (mMetric ? "metric" : "imperial") + "|"
+                + Time.getJulianDay(System.currentTimeMillis(), time.gmtoff);
+        time.monthDay++;
+        time.hour = 0;
+        time.minute = 0;
+        time.second = 0;
+        mNextDay = time.normalize(true);
+    }
+
+    String getVariant() {
+        return mVariant;
+    }
+
+    /**
+     * Whether the locale and day are still the ones this renders for.  A change of units isn't
+     * seen here: whoever keeps an instance listens for it.
+     */
+    boolean isCurrent() {
+        return System.currentTimeMillis() < mNextDay && mLocale.equals(Locale.getDefault());
+    }
+
+    /**
+     * Binds the display row of a day's weather to insert, which takes COLUMNS.
+     */
+    void bind(SQLiteStatement insert, long weatherKey, long date, int weatherId, double high,
+              double low) {
+        insert.bindLong(1, weatherKey);
+        insert.bindString(2, mVariant);
+        insert.bindString(3, Utility.getFriendlyDayString(mContext, date, false));
+        insert.bindString(4, Utility.getFriendlyDayString(mContext, date, true));
+        insert.bindString(5, Utility.getStringForWeatherCondition(mContext, weatherId));
+        insert.bindString(6, Utility.formatTemperature(mContext, high, mMetric));
+        insert.bindString(7, Utility.formatTemperature(mContext, low, mMetric));
+    }
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+
+import com.example.android.sunshine.app.Utility;
+import com.example.android.sunshine.app.data.WeatherContract.DisplayEntry;
+import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+/**
+ * The coming forecast of a location, held in memory one array per column and shared by
+ * everything in the process that shows it: the forecast list, the detail view, both widgets,
+ * Muzei, Wear and the notification.  Each of those used to run its own query for the same rows
+ * and read them back through a cursor of its own.
+ *
+ * A Forecast never changes once built.  The repository builds a new one, and swaps it in whole,
+ * when the provider has been written to since the one it holds was read, or when that one's
+ * display strings were rendered for another locale, units preference or day.  Only the most
+ * recently asked for location is held; there is only ever one being shown.
+ */
+public final class ForecastRepository {
+
+    // Also what WeatherProvider warms up at start, so its first query finds the result cached.
+    static final String[] FORECAST_COLUMNS = {
+            WeatherEntry.TABLE_NAME + "." + WeatherEntry._ID,
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_SHORT_DESC,
+            LocationEntry.COLUMN_COORD_LAT,
+            LocationEntry.COLUMN_COORD_LONG,
+            DisplayEntry.COLUMN_FRIENDLY_DATE,
+            DisplayEntry.COLUMN_FRIENDLY_DATE_LONG,
+            DisplayEntry.COLUMN_DESCRIPTION,
+            DisplayEntry.COLUMN_HIGH_TEMP,
+            DisplayEntry.COLUMN_LOW_TEMP
+    };
+
+    // These indices are tied to FORECAST_COLUMNS.
+    private static final int COL_ID = 0;
+    private static final int COL_DATE = 1;
+    private static final int COL_WEATHER_ID = 2;
+    private static final int COL_MIN_TEMP = 3;
+    private static final int COL_MAX_TEMP = 4;
+    private static final int COL_HUMIDITY = 5;
+    private static final int COL_PRESSURE = 6;
+    private static final int COL_WIND_SPEED = 7;
+    private static final int COL_DEGREES = 8;
+    private static final int COL_SHORT_DESC = 9;
+    private static final int COL_COORD_LAT = 10;
+    private static final int COL_COORD_LONG = 11;
+    private static final int COL_FRIENDLY_DATE = 12;
+    private static final int COL_FRIENDLY_DATE_LONG = 13;
+    private static final int COL_DISPLAY_DESC = 14;
+    private static final int COL_HIGH_TEMP = 15;
+    private static final int COL_LOW_TEMP = 16;
+
+    private static ForecastRepository sInstance;
+
+    private final Context mContext;
+    private volatile Forecast mForecast;
+
+    private ForecastRepository(Context context) {
+        mContext = context;
+    }
+
+    public static synchronized ForecastRepository getInstance(Context context) {
+        if (sInstance == null) {
+            sInstance = new ForecastRepository(context.getApplicationContext());
+        }
+        return sInstance;
+    }
+
+    /**
+     * Returns the location's forecast from today on, reading it from the provider if the one
+     * held isn't current.  Returns null if the provider couldn't be queried.  Can query, so not
+     * for the main thread.
+     */
+    public Forecast getForecast(String locationSetting) {
+        Forecast forecast = mForecast;
+        if (isCurrent(forecast, locationSetting)) {
+            return forecast;
+        }
+        synchronized (this) {
+            // Whoever held the lock before us may have just read it
+            forecast = mForecast;
+            if (isCurrent(forecast, locationSetting)) {
+                return forecast;
+            }
+            forecast = load(locationSetting);
+            if (forecast != null) {
+                mForecast = forecast;
+            }
+            return forecast;
+        }
+    }
+
+    private boolean isCurrent(Forecast forecast, String locationSetting) {
+        return forecast != null
+                && forecast.mGeneration == WeatherProvider.getDataGeneration()
+                && forecast.mLocationSetting.equals(locationSetting)
+                && forecast.mVariant.equals(WeatherProvider.getDisplay(mContext).getVariant());
+    }
+
+    private Forecast load(String locationSetting) {
+        // Read before the query, so a write that lands during it makes this forecast stale
+        // rather than being missed
+        long generation = WeatherProvider.getDataGeneration();
+        String variant = WeatherProvider.getDisplay(mContext).getVariant();
+        Uri forecastUri = WeatherEntry.buildWeatherLocationWithStartDate(locationSetting,
+                System.currentTimeMillis());
+        Cursor cursor = mContext.getContentResolver().query(forecastUri, FORECAST_COLUMNS, null,
+                null, WeatherEntry.COLUMN_DATE + " ASC");
+        if (cursor == null) {
+            return null;
+        }
+        try {
+            return new Forecast(mContext, locationSetting, generation, variant, cursor);
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * A location's forecast, one day per index in date order.
+     */
+    public static final class Forecast {
+        private final String mLocationSetting;
+        private final long mGeneration;
+        private final String mVariant;
+        private final double mCoordLat;
+        private final double mCoordLong;
+
+        private final int mCount;
+        private final long[] mIds;
+        private final long[] mDates;
+        private final int[] mWeatherIds;
+        private final double[] mMinTemps;
+        private final double[] mMaxTemps;
+        private final double[] mHumidities;
+        private final double[] mPressures;
+        private final double[] mWindSpeeds;
+        private final double[] mDegrees;
+        private final String[] mShortDescs;
+        private final String[] mFriendlyDates;
+        private final String[] mFriendlyDatesLong;
+        private final String[] mDescriptions;
+        private final String[] mHighTemps;
+        private final String[] mLowTemps;
+
+        Forecast(Context context, String locationSetting, long generation, String variant,
+                 Cursor cursor) {
+            mLocationSetting = locationSetting;
+            mGeneration = generation;
+            mVariant = variant;
+
+            int count = cursor.getCount();
+            mIds = new long[count];
+            mDates = new long[count];
+            mWeatherIds = new int[count];
+            mMinTemps = new double[count];
+            mMaxTemps = new double[count];
+            mHumidities = new double[count];
+            mPressures = new double[count];
+            mWindSpeeds = new double[count];
+            mDegrees = new double[count];
+            mShortDescs = new String[count];
+            mFriendlyDates = new String[count];
+            mFriendlyDatesLong = new String[count];
+            mDescriptions = new String[count];
+            mHighTemps = new String[count];
+            mLowTemps = new String[count];
+
+            double coordLat = Double.NaN;
+            double coordLong = Double.NaN;
+            int i = 0;
+            while (i < count && cursor.moveToNext()) {
+                mIds[i] = cursor.getLong(COL_ID);
+                mDates[i] = cursor.getLong(COL_DATE);
+                mWeatherIds[i] = cursor.getInt(COL_WEATHER_ID);
+                mMinTemps[i] = cursor.getDouble(COL_MIN_TEMP);
+                mMaxTemps[i] = cursor.getDouble(COL_MAX_TEMP);
+                mHumidities[i] = cursor.getDouble(COL_HUMIDITY);
+                mPressures[i] = cursor.getDouble(COL_PRESSURE);
+                mWindSpeeds[i] = cursor.getDouble(COL_WIND_SPEED);
+                mDegrees[i] = cursor.getDouble(COL_DEGREES);
+                mShortDescs[i] = cursor.getString(COL_SHORT_DESC);
+                if (i == 0) {
+                    coordLat = cursor.getDouble(COL_COORD_LAT);
+                    coordLong = cursor.getDouble(COL_COORD_LONG);
+                }
+
+                // The provider renders these; only days it hasn't are formatted here, so
+                // nothing reading a forecast ever has to
+                mFriendlyDates[i] = cursor.getString(COL_FRIENDLY_DATE);
+                if (mFriendlyDates[i] == null) {
+                    mFriendlyDates[i] = Utility.getFriendlyDayString(context, mDates[i], false);
+                }
+                mFriendlyDatesLong[i] = cursor.getString(COL_FRIENDLY_DATE_LONG);
+                if (mFriendlyDatesLong[i] == null) {
+                    mFriendlyDatesLong[i] =
+                            Utility.getFriendlyDayString(context, mDates[i], true);
+                }
+                mDescriptions[i] = cursor.getString(COL_DISPLAY_DESC);
+                if (mDescriptions[i] == null) {
+                    mDescriptions[i] =
+                            Utility.getStringForWeatherCondition(context, mWeatherIds[i]);
+                }
+                mHighTemps[i] = cursor.getString(COL_HIGH_TEMP);
+                if (mHighTemps[i] == null) {
+                    mHighTemps[i] = Utility.formatTemperature(context, mMaxTemps[i]);
+                }
+                mLowTemps[i] = cursor.getString(COL_LOW_TEMP);
+                if (mLowTemps[i] == null) {
+                    mLowTemps[i] = Utility.formatTemperature(context, mMinTemps[i]);
+                }
+                i++;
+            }
+            mCount = i;
+            mCoordLat = coordLat;
+            mCoordLong = coordLong;
+        }
+
+        public String getLocationSetting() {
+            return mLocationSetting;
+        }
+
+        // The location's coordinates, or NaN if the forecast has no days.
+        public double getCoordLat() {
+            return mCoordLat;
+        }
+
+        public double getCoordLong() {
+            return mCoordLong;
+        }
+
+        public int getCount() {
+            return mCount;
+        }
+
+        /**
+         * The index of the day dated date, or -1 if the forecast doesn't have it.
+         */
+        public int indexOfDate(long date) {
+            for (int i = 0; i < mCount; i++) {
+                if (mDates[i] == date) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        public long getId(int i) {
+            return mIds[i];
+        }
+
+        public long getDate(int i) {
+            return mDates[i];
+        }
+
+        public int getWeatherId(int i) {
+            return mWeatherIds[i];
+        }
+
+        public double getMinTemp(int i) {
+            return mMinTemps[i];
+        }
+
+        public double getMaxTemp(int i) {
+            return mMaxTemps[i];
+        }
+
+        public double getHumidity(int i) {
+            return mHumidities[i];
+        }
+
+        public double getPressure(int i) {
+            return mPressures[i];
+        }
+
+        public double getWindSpeed(int i) {
+            return mWindSpeeds[i];
+        }
+
+        public double getDegrees(int i) {
+            return mDegrees[i];
+        }
+
+        public String getShortDesc(int i) {
+            return mShortDescs[i];
+        }
+
+        // The display strings, rendered for the locale, units and day the forecast was read in.
+
+        public String getFriendlyDate(int i, boolean longToday) {
+            return longToday ? mFriendlyDatesLong[i] : mFriendlyDates[i];
+        }
+
+        public String getDescription(int i) {
+            return mDescriptions[i];
+        }
+
+        public String getHighTemp(int i) {
+            return mHighTemps[i];
+        }
+
+        public String getLowTemp(int i) {
+            return mLowTemps[i];
+        }
+    }
+}
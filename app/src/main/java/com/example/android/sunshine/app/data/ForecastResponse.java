@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.ContentValues;
+import android.text.format.Time;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.net.HttpURLConnection;
+
+/**
+ * A daily forecast response from OpenWeatherMap, parsed into the rows the provider stores.  Used
+ * by the sync for what it has just fetched, and by ForecastArchive to rebuild the database from
+ * what it fetched before.
+ */
+public final class ForecastResponse {
+
+    // These are the names of the JSON objects that need to be extracted.
+
+    // Result status code
+    private static final String OWM_STATUS_CODE = "cod";
+
+    // Location information
+    private static final String OWM_CITY = "city";
+    private static final String OWM_CITY_NAME = "name";
+    private static final String OWM_COORD = "coord";
+
+    // Location coordinate
+    private static final String OWM_LATITUDE = "lat";
+    private static final String OWM_LONGITUDE = "lon";
+
+    // Weather information.  Each day's forecast info is an element of the "list" array.
+    private static final String OWM_LIST = "list";
+
+    private static final String OWM_PRESSURE = "pressure";
+    private static final String OWM_HUMIDITY = "humidity";
+    private static final String OWM_WINDSPEED = "speed";
+    private static final String OWM_WIND_DIRECTION = "deg";
+
+    // All temperatures are children of the "temp" object.
+    private static final String OWM_TEMPERATURE = "temp";
+    private static final String OWM_MAX = "max";
+    private static final String OWM_MIN = "min";
+
+    private static final String OWM_WEATHER = "weather";
+    private static final String OWM_DESCRIPTION = "main";
+    private static final String OWM_WEATHER_ID = "id";
+
+    private final int mStatusCode;
+    private final String mCityName;
+    private final double mCityLatitude;
+    private final double mCityLongitude;
+    private final ContentValues[] mWeatherValues;
+
+    private ForecastResponse(int statusCode, String cityName, double cityLatitude,
+                             double cityLongitude, ContentValues[] weatherValues) {
+        mStatusCode = statusCode;
+        mCityName = cityName;
+        mCityLatitude = cityLatitude;
+        mCityLongitude = cityLongitude;
+        mWeatherValues = weatherValues;
+    }
+
+    /**
+     * Parses a response fetched at fetchedAt, which is what its days are dated from.  A response
+     * whose status isn't OK has no city or days.
+     */
+    public static ForecastResponse parse(String forecastJsonStr, long fetchedAt)
+            throws JSONException {
+        JSONObject forecastJson = new JSONObject(forecastJsonStr);
+
+        if (forecastJson.has(OWM_STATUS_CODE)) {
+            int statusCode = forecastJson.getInt(OWM_STATUS_CODE);
+            if (statusCode != HttpURLConnection.HTTP_OK) {
+                return new ForecastResponse(statusCode, null, 0, 0, new ContentValues[0]);
+            }
+        }
+
+        JSONArray weatherArray = forecastJson.getJSONArray(OWM_LIST);
+
+        JSONObject cityJson = forecastJson.getJSONObject(OWM_CITY);
+        String cityName = cityJson.getString(OWM_CITY_NAME);
+
+        JSONObject cityCoord = cityJson.getJSONObject(OWM_COORD);
+        double cityLatitude = cityCoord.getDouble(OWM_LATITUDE);
+        double cityLongitude = cityCoord.getDouble(OWM_LONGITUDE);
+
+        // OWM returns daily forecasts based upon the local time of the city that is being
+        // asked for, which means that we need to know the GMT offset to translate this data
+        // properly.
+
+        // Since this data is also sent in-order and the first day is always the
+        // current day, we're going to take advantage of that to get a nice
+        // normalized UTC date for all of our weather.
+
+        Time dayTime = new Time();
+        dayTime.set(fetchedAt);
+
+        // we start at the day returned by local time. Otherwise this is a mess.
+        int julianStartDay = Time.getJulianDay(fetchedAt, dayTime.gmtoff);
+
+        // now we work exclusively in UTC
+        dayTime = new Time();
+
+        ContentValues[] weatherValues = new ContentValues[weatherArray.length()];
+        for (int i = 0; i < weatherArray.length(); i++) {
+            // Get the JSON object representing the day
+            JSONObject dayForecast = weatherArray.getJSONObject(i);
+
+            // Cheating to convert this to UTC time, which is what we want anyhow
+            long dateTime = dayTime.setJulianDay(julianStartDay + i);
+
+            // Description is in a child array called "weather", which is 1 element long.
+            // That element also contains a weather code.
+            JSONObject weatherObject = dayForecast.getJSONArray(OWM_WEATHER).getJSONObject(0);
+
+            // Temperatures are in a child object called "temp".  Try not to name variables
+            // "temp" when working with temperature.  It confuses everybody.
+            JSONObject temperatureObject = dayForecast.getJSONObject(OWM_TEMPERATURE);
+
+            ContentValues values = new ContentValues();
+            values.put(WeatherEntry.COLUMN_DATE, dateTime);
+            values.put(WeatherEntry.COLUMN_HUMIDITY, dayForecast.getInt(OWM_HUMIDITY));
+            values.put(WeatherEntry.COLUMN_PRESSURE, dayForecast.getDouble(OWM_PRESSURE));
+            values.put(WeatherEntry.COLUMN_WIND_SPEED, dayForecast.getDouble(OWM_WINDSPEED));
+            values.put(WeatherEntry.COLUMN_DEGREES, dayForecast.getDouble(OWM_WIND_DIRECTION));
+            values.put(WeatherEntry.COLUMN_MAX_TEMP, temperatureObject.getDouble(OWM_MAX));
+            values.put(WeatherEntry.COLUMN_MIN_TEMP, temperatureObject.getDouble(OWM_MIN));
+            values.put(WeatherEntry.COLUMN_SHORT_DESC, weatherObject.getString(OWM_DESCRIPTION));
+            values.put(WeatherEntry.COLUMN_WEATHER_ID, weatherObject.getInt(OWM_WEATHER_ID));
+            weatherValues[i] = values;
+        }
+        return new ForecastResponse(HttpURLConnection.HTTP_OK, cityName, cityLatitude,
+                cityLongitude, weatherValues);
+    }
+
+    public int getStatusCode() {
+        return mStatusCode;
+    }
+
+    public String getCityName() {
+        return mCityName;
+    }
+
+    public double getCityLatitude() {
+        return mCityLatitude;
+    }
+
+    public double getCityLongitude() {
+        return mCityLongitude;
+    }
+
+    public int getDayCount() {
+        return mWeatherValues.length;
+    }
+
+    /**
+     * The days of the forecast as rows of the weather table for the given location.
+     */
+    public ContentValues[] getWeatherValues(long locationId) {
+        ContentValues[] values = new ContentValues[mWeatherValues.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = new ContentValues(mWeatherValues[i]);
+            values[i].put(WeatherEntry.COLUMN_LOC_KEY, locationId);
+        }
+        return values;
+    }
+}
@@ -0,0 +1,373 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.content.Context;
+import android.database.Cursor;
+import android.net.Uri;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.zip.CRC32;
+
+/**
+ * A fixed-layout binary copy of a location's coming forecast, published by the sync after each
+ * update for the consumers that only ever show a day of it: the today widget, Muzei, Wear and
+ * the notification.  Reading it is one read of a kilobyte or so from a file and a checksum,
+ * where going through the provider is a binder call, a SQLite query and a cursor window for the
+ * same few values.  Unlike the ForecastRepository it's built from, it outlives the process, so
+ * a widget update that starts the process cold doesn't have to wait on the database.
+ *
+ * A snapshot is written to a temporary file that's then renamed over the old one, so a reader
+ * opens either the old snapshot or the new one, never a mix.  The file is read with a plain
+ * read rather than mapped, since a mapping would go on showing a snapshot after it was replaced
+ * or deleted.  The header holds a CRC-32 of the rest of the file, which catches a file damaged
+ * on disk.  Readers that find no file, a bad checksum or a layout they don't know fall back to
+ * the ForecastRepository.
+ *
+ * The provider deletes every snapshot whenever the set of locations may have changed under
+ * them, on a location write, a backup import or the database being rebuilt, and the sync
+ * publishes them again.
+ *
+ * The layout, big-endian throughout, is a HEADER_BYTES header:
+ *   magic (int), format version (int), day count (int), checksum (int), publish time (long)
+ * then MAX_DAYS records of DAY_BYTES each, in date order:
+ *   date (long), weather id (int), then as scaled integers (see WeatherEntry.MEASUREMENT_SCALE)
+ *   min, max, humidity, pressure, wind speed and degrees (int each), then the short
+ *   description as a length byte and up to DESC_BYTES - 1 bytes of UTF-8.
+ * The checksum covers everything up to the end of the last day but itself.  Any change to the
+ * layout needs a new FORMAT_VERSION.
+ */
+public final class ForecastSnapshot {
+    private static final String LOG_TAG = ForecastSnapshot.class.getSimpleName();
+
+    static final int MAGIC = 0x53554e53;
+    static final int FORMAT_VERSION = 3;
+    static final int MAX_DAYS = 14;
+
+    static final int HEADER_BYTES = 24;
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = 4;
+    private static final int OFFSET_DAY_COUNT = 8;
+    private static final int OFFSET_CHECKSUM = 12;
+    private static final int OFFSET_PUBLISHED = 16;
+
+    static final int DAY_BYTES = 80;
+    static final int DESC_BYTES = 44;
+    private static final int DAY_DATE = 0;
+    private static final int DAY_WEATHER_ID = 8;
+    private static final int DAY_MEASUREMENTS = 12;
+    private static final int DAY_DESC = 36;
+
+    static final int FILE_BYTES = HEADER_BYTES + MAX_DAYS * DAY_BYTES;
+
+    private static final String SNAPSHOT_DIR = "snapshots";
+    private static final String FILE_PREFIX = "forecast_";
+    private static final String TEMP_SUFFIX = ".tmp";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    // The columns a snapshot holds, in the order of a day record.
+    private static final String[] SNAPSHOT_COLUMNS = {
+            WeatherEntry.COLUMN_DATE,
+            WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherEntry.COLUMN_HUMIDITY,
+            WeatherEntry.COLUMN_PRESSURE,
+            WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherEntry.COLUMN_DEGREES,
+            WeatherEntry.COLUMN_SHORT_DESC
+    };
+    private static final int COL_DATE = 0;
+    private static final int COL_WEATHER_ID = 1;
+    private static final int COL_FIRST_MEASUREMENT = 2;
+    private static final int MEASUREMENT_COUNT = 6;
+    private static final int COL_SHORT_DESC = 8;
+
+    // Held while writing or deleting, so writers don't share a temporary file and a delete
+    // doesn't miss one that's about to be renamed into place.
+    private static final Object sWriteLock = new Object();
+
+    private ForecastSnapshot() {
+    }
+
+    /**
+     * One day of a snapshot.  Reused from read to read, along with the buffer the file is read
+     * into, so reading allocates little but the description.
+     */
+    public static final class Day {
+        public long date;
+        public int weatherId;
+        public double minTemp;
+        public double maxTemp;
+        public double humidity;
+        public double pressure;
+        public double windSpeed;
+        public double degrees;
+        public String shortDesc;
+
+        private final ByteBuffer mBuffer = ByteBuffer.allocate(FILE_BYTES);
+        private final CRC32 mCrc = new CRC32();
+    }
+
+    /**
+     * Reads the first day of the location's forecast dated today or later: from the snapshot if
+     * there's a good one, otherwise from the ForecastRepository.  Returns false if neither has
+     * the day.
+     */
+    public static boolean getToday(Context context, String locationSetting, Day day) {
+        if (readToday(context, locationSetting, day)) {
+            return true;
+        }
+        ForecastRepository.Forecast forecast =
+                ForecastRepository.getInstance(context).getForecast(locationSetting);
+        if (forecast == null || forecast.getCount() == 0) {
+            return false;
+        }
+        copyDay(forecast, 0, day);
+        return true;
+    }
+
+    static boolean readToday(Context context, String locationSetting, Day day) {
+        File file = getFile(context, locationSetting);
+        try {
+            FileInputStream in = new FileInputStream(file);
+            try {
+                byte[] bytes = day.mBuffer.array();
+                int length = 0;
+                int read;
+                while (length < FILE_BYTES
+                        && (read = in.read(bytes, length, FILE_BYTES - length)) != -1) {
+                    length += read;
+                }
+                if (length < FILE_BYTES) {
+                    return false;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (FileNotFoundException e) {
+            // Not published yet, or deleted since
+            return false;
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error reading the forecast snapshot " + file, e);
+            return false;
+        }
+        return read(day.mBuffer, WeatherContract.normalizeDate(System.currentTimeMillis()), day);
+    }
+
+    // Today straight from the provider, the round trip the snapshot saves its readers, kept to
+    // measure it against.
+    static boolean queryToday(Context context, String locationSetting, Day day) {
+        Cursor cursor = context.getContentResolver().query(
+                WeatherEntry.buildWeatherLocationToday(locationSetting), SNAPSHOT_COLUMNS,
+                null, null, null);
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            if (!cursor.moveToFirst()) {
+                return false;
+            }
+            day.date = cursor.getLong(COL_DATE);
+            day.weatherId = cursor.getInt(COL_WEATHER_ID);
+            day.minTemp = cursor.getDouble(COL_FIRST_MEASUREMENT);
+            day.maxTemp = cursor.getDouble(COL_FIRST_MEASUREMENT + 1);
+            day.humidity = cursor.getDouble(COL_FIRST_MEASUREMENT + 2);
+            day.pressure = cursor.getDouble(COL_FIRST_MEASUREMENT + 3);
+            day.windSpeed = cursor.getDouble(COL_FIRST_MEASUREMENT + 4);
+            day.degrees = cursor.getDouble(COL_FIRST_MEASUREMENT + 5);
+            day.shortDesc = cursor.getString(COL_SHORT_DESC);
+            return true;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Writes the snapshot of the location's forecast from what the provider now has.  Called by
+     * the sync after it stores a forecast, which also leaves the ForecastRepository holding the
+     * new forecast for the widgets updated next.
+     */
+    public static void publish(Context context, String locationSetting) {
+        ForecastRepository.Forecast forecast =
+                ForecastRepository.getInstance(context).getForecast(locationSetting);
+        if (forecast == null) {
+            return;
+        }
+        int count = Math.min(forecast.getCount(), MAX_DAYS);
+        Day[] days = new Day[count];
+        for (int i = 0; i < count; i++) {
+            days[i] = new Day();
+            copyDay(forecast, i, days[i]);
+        }
+
+        try {
+            write(getFile(context, locationSetting), days, count);
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error publishing the forecast snapshot for " + locationSetting, e);
+        }
+    }
+
+    private static void copyDay(ForecastRepository.Forecast forecast, int i, Day day) {
+        day.date = forecast.getDate(i);
+        day.weatherId = forecast.getWeatherId(i);
+        day.minTemp = forecast.getMinTemp(i);
+        day.maxTemp = forecast.getMaxTemp(i);
+        day.humidity = forecast.getHumidity(i);
+        day.pressure = forecast.getPressure(i);
+        day.windSpeed = forecast.getWindSpeed(i);
+        day.degrees = forecast.getDegrees(i);
+        day.shortDesc = forecast.getShortDesc(i);
+    }
+
+    static File getFile(Context context, String locationSetting) {
+        return new File(getDir(context), FILE_PREFIX + Uri.encode(locationSetting));
+    }
+
+    private static File getDir(Context context) {
+        return new File(context.getFilesDir(), SNAPSHOT_DIR);
+    }
+
+    /**
+     * Deletes the snapshots of every location, for when what the provider holds has changed
+     * under them in a way the sync won't republish by itself.
+     */
+    static void deleteAll(Context context) {
+        synchronized (sWriteLock) {
+            File[] files = getDir(context).listFiles();
+            if (files == null) {
+                return;
+            }
+            for (File file : files) {
+                if (!file.delete() && file.exists()) {
+                    Log.w(LOG_TAG, "Couldn't delete the forecast snapshot " + file);
+                }
+            }
+        }
+    }
+
+    static void write(File file, Day[] days, int count) throws IOException {
+        File dir = file.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Couldn't create " + dir);
+        }
+        ByteBuffer image = ByteBuffer.allocate(FILE_BYTES);
+        write(image, days, count);
+        synchronized (sWriteLock) {
+            File temp = new File(dir, file.getName() + TEMP_SUFFIX);
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(image.array());
+                // Durable before it replaces the old snapshot, so a crash can't leave a file
+                // that's only partly there
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+            if (!temp.renameTo(file)) {
+                temp.delete();
+                throw new IOException("Couldn't rename " + temp + " to " + file);
+            }
+        }
+    }
+
+    static void write(ByteBuffer image, Day[] days, int count) {
+        image.putInt(OFFSET_MAGIC, MAGIC);
+        image.putInt(OFFSET_VERSION, FORMAT_VERSION);
+        image.putInt(OFFSET_DAY_COUNT, count);
+        image.putLong(OFFSET_PUBLISHED, System.currentTimeMillis());
+        for (int i = 0; i < count; i++) {
+            Day day = days[i];
+            int offset = HEADER_BYTES + i * DAY_BYTES;
+            image.putLong(offset + DAY_DATE, day.date);
+            image.putInt(offset + DAY_WEATHER_ID, day.weatherId);
+            double[] measurements = {day.minTemp, day.maxTemp, day.humidity, day.pressure,
+                    day.windSpeed, day.degrees};
+            for (int m = 0; m < MEASUREMENT_COUNT; m++) {
+                image.putInt(offset + DAY_MEASUREMENTS + m * 4,
+                        (int) WeatherEntry.encodeMeasurement(measurements[m]));
+            }
+            byte[] desc = day.shortDesc == null ? new byte[0] : day.shortDesc.getBytes(UTF_8);
+            int length = Math.min(desc.length, DESC_BYTES - 1);
+            // Don't cut a character in half
+            while (length < desc.length && length > 0 && (desc[length] & 0xC0) == 0x80) {
+                length--;
+            }
+            image.put(offset + DAY_DESC, (byte) length);
+            for (int b = 0; b < length; b++) {
+                image.put(offset + DAY_DESC + 1 + b, desc[b]);
+            }
+        }
+        image.putInt(OFFSET_CHECKSUM, checksum(new CRC32(), image.array(), count));
+    }
+
+    // Copies the first day dated fromDate or later into day, returning whether there was one.
+    static boolean read(ByteBuffer buffer, long fromDate, Day day) {
+        if (buffer.getInt(OFFSET_MAGIC) != MAGIC
+                || buffer.getInt(OFFSET_VERSION) != FORMAT_VERSION) {
+            return false;
+        }
+        // Bounded, since nothing in the file can be trusted until its checksum matches
+        int count = Math.max(0, Math.min(buffer.getInt(OFFSET_DAY_COUNT), MAX_DAYS));
+        if (checksum(day.mCrc, buffer.array(), count) != buffer.getInt(OFFSET_CHECKSUM)) {
+            Log.w(LOG_TAG, "Forecast snapshot doesn't match its checksum");
+            return false;
+        }
+
+        for (int i = 0; i < count; i++) {
+            int offset = HEADER_BYTES + i * DAY_BYTES;
+            long date = buffer.getLong(offset + DAY_DATE);
+            if (date < fromDate) {
+                continue;
+            }
+            day.date = date;
+            day.weatherId = buffer.getInt(offset + DAY_WEATHER_ID);
+            day.minTemp = decode(buffer, offset, 0);
+            day.maxTemp = decode(buffer, offset, 1);
+            day.humidity = decode(buffer, offset, 2);
+            day.pressure = decode(buffer, offset, 3);
+            day.windSpeed = decode(buffer, offset, 4);
+            day.degrees = decode(buffer, offset, 5);
+            int length = Math.min(buffer.get(offset + DAY_DESC) & 0xFF, DESC_BYTES - 1);
+            day.shortDesc = new String(buffer.array(), offset + DAY_DESC + 1, length, UTF_8);
+            return true;
+        }
+        return false;
+    }
+
+    // The CRC-32 of a snapshot of count days, skipping the checksum itself.
+    private static int checksum(CRC32 crc, byte[] bytes, int count) {
+        crc.reset();
+        crc.update(bytes, 0, OFFSET_CHECKSUM);
+        crc.update(bytes, OFFSET_PUBLISHED,
+                HEADER_BYTES + count * DAY_BYTES - OFFSET_PUBLISHED);
+        return (int) crc.getValue();
+    }
+
+    private static double decode(ByteBuffer buffer, int dayOffset, int measurement) {
+        return WeatherEntry.decodeMeasurement(
+                buffer.getInt(dayOffset + DAY_MEASUREMENTS + measurement * 4));
+    }
+}
@@ -0,0 +1,430 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.Cursor;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteCursor;
+import android.database.sqlite.SQLiteCursorDriver;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.database.sqlite.SQLiteQuery;
+import android.net.Uri;
+import android.os.Build;
+
+import com.example.android.sunshine.app.data.WeatherContract.MetricsEntry;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency histograms and row counts for each kind of provider call, per URI match, plus a log
+ * of a sample of the slow ones with the SQL they ran and SQLite's plan for it.  Recording a call
+ * is a couple of atomic increments; the SQL is only turned into a string, and the plan only
+ * worked out, for the slow calls that get sampled.  Plans are worked out on a background thread,
+ * so a slow call's entry in the log has no plan until that's done.
+ *
+ * Also the cursor factory for the database, which is how it learns the SQL of each query, and
+ * how a query's cursor records it without being wrapped.
+ */
+class ProviderMetrics implements SQLiteDatabase.CursorFactory {
+
+    static final String OPERATION_QUERY = "query";
+    static final String OPERATION_BULK_INSERT = "bulkInsert";
+    static final String OPERATION_DELETE = "delete";
+    static final String OPERATION_WARM_UP = "warmUp";
+    static final String OPERATION_EXPORT = "export";
+    static final String OPERATION_IMPORT = "import";
+
+    // Bucket i counts calls that took from 2^i up to 2^(i+1) microseconds, and the last bucket
+    // everything from about a second on.
+    static final int HISTOGRAM_BUCKETS = 21;
+
+    // Calls at least this slow are candidates for the slow query log, of which one in
+    // SLOW_SAMPLE_RATE is logged.  Only the most recent MAX_SLOW_QUERIES are kept.
+    static final long SLOW_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    static final int SLOW_SAMPLE_RATE = 10;
+    static final int MAX_SLOW_QUERIES = 32;
+
+    private static final String SQL_PREFIX = "SQLiteQuery: ";
+
+    private final ConcurrentHashMap<String, Metric> mMetrics = new ConcurrentHashMap<>();
+    // The last query this thread ran, kept as the query object so that calls that aren't slow
+    // never pay for its string.
+    private final ThreadLocal<SQLiteQuery> mLastQuery = new ThreadLocal<>();
+    private final AtomicLong mSlowCalls = new AtomicLong();
+    private final ArrayDeque<SlowQuery> mSlowQueries = new ArrayDeque<>(MAX_SLOW_QUERIES);
+    // Explains the sampled slow calls one at a time, off the thread that made them, which could
+    // be the UI thread reading its cursor.
+    private final Executor mExplainExecutor = Executors.newSingleThreadExecutor();
+
+    /**
+     * Marks the start of a provider call on this thread, returning the time to pass to record.
+     */
+    long start() {
+        mLastQuery.remove();
+        return System.nanoTime();
+    }
+
+    /**
+     * Records a call that began at start and read or wrote the given number of rows.  If it's
+     * sampled into the slow query log, its plan is worked out on db.
+     */
+    void record(String operation, int match, Uri uri, long start, int rows, SQLiteDatabase db) {
+        record(operation, match, uri, System.nanoTime() - start, rows, db, mLastQuery.get());
+    }
+
+    /**
+     * Records a query call that began at start, returning its cursor.  A cursor this factory made
+     * records the call itself once it's first counted, which is when its query runs, so a cursor
+     * that's only asked for its columns never runs it.  Any other cursor, a cached result say,
+     * is counted and recorded now.
+     */
+    Cursor recordQuery(int match, Uri uri, long start, Cursor cursor, SQLiteDatabase db) {
+        if (cursor instanceof RecordingCursor) {
+            ((RecordingCursor) cursor).arm(match, uri, System.nanoTime() - start, db);
+        } else if (cursor != null) {
+            int rows = cursor.getCount();
+            record(OPERATION_QUERY, match, uri, System.nanoTime() - start, rows, db,
+                    mLastQuery.get());
+        }
+        return cursor;
+    }
+
+    private void record(String operation, int match, Uri uri, long nanos, int rows,
+                        SQLiteDatabase db, SQLiteQuery lastQuery) {
+        String key = operation + ":" + match;
+        Metric metric = mMetrics.get(key);
+        if (metric == null) {
+            metric = new Metric(operation, match, uri.getPath());
+            Metric existing = mMetrics.putIfAbsent(key, metric);
+            if (existing != null) {
+                metric = existing;
+            }
+        }
+        metric.add(nanos, rows);
+
+        if (nanos >= SLOW_NANOS && mSlowCalls.getAndIncrement() % SLOW_SAMPLE_RATE == 0) {
+            final String sql = getSql(lastQuery);
+            final SlowQuery slowQuery = new SlowQuery(System.currentTimeMillis(), operation,
+                    uri.toString(), nanos, rows, sql);
+            synchronized (mSlowQueries) {
+                if (mSlowQueries.size() == MAX_SLOW_QUERIES) {
+                    mSlowQueries.removeFirst();
+                }
+                mSlowQueries.addLast(slowQuery);
+            }
+            if (sql != null && db != null) {
+                final SQLiteDatabase database = db;
+                mExplainExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        slowQuery.mPlan = explain(database, sql);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * The SQL of the last query run on this thread since the last call to start, or null if
+     * there wasn't one.
+     */
+    String getLastSql() {
+        return getSql(mLastQuery.get());
+    }
+
+    private static String getSql(SQLiteQuery query) {
+        if (query == null) {
+            return null;
+        }
+        String sql = query.toString();
+        return sql.startsWith(SQL_PREFIX) ? sql.substring(SQL_PREFIX.length()) : sql;
+    }
+
+    @Override
+    @SuppressWarnings("deprecation")
+    public Cursor newCursor(SQLiteDatabase db, SQLiteCursorDriver masterQuery, String editTable,
+                            SQLiteQuery query) {
+        mLastQuery.set(query);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            return new RecordingCursor(masterQuery, editTable, query);
+        }
+        return new RecordingCursor(db, masterQuery, editTable, query);
+    }
+
+    // A plain SQLiteCursor, so callers still see a windowed, cross-process cursor, that records
+    // its query once recordQuery has armed it.  SQLite runs the query the first time the cursor
+    // is counted, which every move does first, so that's when it's recorded, timing the query's
+    // preparation and that first count but not whatever the caller did in between.  A cursor
+    // closed without being counted is recorded then, as a call that read no rows.  Cursors that
+    // were never armed, like those of the provider's own lookups, record nothing.
+    private final class RecordingCursor extends SQLiteCursor {
+        private final SQLiteQuery mQuery;
+        private boolean mArmed;
+        private int mMatch;
+        private Uri mUri;
+        private long mPrepareNanos;
+        private SQLiteDatabase mDb;
+
+        RecordingCursor(SQLiteCursorDriver driver, String editTable, SQLiteQuery query) {
+            super(driver, editTable, query);
+            mQuery = query;
+        }
+
+        @SuppressWarnings("deprecation")
+        RecordingCursor(SQLiteDatabase db, SQLiteCursorDriver driver, String editTable,
+                        SQLiteQuery query) {
+            super(db, driver, editTable, query);
+            mQuery = query;
+        }
+
+        void arm(int match, Uri uri, long prepareNanos, SQLiteDatabase db) {
+            mMatch = match;
+            mUri = uri;
+            mPrepareNanos = prepareNanos;
+            mDb = db;
+            mArmed = true;
+        }
+
+        @Override
+        public int getCount() {
+            if (!mArmed) {
+                return super.getCount();
+            }
+            mArmed = false;
+            long readStart = System.nanoTime();
+            int rows = super.getCount();
+            record(OPERATION_QUERY, mMatch, mUri, mPrepareNanos + System.nanoTime() - readStart,
+                    rows, mDb, mQuery);
+            return rows;
+        }
+
+        @Override
+        public void close() {
+            if (mArmed) {
+                mArmed = false;
+                record(OPERATION_QUERY, mMatch, mUri, mPrepareNanos, 0, mDb, mQuery);
+            }
+            super.close();
+        }
+    }
+
+    // SQLite's plan for sql, one step per line.  Parameters are left unbound, which doesn't
+    // change the plan, and null comes back if there is no plan to be had, including when the
+    // database was closed before the plan's turn came.
+    private static String explain(SQLiteDatabase db, String sql) {
+        Cursor cursor = null;
+        try {
+            cursor = db.rawQuery("EXPLAIN QUERY PLAN " + sql, null);
+            int detail = cursor.getColumnIndex("detail");
+            StringBuilder plan = new StringBuilder();
+            while (detail != -1 && cursor.moveToNext()) {
+                if (plan.length() > 0) {
+                    plan.append('\n');
+                }
+                plan.append(cursor.getString(detail));
+            }
+            return plan.toString();
+        } catch (SQLiteException | IllegalStateException e) {
+            return null;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * A row per operation and URI match, with its latency percentiles estimated from the
+     * histogram.
+     */
+    Cursor getMetrics() {
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                MetricsEntry.COLUMN_OPERATION,
+                MetricsEntry.COLUMN_MATCH,
+                MetricsEntry.COLUMN_PATH,
+                MetricsEntry.COLUMN_CALLS,
+                MetricsEntry.COLUMN_ROWS,
+                MetricsEntry.COLUMN_TOTAL_MILLIS,
+                MetricsEntry.COLUMN_P50_MILLIS,
+                MetricsEntry.COLUMN_P90_MILLIS,
+                MetricsEntry.COLUMN_P99_MILLIS,
+                MetricsEntry.COLUMN_MAX_MILLIS,
+                MetricsEntry.COLUMN_HISTOGRAM
+        }, mMetrics.size());
+        for (Metric metric : mMetrics.values()) {
+            long[] histogram = metric.getHistogram();
+            long calls = 0;
+            StringBuilder buckets = new StringBuilder();
+            for (long count : histogram) {
+                calls += count;
+                if (buckets.length() > 0) {
+                    buckets.append(',');
+                }
+                buckets.append(count);
+            }
+            cursor.addRow(new Object[]{
+                    metric.mOperation,
+                    metric.mMatch,
+                    metric.mPath,
+                    calls,
+                    metric.mRows.get(),
+                    toMillis(metric.mTotalNanos.get()),
+                    percentileMillis(histogram, calls, 0.50),
+                    percentileMillis(histogram, calls, 0.90),
+                    percentileMillis(histogram, calls, 0.99),
+                    toMillis(metric.mMaxNanos.get()),
+                    buckets.toString()
+            });
+        }
+        return cursor;
+    }
+
+    /**
+     * The slow query log, oldest first.
+     */
+    Cursor getSlowQueries() {
+        MatrixCursor cursor = new MatrixCursor(new String[]{
+                MetricsEntry.COLUMN_TIME,
+                MetricsEntry.COLUMN_OPERATION,
+                MetricsEntry.COLUMN_URI,
+                MetricsEntry.COLUMN_DURATION_MILLIS,
+                MetricsEntry.COLUMN_ROWS,
+                MetricsEntry.COLUMN_SQL,
+                MetricsEntry.COLUMN_PLAN
+        });
+        synchronized (mSlowQueries) {
+            for (SlowQuery query : mSlowQueries) {
+                cursor.addRow(new Object[]{query.mTime, query.mOperation, query.mUri,
+                        toMillis(query.mNanos), query.mRows, query.mSql, query.mPlan});
+            }
+        }
+        return cursor;
+    }
+
+    void reset() {
+        mMetrics.clear();
+        synchronized (mSlowQueries) {
+            mSlowQueries.clear();
+        }
+    }
+
+    static int bucketFor(long nanos) {
+        long micros = nanos / 1000;
+        int bucket = micros <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(micros);
+        return Math.min(bucket, HISTOGRAM_BUCKETS - 1);
+    }
+
+    // The upper bound of the bucket the percentile falls in, so never an underestimate.
+    static double percentileMillis(long[] histogram, long calls, double percentile) {
+        long rank = (long) Math.ceil(calls * percentile);
+        long seen = 0;
+        for (int bucket = 0; bucket < histogram.length; bucket++) {
+            seen += histogram[bucket];
+            if (seen >= rank && seen > 0) {
+                return (1L << (bucket + 1)) / 1000.0;
+            }
+        }
+        return 0;
+    }
+
+    private static double toMillis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder builder = new StringBuilder("ProviderMetrics{");
+        for (Metric metric : mMetrics.values()) {
+            long[] histogram = metric.getHistogram();
+            long calls = 0;
+            for (long count : histogram) {
+                calls += count;
+            }
+            builder.append("\n  ").append(metric.mOperation).append(' ').append(metric.mPath)
+                    .append(": calls=").append(calls)
+                    .append(", rows=").append(metric.mRows.get())
+                    .append(", p50=").append(percentileMillis(histogram, calls, 0.50))
+                    .append("ms, p99=").append(percentileMillis(histogram, calls, 0.99))
+                    .append("ms, max=").append(toMillis(metric.mMaxNanos.get())).append("ms");
+        }
+        synchronized (mSlowQueries) {
+            builder.append("\n  slow queries logged=").append(mSlowQueries.size());
+        }
+        return builder.append("\n}").toString();
+    }
+
+    static final class Metric {
+        final String mOperation;
+        final int mMatch;
+        // The path of the first URI recorded, as an example of what the match covers
+        final String mPath;
+        final AtomicLongArray mHistogram = new AtomicLongArray(HISTOGRAM_BUCKETS);
+        final AtomicLong mRows = new AtomicLong();
+        final AtomicLong mTotalNanos = new AtomicLong();
+        final AtomicLong mMaxNanos = new AtomicLong();
+
+        Metric(String operation, int match, String path) {
+            mOperation = operation;
+            mMatch = match;
+            mPath = path;
+        }
+
+        void add(long nanos, int rows) {
+            mHistogram.incrementAndGet(bucketFor(nanos));
+            mRows.addAndGet(rows);
+            mTotalNanos.addAndGet(nanos);
+            long max;
+            do {
+                max = mMaxNanos.get();
+            } while (nanos > max && !mMaxNanos.compareAndSet(max, nanos));
+        }
+
+        long[] getHistogram() {
+            long[] histogram = new long[HISTOGRAM_BUCKETS];
+            for (int bucket = 0; bucket < histogram.length; bucket++) {
+                histogram[bucket] = mHistogram.get(bucket);
+            }
+            return histogram;
+        }
+    }
+
+    static final class SlowQuery {
+        final long mTime;
+        final String mOperation;
+        final String mUri;
+        final long mNanos;
+        final int mRows;
+        final String mSql;
+        // Set by the explain executor, so null until it gets to this call
+        volatile String mPlan;
+
+        SlowQuery(long time, String operation, String uri, long nanos, int rows, String sql) {
+            mTime = time;
+            mOperation = operation;
+            mUri = uri;
+            mNanos = nanos;
+            mRows = rows;
+            mSql = sql;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+import android.database.AbstractCursor;
+import android.database.Cursor;
+import android.os.Build;
+import android.support.v4.util.LruCache;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An in-memory cache of recent per-location weather query results, kept as immutable snapshots
+ * and bounded by an estimate of their size in bytes.  Entries are tagged with the location they
+ * were read for, so a write to one location only throws away that location's results.
+ */
+class QueryCache {
+
+    // Results bigger than this aren't worth holding on to; they're a full history scan, not the
+    // handful of rows every widget asks for after a sync.
+    static final int MAX_CACHED_ROWS = 64;
+
+    private final LruCache<String, Snapshot> mCache;
+
+    // Bumped on every invalidation.  A query remembers the generation it started in and only
+    // stores its result if nothing was invalidated in the meantime, so a result read just before
+    // a write can't be put back into the cache after the write has cleared it.
+    private final AtomicLong mGeneration = new AtomicLong();
+
+    QueryCache(int maxBytes) {
+        mCache = new LruCache<String, Snapshot>(maxBytes) {
+            @Override
+            protected int sizeOf(String key, Snapshot value) {
+                return key.length() * 2 + value.mBytes;
+            }
+        };
+    }
+
+    long getGeneration() {
+        return mGeneration.get();
+    }
+
+    /**
+     * Returns a new cursor over the cached result for key, or null if there isn't one.
+     */
+    Cursor get(String key) {
+        Snapshot snapshot = mCache.get(key);
+        return snapshot == null ? null : new SnapshotCursor(snapshot);
+    }
+
+    /**
+     * Reads cursor into a snapshot and, if no invalidation has happened since generation, caches
+     * it under key.  Returns a cursor over the snapshot, or the original cursor untouched if it
+     * has too many rows to be worth caching.
+     */
+    Cursor put(String key, long locationId, long generation, Cursor cursor) {
+        if (cursor.getCount() > MAX_CACHED_ROWS) {
+            return cursor;
+        }
+        Snapshot snapshot;
+        try {
+            snapshot = new Snapshot(cursor, locationId);
+        } finally {
+            cursor.close();
+        }
+        synchronized (this) {
+            if (generation == mGeneration.get()) {
+                mCache.put(key, snapshot);
+            }
+        }
+        return new SnapshotCursor(snapshot);
+    }
+
+    /**
+     * Drops every result read for the given location.
+     */
+    synchronized void invalidate(long locationId) {
+        mGeneration.incrementAndGet();
+        for (Map.Entry<String, Snapshot> entry : mCache.snapshot().entrySet()) {
+            if (entry.getValue().mLocationId == locationId) {
+                mCache.remove(entry.getKey());
+            }
+        }
+    }
+
+    synchronized void invalidateAll() {
+        mGeneration.incrementAndGet();
+        mCache.evictAll();
+    }
+
+    int getHitCount() {
+        return mCache.hitCount();
+    }
+
+    int getMissCount() {
+        return mCache.missCount();
+    }
+
+    int getEvictionCount() {
+        return mCache.evictionCount();
+    }
+
+    float getHitRate() {
+        int lookups = getHitCount() + getMissCount();
+        return lookups == 0 ? 0f : (float) getHitCount() / lookups;
+    }
+
+    int getSizeInBytes() {
+        return mCache.size();
+    }
+
+    int getMaxSizeInBytes() {
+        return mCache.maxSize();
+    }
+
+    @Override
+    public String toString() {
+        return "QueryCache{hits=" + getHitCount() + ", misses=" + getMissCount() +
+                ", hitRate=" + getHitRate() + ", evictions=" + getEvictionCount() +
+                ", bytes=" + getSizeInBytes() + "/" + getMaxSizeInBytes() + "}";
+    }
+
+    /**
+     * The column names and values of a query result, copied out of its cursor.
+     */
+    static final class Snapshot {
+        // Rough per-object overheads used for the size estimate.
+        private static final int OBJECT_BYTES = 16;
+        private static final int REFERENCE_BYTES = 4;
+
+        final String[] mColumns;
+        final Object[][] mRows;
+        final long mLocationId;
+        final int mBytes;
+
+        Snapshot(Cursor cursor, long locationId) {
+            mColumns = cursor.getColumnNames();
+            mRows = new Object[cursor.getCount()][];
+            mLocationId = locationId;
+
+            int bytes = OBJECT_BYTES + mColumns.length * REFERENCE_BYTES;
+            int row = 0;
+            while (cursor.moveToNext()) {
+                Object[] values = new Object[mColumns.length];
+                bytes += OBJECT_BYTES + values.length * REFERENCE_BYTES;
+                for (int column = 0; column < values.length; column++) {
+                    values[column] = readValue(cursor, column);
+                    bytes += sizeOf(values[column]);
+                }
+                mRows[row++] = values;
+            }
+            mBytes = bytes;
+        }
+
+        private static Object readValue(Cursor cursor, int column) {
+            // Cursor.getType only exists from Honeycomb on; before that everything is kept as the
+            // string SQLite hands back, which the snapshot cursor converts on the way out.
+            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+                return cursor.getString(column);
+            }
+            switch (cursor.getType(column)) {
+                case Cursor.FIELD_TYPE_INTEGER:
+                    return cursor.getLong(column);
+                case Cursor.FIELD_TYPE_FLOAT:
+                    return cursor.getDouble(column);
+                case Cursor.FIELD_TYPE_STRING:
+                    return cursor.getString(column);
+                case Cursor.FIELD_TYPE_BLOB:
+                    return cursor.getBlob(column);
+                default:
+                    return null;
+            }
+        }
+
+        private static int sizeOf(Object value) {
+            if (value == null) {
+                return 0;
+            } else if (value instanceof String) {
+                return OBJECT_BYTES * 2 + ((String) value).length() * 2;
+            } else if (value instanceof byte[]) {
+                return OBJECT_BYTES + ((byte[]) value).length;
+            }
+            return OBJECT_BYTES + 8;
+        }
+    }
+
+    /**
+     * A read-only cursor over a snapshot.  Any number of these can share the same snapshot.
+     */
+    static final class SnapshotCursor extends AbstractCursor {
+        private final Snapshot mSnapshot;
+
+        SnapshotCursor(Snapshot snapshot) {
+            mSnapshot = snapshot;
+        }
+
+        private Object get(int column) {
+            if (column < 0 || column >= mSnapshot.mColumns.length) {
+                throw new IllegalArgumentException("Requested column: " + column +
+                        ", # of columns: " + mSnapshot.mColumns.length);
+            }
+            if (mPos < 0 || mPos >= mSnapshot.mRows.length) {
+                throw new IndexOutOfBoundsException("Requested row: " + mPos +
+                        ", # of rows: " + mSnapshot.mRows.length);
+            }
+            return mSnapshot.mRows[mPos][column];
+        }
+
+        @Override
+        public int getCount() {
+            return mSnapshot.mRows.length;
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mSnapshot.mColumns;
+        }
+
+        @Override
+        public String getString(int column) {
+            Object value = get(column);
+            return value == null ? null : value.toString();
+        }
+
+        @Override
+        public short getShort(int column) {
+            return (short) getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return (int) getLong(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return 0;
+            } else if (value instanceof Number) {
+                return ((Number) value).longValue();
+            }
+            return (long) Double.parseDouble(value.toString());
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return (float) getDouble(column);
+        }
+
+        @Override
+        public double getDouble(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return 0;
+            } else if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+            return Double.parseDouble(value.toString());
+        }
+
+        @Override
+        public byte[] getBlob(int column) {
+            return (byte[]) get(column);
+        }
+
+        @Override
+        public int getType(int column) {
+            Object value = get(column);
+            if (value == null) {
+                return Cursor.FIELD_TYPE_NULL;
+            } else if (value instanceof Long) {
+                return Cursor.FIELD_TYPE_INTEGER;
+            } else if (value instanceof Double) {
+                return Cursor.FIELD_TYPE_FLOAT;
+            } else if (value instanceof byte[]) {
+                return Cursor.FIELD_TYPE_BLOB;
+            }
+            return Cursor.FIELD_TYPE_STRING;
+        }
+
+        @Override
+        public boolean isNull(int column) {
+            return get(column) == null;
+        }
+    }
+}
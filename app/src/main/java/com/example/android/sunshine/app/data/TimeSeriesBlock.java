@@ -0,0 +1,270 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.data;
+
+/**
+ * The compressed form of one location-day of hourly weather, the block the hourly table keeps
+ * in a row where the weather table would take one row per point.
+ *
+ * Points are packed one after another in time order, each as its time and then its values, so
+ * a range can be decoded from the start of the block and left as soon as it's passed.  A time
+ * is stored as the change from the step between the two points before it, which for a series
+ * at a fixed interval is always nothing; a value is stored as the change from the point
+ * before.  Values are whole numbers, the measurements in the weather table's stored form, so
+ * their changes are small and exact.  Each of those numbers is written as a prefix of a few bits
+ * saying how wide it is followed by that many bits, with nothing after a 0 prefix, which is
+ * what a steady time or an unchanged value comes to.  A point of an hourly series comes to
+ * eight or nine bytes, a fraction of what a row and its index entries take.
+ *
+ * A block starts with a format version byte and the number of points, then the bits.
+ */
+final class TimeSeriesBlock {
+
+    static final int FORMAT_VERSION = 1;
+
+    // The values of a point, in the order they're packed.
+    static final int VALUE_TEMP = 0;
+    static final int VALUE_HUMIDITY = 1;
+    static final int VALUE_PRESSURE = 2;
+    static final int VALUE_WIND_SPEED = 3;
+    static final int VALUE_DEGREES = 4;
+    static final int VALUE_WEATHER_ID = 5;
+    static final int VALUE_COUNT = 6;
+
+    static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    // The most points one block takes: a point a minute.  Far more than any forecast has.
+    static final int MAX_POINTS = 24 * 60;
+
+    private static final int HEADER_BYTES = 3;
+
+    private TimeSeriesBlock() {
+    }
+
+    /**
+     * The day, in UTC, that the block a point at time belongs in starts at.
+     */
+    static long getBlockDate(long time) {
+        long day = time / DAY_MILLIS;
+        if (time % DAY_MILLIS < 0) {
+            day--;
+        }
+        return day * DAY_MILLIS;
+    }
+
+    /**
+     * Packs the first count points, which must be in ascending time order within the day
+     * starting at date.  values[i] holds the VALUE_COUNT values of the point at times[i].
+     */
+    static byte[] encode(long date, long[] times, long[][] values, int count) {
+        if (count > MAX_POINTS) {
+            throw new IllegalArgumentException(count + " points in one block");
+        }
+        BitWriter writer = new BitWriter(HEADER_BYTES + count * 8);
+        writer.writeByte(FORMAT_VERSION);
+        writer.writeByte(count >>> 8);
+        writer.writeByte(count);
+
+        long previousTime = date;
+        long previousStep = 0;
+        long[] previousValues = new long[VALUE_COUNT];
+        for (int i = 0; i < count; i++) {
+            long time = times[i];
+            if (time < previousTime || getBlockDate(time) != date) {
+                throw new IllegalArgumentException("Point at " + time + " out of order or " +
+                        "outside the day " + date);
+            }
+            long step = time - previousTime;
+            writer.writeSigned(step - previousStep);
+            previousStep = step;
+            previousTime = time;
+            for (int v = 0; v < VALUE_COUNT; v++) {
+                writer.writeSigned(values[i][v] - previousValues[v]);
+                previousValues[v] = values[i][v];
+            }
+        }
+        return writer.toByteArray();
+    }
+
+    /**
+     * The number of points in a block, without decoding it.
+     */
+    static int getCount(byte[] block) {
+        checkVersion(block);
+        return ((block[1] & 0xff) << 8) | (block[2] & 0xff);
+    }
+
+    private static void checkVersion(byte[] block) {
+        if (block.length < HEADER_BYTES || block[0] != FORMAT_VERSION) {
+            throw new IllegalArgumentException("Not a block of format version " +
+                    FORMAT_VERSION);
+        }
+    }
+
+    /**
+     * Reads the points of a block in time order, one at a time, without unpacking those it
+     * doesn't get to.
+     */
+    static final class Decoder {
+        private final BitReader mReader;
+        private final int mCount;
+        private final long[] mValues = new long[VALUE_COUNT];
+        private int mIndex = -1;
+        private long mTime;
+        private long mStep;
+
+        Decoder(byte[] block, long date) {
+            mCount = getCount(block);
+            mReader = new BitReader(block, HEADER_BYTES);
+            mTime = date;
+        }
+
+        /**
+         * Moves to the next point, returning false once there are none left.
+         */
+        boolean next() {
+            if (mIndex + 1 >= mCount) {
+                mIndex = mCount;
+                return false;
+            }
+            mIndex++;
+            mStep += mReader.readSigned();
+            mTime += mStep;
+            for (int v = 0; v < VALUE_COUNT; v++) {
+                mValues[v] += mReader.readSigned();
+            }
+            return true;
+        }
+
+        /**
+         * Moves to the first point at or after time, returning false if there's none.
+         */
+        boolean seek(long time) {
+            while (next()) {
+                if (mTime >= time) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long getTime() {
+            return mTime;
+        }
+
+        long getValue(int value) {
+            return mValues[value];
+        }
+    }
+
+    // The widths of the numbers each prefix stands for: a number is written with the first
+    // prefix whose width holds it, as that many bits of two's complement.
+    private static final int[] PREFIX_BITS = {1, 2, 3, 4, 5, 5};
+    private static final int[] PREFIXES = {0x0, 0x2, 0x6, 0xe, 0x1e, 0x1f};
+    private static final int[] WIDTHS = {0, 7, 9, 12, 32, 64};
+
+    private static final class BitWriter {
+        private byte[] mBytes;
+        private long mBitCount;
+
+        BitWriter(int expectedBytes) {
+            mBytes = new byte[Math.max(expectedBytes, HEADER_BYTES + 1)];
+        }
+
+        void writeByte(int value) {
+            writeBits(value & 0xff, 8);
+        }
+
+        void writeSigned(long value) {
+            int bucket = 0;
+            while (WIDTHS[bucket] < 64 && !fits(value, WIDTHS[bucket])) {
+                bucket++;
+            }
+            writeBits(PREFIXES[bucket], PREFIX_BITS[bucket]);
+            if (WIDTHS[bucket] > 0) {
+                writeBits(value, WIDTHS[bucket]);
+            }
+        }
+
+        private static boolean fits(long value, int width) {
+            if (width == 0) {
+                return value == 0;
+            }
+            long limit = 1L << (width - 1);
+            return value >= -limit && value < limit;
+        }
+
+        // Writes the low bits of value, most significant first.
+        private void writeBits(long value, int bits) {
+            for (int bit = bits - 1; bit >= 0; bit--) {
+                int index = (int) (mBitCount >>> 3);
+                if (index == mBytes.length) {
+                    byte[] grown = new byte[mBytes.length * 2];
+                    System.arraycopy(mBytes, 0, grown, 0, mBytes.length);
+                    mBytes = grown;
+                }
+                if (((value >>> bit) & 1) != 0) {
+                    mBytes[index] |= (byte) (0x80 >>> (mBitCount & 7));
+                }
+                mBitCount++;
+            }
+        }
+
+        byte[] toByteArray() {
+            byte[] bytes = new byte[(int) ((mBitCount + 7) >>> 3)];
+            System.arraycopy(mBytes, 0, bytes, 0, bytes.length);
+            return bytes;
+        }
+    }
+
+    private static final class BitReader {
+        private final byte[] mBytes;
+        private long mBitIndex;
+
+        BitReader(byte[] bytes, int offset) {
+            mBytes = bytes;
+            mBitIndex = offset * 8L;
+        }
+
+        long readSigned() {
+            int bucket = 0;
+            // Each 1 moves on a width, until a 0 or the last prefix
+            while (bucket < PREFIX_BITS.length - 1 && readBit() == 1) {
+                bucket++;
+            }
+            int width = WIDTHS[bucket];
+            if (width == 0) {
+                return 0;
+            }
+            long value = 0;
+            for (int i = 0; i < width; i++) {
+                value = (value << 1) | readBit();
+            }
+            // Sign extend
+            return width == 64 ? value : (value << (64 - width)) >> (64 - width);
+        }
+
+        private int readBit() {
+            int index = (int) (mBitIndex >>> 3);
+            if (index >= mBytes.length) {
+                throw new IllegalArgumentException("Block ends part way through a point");
+            }
+            int bit = (mBytes[index] >>> (7 - (mBitIndex & 7))) & 1;
+            mBitIndex++;
+            return bit;
+        }
+    }
+}
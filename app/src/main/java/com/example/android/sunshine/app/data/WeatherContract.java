@@ -15,12 +15,21 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.ContentResolver;
 import android.content.ContentUris;
+import android.content.ContentValues;
+import android.database.AbstractWindowedCursor;
+import android.database.Cursor;
+import android.database.CursorWindow;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
 import android.provider.BaseColumns;
 import android.text.format.Time;
 
+import java.util.ArrayList;
+
 /**
  * Defines table and column names for the weather database.
  */
@@ -43,12 +52,156 @@ public class WeatherContract {
     // At least, let's hope not.  Don't be that dev, reader.  Don't be that dev.
     public static final String PATH_WEATHER = "weather";
     public static final String PATH_LOCATION = "location";
+    public static final String PATH_HISTORY = "history";
+    public static final String PATH_CITY = "city";
+    public static final String PATH_METRICS = "metrics";
+    public static final String PATH_BACKUP = "backup";
+    public static final String PATH_HOURLY = "hourly";
+
+    // Provider method that prunes old rows in batches and hands the freed pages back to the file
+    // system.  Weather older than EXTRA_WEATHER_RETENTION_DAYS days before today is deleted, and
+    // with EXTRA_PRUNE_LOCATIONS so are locations that have no weather, hourly points or
+    // forecast history left.
+    // Forecast history and hourly points are kept for EXTRA_HISTORY_RETENTION_DAYS days.  The
+    // number of bytes the database shrank by comes back in EXTRA_BYTES_RECLAIMED.
+    // A compaction started with an EXTRA_COMPACT_TOKEN can be stopped by calling
+    // METHOD_CANCEL_COMPACT with that token as the arg: it stops after the batch it's on, and
+    // skips the vacuum if it hasn't started it.  EXTRA_CANCELLED says whether it was stopped.
+    public static final String METHOD_COMPACT = "compact";
+    public static final String METHOD_CANCEL_COMPACT = "cancelCompact";
+    public static final String EXTRA_WEATHER_RETENTION_DAYS = "weather_retention_days";
+    public static final String EXTRA_PRUNE_LOCATIONS = "prune_locations";
+    public static final String EXTRA_HISTORY_RETENTION_DAYS = "history_retention_days";
+    public static final String EXTRA_COMPACT_TOKEN = "compact_token";
+    public static final String EXTRA_BYTES_RECLAIMED = "bytes_reclaimed";
+    public static final String EXTRA_CANCELLED = "cancelled";
+
+    // Provider method that runs several queries in one transaction, so that screens showing
+    // more than one view of the data see the same snapshot of it, for the cost of a single call
+    // into the provider.  EXTRA_QUERIES is a list of bundles made by buildQuery, and the results
+    // come back in the same order in EXTRA_RESULTS, each holding its column names, rows and
+    // EXTRA_ROW_COUNT, the number of rows the query had.  A result has to fit in one cursor
+    // window, a couple of megabytes, and a batch with one that doesn't fails with an
+    // IllegalArgumentException, so batches are meant for the few rows a screen shows rather
+    // than whole tables.  While the batch runs it holds the database's write lock, which is
+    // how the framework begins a transaction, so a sync waits for it.
+    public static final String METHOD_QUERY_BATCH = "queryBatch";
+    public static final String EXTRA_QUERIES = "queries";
+    public static final String EXTRA_RESULTS = "results";
+    public static final String EXTRA_URI = "uri";
+    public static final String EXTRA_PROJECTION = "projection";
+    public static final String EXTRA_SELECTION = "selection";
+    public static final String EXTRA_SELECTION_ARGS = "selection_args";
+    public static final String EXTRA_SORT_ORDER = "sort_order";
+    public static final String EXTRA_COLUMNS = "columns";
+    public static final String EXTRA_WINDOW = "window";
+    public static final String EXTRA_ROW_COUNT = "row_count";
+
+    public static Bundle buildQuery(Uri uri, String[] projection, String selection,
+                                    String[] selectionArgs, String sortOrder) {
+        Bundle query = new Bundle();
+        query.putString(EXTRA_URI, uri.toString());
+        query.putStringArray(EXTRA_PROJECTION, projection);
+        query.putString(EXTRA_SELECTION, selection);
+        query.putStringArray(EXTRA_SELECTION_ARGS, selectionArgs);
+        query.putString(EXTRA_SORT_ORDER, sortOrder);
+        return query;
+    }
+
+    // Runs the queries built by buildQuery as one batch.  Returns a cursor per query, in order,
+    // which the caller has to close.
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static Cursor[] queryBatch(ContentResolver resolver, Bundle... queries) {
+        ArrayList<Bundle> queryList = new ArrayList<Bundle>(queries.length);
+        for (Bundle query : queries) {
+            queryList.add(query);
+        }
+        Bundle extras = new Bundle();
+        extras.putParcelableArrayList(EXTRA_QUERIES, queryList);
+        Bundle result = resolver.call(BASE_CONTENT_URI, METHOD_QUERY_BATCH, null, extras);
+
+        ArrayList<Bundle> results = result.getParcelableArrayList(EXTRA_RESULTS);
+        Cursor[] cursors = new Cursor[results.size()];
+        for (int i = 0; i < cursors.length; i++) {
+            Bundle queryResult = results.get(i);
+            CursorWindow window = queryResult.getParcelable(EXTRA_WINDOW);
+            if (window.getNumRows() != queryResult.getInt(EXTRA_ROW_COUNT)) {
+                throw new IllegalStateException("Batched query " + i + " came back with " +
+                        window.getNumRows() + " of its " + queryResult.getInt(EXTRA_ROW_COUNT) +
+                        " rows");
+            }
+            cursors[i] = new WindowCursor(queryResult.getStringArray(EXTRA_COLUMNS), window);
+        }
+        return cursors;
+    }
+
+    // A cursor over the rows of one batched query result.  Closing it releases its window.
+    private static final class WindowCursor extends AbstractWindowedCursor {
+        private final String[] mColumns;
+
+        WindowCursor(String[] columns, CursorWindow window) {
+            mColumns = columns;
+            setWindow(window);
+        }
+
+        @Override
+        public int getCount() {
+            return mWindow.getNumRows();
+        }
+
+        @Override
+        public String[] getColumnNames() {
+            return mColumns;
+        }
+    }
+
+    // Path segments for spatial lookups of locations and cities, e.g.
+    // content://com.example.android.sunshine.app/location/nearest?lat=51.5&lon=-0.12&limit=1
+    // returns the stored locations closest to a point, nearest first, with their distance from
+    // it in kilometres in COLUMN_DISTANCE.  .../city/bounds?south=..&west=..&north=..&east=..
+    // returns the cities inside a box.  Nearest looks across the antimeridian, but a bounds box
+    // doesn't wrap around it.  Coordinates out of range are refused with an
+    // IllegalArgumentException.
+    public static final String PATH_NEAREST = "nearest";
+    public static final String PATH_BOUNDS = "bounds";
+    public static final String PARAM_LATITUDE = "lat";
+    public static final String PARAM_LONGITUDE = "lon";
+    public static final String PARAM_NEAREST_LIMIT = "limit";
+    public static final String PARAM_SOUTH = "south";
+    public static final String PARAM_WEST = "west";
+    public static final String PARAM_NORTH = "north";
+    public static final String PARAM_EAST = "east";
+    public static final String COLUMN_DISTANCE = "distance";
+
+    // contentUri is LocationEntry.CONTENT_URI or CityEntry.CONTENT_URI
+    public static Uri buildNearestUri(Uri contentUri, double latitude, double longitude,
+                                      int limit) {
+        return contentUri.buildUpon().appendPath(PATH_NEAREST)
+                .appendQueryParameter(PARAM_LATITUDE, Double.toString(latitude))
+                .appendQueryParameter(PARAM_LONGITUDE, Double.toString(longitude))
+                .appendQueryParameter(PARAM_NEAREST_LIMIT, Integer.toString(limit)).build();
+    }
+
+    public static Uri buildBoundsUri(Uri contentUri, double south, double west, double north,
+                                     double east) {
+        return contentUri.buildUpon().appendPath(PATH_BOUNDS)
+                .appendQueryParameter(PARAM_SOUTH, Double.toString(south))
+                .appendQueryParameter(PARAM_WEST, Double.toString(west))
+                .appendQueryParameter(PARAM_NORTH, Double.toString(north))
+                .appendQueryParameter(PARAM_EAST, Double.toString(east)).build();
+    }
 
     // To make it easy to query for the exact date, we normalize all dates that go into
     // the database to the start of the the Julian day at UTC.
     public static long normalizeDate(long startDate) {
+        return normalizeDate(startDate, new Time());
+    }
+
+    // Same as above, but reuses the given Time so that callers normalizing many dates in a row
+    // (such as a bulk insert) don't allocate one per date.  The Time is not thread safe, so it
+    // must not be shared between threads.
+    public static long normalizeDate(long startDate, Time time) {
         // normalize the start date to the beginning of the (UTC) day
-        Time time = new Time();
         time.set(startDate);
         int julianDay = Time.getJulianDay(startDate, time.gmtoff);
         return time.setJulianDay(julianDay);
@@ -81,9 +234,27 @@ public class WeatherContract {
         public static final String COLUMN_COORD_LAT = "coord_lat";
         public static final String COLUMN_COORD_LONG = "coord_long";
 
+        // Spatial index over the coordinates, kept up to date by triggers on this table.
+        public static final String SPATIAL_INDEX_NAME = "location_rtree";
+
+        // Provider method that inserts locations, or updates the ones whose setting already
+        // exists, in a single transaction.  The values go in EXTRA_VALUES and the row ids come
+        // back in EXTRA_IDS, in the same order.
+        public static final String METHOD_UPSERT = "upsertLocations";
+        public static final String EXTRA_VALUES = "values";
+        public static final String EXTRA_IDS = "ids";
+
         public static Uri buildLocationUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
+
+        @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+        public static long[] upsertLocations(ContentResolver resolver, ContentValues... values) {
+            Bundle extras = new Bundle();
+            extras.putParcelableArray(EXTRA_VALUES, values);
+            Bundle result = resolver.call(CONTENT_URI, METHOD_UPSERT, null, extras);
+            return result.getLongArray(EXTRA_IDS);
+        }
     }
 
     /* Inner class that defines the table contents of the weather table */
@@ -99,6 +270,48 @@ public class WeatherContract {
 
         public static final String TABLE_NAME = "weather";
 
+        // Index over (location_id, date) used by every per-location forecast query.
+        public static final String INDEX_LOCATION_DATE = "weather_location_date";
+
+        // Path segment for weather addressed by the location's row id instead of its setting,
+        // e.g. content://com.example.android.sunshine.app/weather/id/5
+        // The matcher doesn't backtrack, so this and PATH_STATS can't be location settings, see
+        // isReservedLocationSetting.
+        public static final String PATH_LOCATION_ID = "id";
+
+        // Path segment for just the current day's weather of a location, e.g.
+        // content://com.example.android.sunshine.app/weather/94043/today
+        // This is the first row dated today or later, for consumers that only ever show one day.
+        public static final String PATH_TODAY = "today";
+
+        // Query parameters for reading a location's weather a page at a time.  A page holds at
+        // most PARAM_LIMIT rows strictly after PARAM_AFTER_DATE, in ascending date order, or
+        // strictly before PARAM_BEFORE_DATE, in descending order.  The last date of one page is
+        // the key for the next, so every page is a range scan of the (location_id, date) index
+        // rather than an OFFSET that has to step over all the rows before it.
+        public static final String PARAM_LIMIT = "limit";
+        public static final String PARAM_AFTER_DATE = "after_date";
+        public static final String PARAM_BEFORE_DATE = "before_date";
+
+        // Path segment for summary statistics over a date range, e.g.
+        // content://com.example.android.sunshine.app/weather/stats?location_id=5&from_date=...
+        // The result is a single row computed by SQLite over the (location_id, date) index, for
+        // every PARAM_LOCATION_ID given and dates from PARAM_FROM_DATE to PARAM_TO_DATE
+        // inclusive.  A projection picks which of the COLUMN_STATS_ columns to compute.
+        public static final String PATH_STATS = "stats";
+        public static final String PARAM_LOCATION_ID = "location_id";
+        public static final String PARAM_FROM_DATE = "from_date";
+        public static final String PARAM_TO_DATE = "to_date";
+
+        public static final String COLUMN_STATS_DAYS = "days";
+        public static final String COLUMN_STATS_LOWEST_TEMP = "lowest_temp";
+        public static final String COLUMN_STATS_HIGHEST_TEMP = "highest_temp";
+        public static final String COLUMN_STATS_AVERAGE_MIN_TEMP = "average_min_temp";
+        public static final String COLUMN_STATS_AVERAGE_MAX_TEMP = "average_max_temp";
+        public static final String COLUMN_STATS_AVERAGE_HUMIDITY = "average_humidity";
+        public static final String COLUMN_STATS_AVERAGE_PRESSURE = "average_pressure";
+        public static final String COLUMN_STATS_MAX_WIND_SPEED = "max_wind_speed";
+
         // Column with the foreign key into the location table.
         public static final String COLUMN_LOC_KEY = "location_id";
         // Date, stored as long in milliseconds since the epoch
@@ -110,45 +323,126 @@ public class WeatherContract {
         // e.g "clear" vs "sky is clear".
         public static final String COLUMN_SHORT_DESC = "short_desc";
 
-        // Min and max temperatures for the day (stored as floats)
+        // The measurement columns below are read and written as floats, but stored as whole
+        // multiples of 1 / MEASUREMENT_SCALE: an INTEGER of a byte or three where a REAL always
+        // takes eight, and faster to scan.  The API reports none of them to more than two decimal
+        // places, so nothing is lost.  Selections that compare them against a value have to
+        // scale it first, see encodeMeasurement.
+        public static final int MEASUREMENT_SCALE = 100;
+
+        // Min and max temperatures for the day, in degrees
         public static final String COLUMN_MIN_TEMP = "min";
         public static final String COLUMN_MAX_TEMP = "max";
 
-        // Humidity is stored as a float representing percentage
+        // Humidity as a percentage
         public static final String COLUMN_HUMIDITY = "humidity";
 
-        // Humidity is stored as a float representing percentage
+        // Pressure in hPa
         public static final String COLUMN_PRESSURE = "pressure";
 
-        // Windspeed is stored as a float representing windspeed  mph
+        // Windspeed in mph
         public static final String COLUMN_WIND_SPEED = "wind";
 
-        // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).  Stored as floats.
+        // Degrees are meteorological degrees (e.g, 0 is north, 180 is south).
         public static final String COLUMN_DEGREES = "degrees";
 
         public static Uri buildWeatherUri(long id) {
             return ContentUris.withAppendedId(CONTENT_URI, id);
         }
 
+        /**
+         * The stored form of a measurement, to compare it against the stored columns.
+         */
+        public static long encodeMeasurement(double value) {
+            return Math.round(value * MEASUREMENT_SCALE);
+        }
+
+        public static double decodeMeasurement(long stored) {
+            return stored / (double) MEASUREMENT_SCALE;
+        }
+
+        /**
+         * Whether a location setting is one of the path segments the weather URIs use for
+         * themselves.  "weather/stats" is the stats URI, not the weather of a location called
+         * "stats", so such a setting can't be addressed and the provider won't store it.
+         */
+        public static boolean isReservedLocationSetting(String locationSetting) {
+            return PATH_LOCATION_ID.equals(locationSetting) || PATH_STATS.equals(locationSetting);
+        }
+
+        private static Uri.Builder buildWeatherLocationUpon(String locationSetting) {
+            if (isReservedLocationSetting(locationSetting)) {
+                throw new IllegalArgumentException("Reserved location setting: " +
+                        locationSetting);
+            }
+            return CONTENT_URI.buildUpon().appendPath(locationSetting);
+        }
+
         /*
             Student: This is the buildWeatherLocation function you filled in.
          */
         public static Uri buildWeatherLocation(String locationSetting) {
-            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+            return buildWeatherLocationUpon(locationSetting).build();
         }
 
         public static Uri buildWeatherLocationWithStartDate(
                 String locationSetting, long startDate) {
             long normalizedDate = normalizeDate(startDate);
-            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+            return buildWeatherLocationUpon(locationSetting)
                     .appendQueryParameter(COLUMN_DATE, Long.toString(normalizedDate)).build();
         }
 
         public static Uri buildWeatherLocationWithDate(String locationSetting, long date) {
-            return CONTENT_URI.buildUpon().appendPath(locationSetting)
+            return buildWeatherLocationUpon(locationSetting)
+                    .appendPath(Long.toString(normalizeDate(date))).build();
+        }
+
+        public static Uri buildWeatherLocationToday(String locationSetting) {
+            return buildWeatherLocationUpon(locationSetting).appendPath(PATH_TODAY).build();
+        }
+
+        public static Uri buildWeatherLocationId(long locationId) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_LOCATION_ID)
+                    .appendPath(Long.toString(locationId)).build();
+        }
+
+        public static Uri buildWeatherLocationIdWithStartDate(long locationId, long startDate) {
+            long normalizedDate = normalizeDate(startDate);
+            return buildWeatherLocationId(locationId).buildUpon()
+                    .appendQueryParameter(COLUMN_DATE, Long.toString(normalizedDate)).build();
+        }
+
+        public static Uri buildWeatherLocationIdWithDate(long locationId, long date) {
+            return buildWeatherLocationId(locationId).buildUpon()
                     .appendPath(Long.toString(normalizeDate(date))).build();
         }
 
+        public static Uri buildWeatherStats(long fromDate, long toDate, long... locationIds) {
+            Uri.Builder builder = CONTENT_URI.buildUpon().appendPath(PATH_STATS)
+                    .appendQueryParameter(PARAM_FROM_DATE, Long.toString(normalizeDate(fromDate)))
+                    .appendQueryParameter(PARAM_TO_DATE, Long.toString(normalizeDate(toDate)));
+            for (long locationId : locationIds) {
+                builder.appendQueryParameter(PARAM_LOCATION_ID, Long.toString(locationId));
+            }
+            return builder.build();
+        }
+
+        public static Uri buildWeatherWithLimit(Uri weatherUri, int limit) {
+            return weatherUri.buildUpon()
+                    .appendQueryParameter(PARAM_LIMIT, Integer.toString(limit)).build();
+        }
+
+        // The date must already be normalized, e.g. taken from the last row of the previous page.
+        public static Uri buildWeatherPageAfter(Uri weatherUri, long afterDate, int limit) {
+            return buildWeatherWithLimit(weatherUri.buildUpon()
+                    .appendQueryParameter(PARAM_AFTER_DATE, Long.toString(afterDate)).build(), limit);
+        }
+
+        public static Uri buildWeatherPageBefore(Uri weatherUri, long beforeDate, int limit) {
+            return buildWeatherWithLimit(weatherUri.buildUpon()
+                    .appendQueryParameter(PARAM_BEFORE_DATE, Long.toString(beforeDate)).build(), limit);
+        }
+
         public static String getLocationSettingFromUri(Uri uri) {
             return uri.getPathSegments().get(1);
         }
@@ -157,6 +451,14 @@ public class WeatherContract {
             return Long.parseLong(uri.getPathSegments().get(2));
         }
 
+        public static long getLocationIdFromUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(2));
+        }
+
+        public static long getDateFromLocationIdUri(Uri uri) {
+            return Long.parseLong(uri.getPathSegments().get(3));
+        }
+
         public static long getStartDateFromUri(Uri uri) {
             String dateString = uri.getQueryParameter(COLUMN_DATE);
             if (null != dateString && dateString.length() > 0)
@@ -164,5 +466,301 @@ public class WeatherContract {
             else
                 return 0;
         }
+
+        public static long getAfterDateFromUri(Uri uri) {
+            return getLongParameter(uri, PARAM_AFTER_DATE);
+        }
+
+        public static long getBeforeDateFromUri(Uri uri) {
+            return getLongParameter(uri, PARAM_BEFORE_DATE);
+        }
+
+        public static int getLimitFromUri(Uri uri) {
+            return (int) getLongParameter(uri, PARAM_LIMIT);
+        }
+
+        private static long getLongParameter(Uri uri, String parameter) {
+            String value = uri.getQueryParameter(parameter);
+            if (null != value && value.length() > 0)
+                return Long.parseLong(value);
+            else
+                return 0;
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the forecast history table.  Unlike the
+        weather table, where each sync replaces the forecast for a day, this keeps the first
+        forecast made for every day at every horizon, so forecasts can be compared with how the
+        day actually turned out.
+     */
+    public static final class ForecastHistoryEntry {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HISTORY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HISTORY;
+
+        public static final String TABLE_NAME = "forecast_history";
+
+        // Path segment for the accuracy of a location's forecasts, e.g.
+        // content://com.example.android.sunshine.app/history/94043/accuracy
+        public static final String PATH_ACCURACY = "accuracy";
+
+        public static final String COLUMN_LOC_KEY = "location_id";
+        // The day forecast, normalized like WeatherEntry.COLUMN_DATE
+        public static final String COLUMN_DATE = "date";
+        // How many days ahead of COLUMN_DATE the forecast was made; 0 is the day itself
+        public static final String COLUMN_HORIZON = "horizon";
+        public static final String COLUMN_WEATHER_ID = "weather_id";
+        // Temperatures are stored as whole multiples of 1 / TEMPERATURE_SCALE of a degree,
+        // coarser than WeatherEntry.MEASUREMENT_SCALE on purpose.  History is only read back as
+        // the accuracy URI's mean errors, where a tenth of a degree is far below any forecast's
+        // error, and it's the largest table, a row per location, day and horizon, so the smaller
+        // integers are worth having.  Changing the scale would also mean rewriting every row
+        // already recorded.
+        public static final String COLUMN_MIN_TEMP = "min";
+        public static final String COLUMN_MAX_TEMP = "max";
+        public static final int TEMPERATURE_SCALE = 10;
+
+        // Columns of the accuracy URI, one row per horizon in ascending order.  The errors are
+        // the mean absolute difference in degrees from the day's own (horizon 0) forecast, and
+        // the hit rate is the fraction of forecasts that got the weather condition right.
+        public static final String COLUMN_SAMPLES = "samples";
+        public static final String COLUMN_MIN_TEMP_ERROR = "min_error";
+        public static final String COLUMN_MAX_TEMP_ERROR = "max_error";
+        public static final String COLUMN_CONDITION_HIT_RATE = "condition_hit_rate";
+
+        public static Uri buildAccuracyUri(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).appendPath(PATH_ACCURACY)
+                    .build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+    }
+
+    /*
+        Inner class that defines the table contents of the offline city index, imported from
+        OpenWeatherMap's city list so that location entry can suggest valid cities as the user
+        types, without a network round trip.
+     */
+    public static final class CityEntry implements BaseColumns {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_CITY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_CITY;
+
+        // The _ID of a city is its OpenWeatherMap city id.
+        public static final String TABLE_NAME = "city";
+        // Full-text index over the name and country of every city, keyed by the city's _ID.
+        public static final String FTS_TABLE_NAME = "city_fts";
+        // Spatial index over the coordinates, kept up to date by triggers on the city table.
+        public static final String SPATIAL_INDEX_NAME = "city_rtree";
+
+        public static final String COLUMN_CITY_NAME = "name";
+        // ISO 3166 country code, e.g. "GB"
+        public static final String COLUMN_COUNTRY = "country";
+        public static final String COLUMN_COORD_LAT = "coord_lat";
+        public static final String COLUMN_COORD_LONG = "coord_long";
+        // Used to rank suggestions; 0 when the city list doesn't say
+        public static final String COLUMN_POPULATION = "population";
+
+        // Path segment for type-ahead search, e.g.
+        // content://com.example.android.sunshine.app/city/search?q=lond&limit=10
+        // Every word of the query matches as a prefix of the city's name or country, and the
+        // most populous matches come first.
+        public static final String PATH_SEARCH = "search";
+        public static final String PARAM_QUERY = "q";
+        public static final String PARAM_LIMIT = "limit";
+
+        public static Uri buildCitySearchUri(String query, int limit) {
+            return CONTENT_URI.buildUpon().appendPath(PATH_SEARCH)
+                    .appendQueryParameter(PARAM_QUERY, query)
+                    .appendQueryParameter(PARAM_LIMIT, Integer.toString(limit)).build();
+        }
+
+        // The location setting OpenWeatherMap understands for a city, e.g. "London,GB"
+        public static String buildLocationSetting(String cityName, String country) {
+            return cityName + "," + country;
+        }
+    }
+
+    /*
+        Display-ready strings for each day of the forecast, rendered when the weather is written
+        rather than on every bind.  They're read as extra columns of the per-location weather
+        URIs: asking for any of them joins this table in.  The strings are only good for the
+        locale, units preference and day they were rendered on.  A day whose strings are stale
+        reads back as null until the provider renders it again, which it does in the next sync
+        and, for a change of locale, straight away; reading never writes.  Days before today
+        aren't rendered and read back as null.
+     */
+    public static final class DisplayEntry {
+
+        public static final String TABLE_NAME = "forecast_display";
+
+        // The _ID of the weather row the strings were rendered from
+        public static final String COLUMN_WEATHER_KEY = "weather_key";
+        // The locale, units and day the strings were rendered for
+        public static final String COLUMN_VARIANT = "display_variant";
+
+        // The day as the forecast list shows it, e.g. "Tomorrow" or "Mon Jun 08"
+        public static final String COLUMN_FRIENDLY_DATE = "friendly_date";
+        // The same, but with today spelled out, e.g. "Today, June 08", for the today item
+        public static final String COLUMN_FRIENDLY_DATE_LONG = "friendly_date_long";
+        // The localized name of the weather condition
+        public static final String COLUMN_DESCRIPTION = "description";
+        // The high and low temperatures in the preferred units, e.g. "21\u00B0"
+        public static final String COLUMN_HIGH_TEMP = "high_temp";
+        public static final String COLUMN_LOW_TEMP = "low_temp";
+    }
+
+    /*
+        The columns of the spatial indexes over locations and cities.  Each row is a point, so
+        its minimum and maximum coordinates are the same; the pairs are what an R*Tree needs.
+     */
+    public static final class SpatialIndexEntry {
+        // The _ID of the indexed location or city
+        public static final String COLUMN_ID = "id";
+        public static final String COLUMN_MIN_LAT = "min_lat";
+        public static final String COLUMN_MAX_LAT = "max_lat";
+        public static final String COLUMN_MIN_LONG = "min_long";
+        public static final String COLUMN_MAX_LONG = "max_long";
+    }
+
+    /*
+        Read-only view of how long the provider's calls take on this device.  Each row of
+        CONTENT_URI covers one operation on one kind of URI since the provider started; the
+        SLOW_QUERIES_URI rows are a sample of recent slow calls, with the SQL and plan of the
+        slow queries among them.
+     */
+    public static final class MetricsEntry {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_METRICS).build();
+
+        public static final String PATH_SLOW_QUERIES = "slow";
+        public static final Uri SLOW_QUERIES_URI =
+                CONTENT_URI.buildUpon().appendPath(PATH_SLOW_QUERIES).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_METRICS;
+
+        // "query", "bulkInsert", "delete", "warmUp", "export" or "import"
+        public static final String COLUMN_OPERATION = "operation";
+        // The provider's code for the kind of URI, and the path of one such URI
+        public static final String COLUMN_MATCH = "match";
+        public static final String COLUMN_PATH = "path";
+        public static final String COLUMN_CALLS = "calls";
+        // Rows returned by queries, or written by inserts and deletes
+        public static final String COLUMN_ROWS = "rows";
+        public static final String COLUMN_TOTAL_MILLIS = "total_ms";
+        public static final String COLUMN_P50_MILLIS = "p50_ms";
+        public static final String COLUMN_P90_MILLIS = "p90_ms";
+        public static final String COLUMN_P99_MILLIS = "p99_ms";
+        public static final String COLUMN_MAX_MILLIS = "max_ms";
+        // Comma separated call counts, the ith being calls that took from 2^i to 2^(i+1)
+        // microseconds
+        public static final String COLUMN_HISTOGRAM = "histogram";
+
+        // Slow query columns, along with COLUMN_OPERATION and COLUMN_ROWS.  COLUMN_SQL and
+        // COLUMN_PLAN are null for calls that didn't run a query, or were served from the cache,
+        // and COLUMN_PLAN also for a call logged moments ago, whose plan is worked out off the
+        // thread that made it.
+        public static final String COLUMN_TIME = "time";
+        public static final String COLUMN_URI = "uri";
+        public static final String COLUMN_DURATION_MILLIS = "duration_ms";
+        public static final String COLUMN_SQL = "sql";
+        public static final String COLUMN_PLAN = "plan";
+    }
+
+    /*
+        Inner class that defines the hourly store, which keeps forecasts at an hour or three
+        apart for as far ahead and as far back as they go.  A point per row would take the
+        weather table's space two dozen times over, so each row packs a location's day of
+        points into one compressed block.  Points are written as rows of the POINT_ columns to
+        CONTENT_URI and read back, decoded, through buildHourlyLocationWithRange.
+     */
+    public static final class HourlyEntry {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_HOURLY).build();
+
+        public static final String CONTENT_TYPE =
+                ContentResolver.CURSOR_DIR_BASE_TYPE + "/" + CONTENT_AUTHORITY + "/" + PATH_HOURLY;
+
+        public static final String TABLE_NAME = "hourly";
+
+        // Columns of the table, one row per location and day.  The day is the UTC one its
+        // points fall in, whatever the time zone, starting at COLUMN_DATE.
+        public static final String COLUMN_LOC_KEY = "location_id";
+        public static final String COLUMN_DATE = "date";
+        public static final String COLUMN_COUNT = "count";
+        public static final String COLUMN_BLOCK = "block";
+
+        // Columns of a point.  Measurements are as precise as the weather table's, to
+        // 1 / WeatherEntry.MEASUREMENT_SCALE.  A point written at the time of one already stored
+        // replaces it.
+        public static final String POINT_TIME = "time";
+        public static final String POINT_TEMP = "temp";
+        public static final String POINT_HUMIDITY = "humidity";
+        public static final String POINT_PRESSURE = "pressure";
+        public static final String POINT_WIND_SPEED = "wind";
+        public static final String POINT_DEGREES = "degrees";
+        public static final String POINT_WEATHER_ID = "weather_id";
+
+        // Query parameters bounding the points of a location read, from PARAM_FROM_TIME
+        // inclusive to PARAM_TO_TIME exclusive, in milliseconds since the epoch.
+        public static final String PARAM_FROM_TIME = "from_time";
+        public static final String PARAM_TO_TIME = "to_time";
+
+        public static Uri buildHourlyLocation(String locationSetting) {
+            return CONTENT_URI.buildUpon().appendPath(locationSetting).build();
+        }
+
+        public static Uri buildHourlyLocationWithRange(String locationSetting, long fromTime,
+                                                       long toTime) {
+            return buildHourlyLocation(locationSetting).buildUpon()
+                    .appendQueryParameter(PARAM_FROM_TIME, Long.toString(fromTime))
+                    .appendQueryParameter(PARAM_TO_TIME, Long.toString(toTime)).build();
+        }
+
+        public static String getLocationSettingFromUri(Uri uri) {
+            return uri.getPathSegments().get(1);
+        }
+
+        // The bounds of a location's URI, or Long.MIN_VALUE and Long.MAX_VALUE where it has none.
+        public static long getFromTimeFromUri(Uri uri) {
+            String value = uri.getQueryParameter(PARAM_FROM_TIME);
+            return value == null || value.length() == 0 ? Long.MIN_VALUE : Long.parseLong(value);
+        }
+
+        public static long getToTimeFromUri(Uri uri) {
+            String value = uri.getQueryParameter(PARAM_TO_TIME);
+            return value == null || value.length() == 0 ? Long.MAX_VALUE : Long.parseLong(value);
+        }
+    }
+
+    /*
+        The locations, weather, forecast history, hourly store and city index in one stream, for
+        moving them to another device or seeding a new one.  Opening CONTENT_URI for reading
+        streams out a backup of them, in CONTENT_TYPE; opening it for writing replaces them with
+        the backup written to it.  Neither end holds more than a page of rows at a time, so the
+        tables can be any size.  The import goes on after the writer has closed its end, and CONTENT_URI
+        is notified when it's done.  A backup that's cut short or doesn't import leaves the tables
+        as they were.
+     */
+    public static final class BackupEntry {
+
+        public static final Uri CONTENT_URI =
+                BASE_CONTENT_URI.buildUpon().appendPath(PATH_BACKUP).build();
+
+        // Newline delimited JSON: a header, then each table's name and columns followed by its
+        // rows, one JSON array of values per line.
+        public static final String CONTENT_TYPE = "application/x-ndjson";
     }
 }
@@ -15,29 +15,156 @@
  */
 package com.example.android.sunshine.app.data;
 
+import android.annotation.TargetApi;
 import android.content.Context;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteOpenHelper;
+import android.os.Build;
+import android.util.Log;
 
+import com.example.android.sunshine.app.data.WeatherContract.CityEntry;
+import com.example.android.sunshine.app.data.WeatherContract.DisplayEntry;
+import com.example.android.sunshine.app.data.WeatherContract.ForecastHistoryEntry;
+import com.example.android.sunshine.app.data.WeatherContract.HourlyEntry;
 import com.example.android.sunshine.app.data.WeatherContract.LocationEntry;
+import com.example.android.sunshine.app.data.WeatherContract.SpatialIndexEntry;
 import com.example.android.sunshine.app.data.WeatherContract.WeatherEntry;
 
+import java.io.File;
+
 /**
  * Manages a local database for weather data.
  */
 public class WeatherDbHelper extends SQLiteOpenHelper {
+    private static final String LOG_TAG = WeatherDbHelper.class.getSimpleName();
 
     // If you change the database schema, you must increment the database version.
-    private static final int DATABASE_VERSION = 2;
+    static final int DATABASE_VERSION = 9;
 
     static final String DATABASE_NAME = "weather.db";
 
+    // A database that had to be moved aside is kept under its name with this added, until the
+    // next one replaces it.
+    static final String QUARANTINE_SUFFIX = ".corrupt";
+    private static final String[] DATABASE_FILE_SUFFIXES = {"-wal", "-shm", "-journal"};
+
+    private final Context mContext;
+
+    // Set when onCreate has made empty tables, for onOpen to fill them from the archive.
+    private boolean mCreated;
+    // Told once a new database has been filled from the archive.
+    private Runnable mRebuiltListener;
+
     public WeatherDbHelper(Context context) {
-        super(context, DATABASE_NAME, null, DATABASE_VERSION);
+        this(context, null);
+    }
+
+    WeatherDbHelper(Context context, SQLiteDatabase.CursorFactory factory) {
+        super(context, DATABASE_NAME, factory, DATABASE_VERSION);
+        mContext = context;
+        // Write-ahead logging lets the forecast list, the widgets and Muzei keep reading the last
+        // committed data from their own pooled connections while a sync is writing.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            enableWriteAheadLogging();
+        }
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    private void enableWriteAheadLogging() {
+        setWriteAheadLoggingEnabled(true);
+    }
+
+    @Override
+    public void onOpen(SQLiteDatabase db) {
+        super.onOpen(db);
+        // Before Jelly Bean the helper can't be configured up front, so switch the journal mode
+        // on the opened database instead.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB
+                && Build.VERSION.SDK_INT < Build.VERSION_CODES.JELLY_BEAN
+                && !db.isReadOnly()) {
+            db.enableWriteAheadLogging();
+        }
+        // A new install, an upgrade that dropped the old tables, or a corrupt database thrown
+        // away: whichever it was, the last forecasts fetched are still in the archive.
+        if (mCreated && !db.isReadOnly()) {
+            mCreated = false;
+            // Lets the maintenance job give pages freed by pruning back to the file system
+            // without rebuilding the whole file.  By the time onCreate runs the database already
+            // has its android_metadata table, and is inside a transaction, so the mode can only
+            // be changed by a VACUUM, which costs next to nothing while the tables are empty.
+            db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+            db.execSQL("VACUUM");
+            long start = System.nanoTime();
+            int days = ForecastArchive.replay(mContext, db);
+            if (days > 0) {
+                Log.i(LOG_TAG, "Rebuilt " + days + " days of weather from the archive in "
+                        + ((System.nanoTime() - start) / 1000) + "us");
+            }
+            if (mRebuiltListener != null) {
+                mRebuiltListener.run();
+            }
+        }
+    }
+
+    /**
+     * Sets what to run each time a new database has been created and filled from the archive,
+     * so that anything cached from the one it replaced can be dropped.  Runs on whichever
+     * thread opened the database, while the helper is locked.
+     */
+    synchronized void setRebuiltListener(Runnable listener) {
+        mRebuiltListener = listener;
+    }
+
+    /*
+        Corruption SQLite finds, whether on opening the database or in a later query, is handled
+        by the framework's default DatabaseErrorHandler: it closes the database and deletes the
+        file, and the next open creates a new one that onOpen fills from the archive.  So nothing
+        checks the database up front.  An open that still fails, most likely an upgrade that
+        failed part way, would fail every time, so the file is moved aside and the open tried
+        once more.  That's done here, under the helper's lock, where no connection to the old
+        file is open for anyone to be reading from.  The handler can't be swapped for one that
+        keeps a copy, since the constructor that takes it needs Honeycomb.
+     */
+    @Override
+    public synchronized SQLiteDatabase getWritableDatabase() {
+        try {
+            return super.getWritableDatabase();
+        } catch (SQLiteException e) {
+            Log.e(LOG_TAG, "Quarantining a database that can't be opened", e);
+            quarantine();
+            return super.getWritableDatabase();
+        }
+    }
+
+    @Override
+    public synchronized SQLiteDatabase getReadableDatabase() {
+        try {
+            return super.getReadableDatabase();
+        } catch (SQLiteException e) {
+            Log.e(LOG_TAG, "Quarantining a database that can't be opened", e);
+            quarantine();
+            return super.getReadableDatabase();
+        }
+    }
+
+    // Moves the database file aside, so that the next open creates a new one and fills it from
+    // the archive.  Only called when the open failed, so there's no connection to close.
+    private void quarantine() {
+        File database = mContext.getDatabasePath(DATABASE_NAME);
+        File quarantined = new File(database.getPath() + QUARANTINE_SUFFIX);
+        quarantined.delete();
+        if (!database.renameTo(quarantined)) {
+            database.delete();
+        }
+        for (String suffix : DATABASE_FILE_SUFFIXES) {
+            new File(database.getPath() + suffix).delete();
+        }
     }
 
     @Override
     public void onCreate(SQLiteDatabase sqLiteDatabase) {
+        mCreated = true;
         // Create a table to hold locations.  A location consists of the string supplied in the
         // location setting, the city name, and the latitude and longitude
         final String SQL_CREATE_LOCATION_TABLE = "CREATE TABLE " + LocationEntry.TABLE_NAME + " (" +
@@ -62,13 +189,15 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 WeatherEntry.COLUMN_SHORT_DESC + " TEXT NOT NULL, " +
                 WeatherEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL," +
 
-                WeatherEntry.COLUMN_MIN_TEMP + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_MAX_TEMP + " REAL NOT NULL, " +
+                // Measurements are scaled integers, see WeatherEntry.MEASUREMENT_SCALE.  The
+                // provider converts them on the way in and out.
+                WeatherEntry.COLUMN_MIN_TEMP + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_MAX_TEMP + " INTEGER NOT NULL, " +
 
-                WeatherEntry.COLUMN_HUMIDITY + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_PRESSURE + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_WIND_SPEED + " REAL NOT NULL, " +
-                WeatherEntry.COLUMN_DEGREES + " REAL NOT NULL, " +
+                WeatherEntry.COLUMN_HUMIDITY + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_PRESSURE + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_WIND_SPEED + " INTEGER NOT NULL, " +
+                WeatherEntry.COLUMN_DEGREES + " INTEGER NOT NULL, " +
 
                 // Set up the location column as a foreign key to location table.
                 " FOREIGN KEY (" + WeatherEntry.COLUMN_LOC_KEY + ") REFERENCES " +
@@ -79,8 +208,144 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
                 " UNIQUE (" + WeatherEntry.COLUMN_DATE + ", " +
                 WeatherEntry.COLUMN_LOC_KEY + ") ON CONFLICT REPLACE);";
 
+        // The UNIQUE constraint above leads with the date, which doesn't help the forecast
+        // queries: they look up one location and then scan forward in time.
+        final String SQL_CREATE_WEATHER_LOCATION_INDEX = "CREATE INDEX " +
+                WeatherEntry.INDEX_LOCATION_DATE + " ON " + WeatherEntry.TABLE_NAME + " (" +
+                WeatherEntry.COLUMN_LOC_KEY + ", " + WeatherEntry.COLUMN_DATE + ");";
+
+        // One row per location, day and horizon.  The primary key leads with the location and
+        // date, so the accuracy query's self-join on those is an index lookup, and the table is
+        // never touched by the forecast queries that read the weather table.
+        final String SQL_CREATE_FORECAST_HISTORY_TABLE = "CREATE TABLE " +
+                ForecastHistoryEntry.TABLE_NAME + " (" +
+                ForecastHistoryEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                ForecastHistoryEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                ForecastHistoryEntry.COLUMN_HORIZON + " INTEGER NOT NULL, " +
+                ForecastHistoryEntry.COLUMN_WEATHER_ID + " INTEGER NOT NULL, " +
+                ForecastHistoryEntry.COLUMN_MIN_TEMP + " INTEGER NOT NULL, " +
+                ForecastHistoryEntry.COLUMN_MAX_TEMP + " INTEGER NOT NULL, " +
+                " PRIMARY KEY (" + ForecastHistoryEntry.COLUMN_LOC_KEY + ", " +
+                ForecastHistoryEntry.COLUMN_DATE + ", " +
+                ForecastHistoryEntry.COLUMN_HORIZON + "));";
+
+        // A location's days of hourly points, each compressed into one block.  The primary key
+        // is the index every read of a range of days scans.
+        final String SQL_CREATE_HOURLY_TABLE = "CREATE TABLE " + HourlyEntry.TABLE_NAME + " (" +
+                HourlyEntry.COLUMN_LOC_KEY + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_DATE + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_COUNT + " INTEGER NOT NULL, " +
+                HourlyEntry.COLUMN_BLOCK + " BLOB NOT NULL, " +
+                " FOREIGN KEY (" + HourlyEntry.COLUMN_LOC_KEY + ") REFERENCES " +
+                LocationEntry.TABLE_NAME + " (" + LocationEntry._ID + "), " +
+                " PRIMARY KEY (" + HourlyEntry.COLUMN_LOC_KEY + ", " +
+                HourlyEntry.COLUMN_DATE + "));";
+
+        // Keyed by the weather row, whose _ID changes whenever a sync replaces the day, so a
+        // display row can never outlive the weather it was rendered from.  The triggers clear
+        // it whenever that weather is replaced, updated or deleted.
+        final String SQL_CREATE_DISPLAY_TABLE = "CREATE TABLE " + DisplayEntry.TABLE_NAME + " (" +
+                DisplayEntry.COLUMN_WEATHER_KEY + " INTEGER PRIMARY KEY, " +
+                DisplayEntry.COLUMN_VARIANT + " TEXT NOT NULL, " +
+                DisplayEntry.COLUMN_FRIENDLY_DATE + " TEXT NOT NULL, " +
+                DisplayEntry.COLUMN_FRIENDLY_DATE_LONG + " TEXT NOT NULL, " +
+                DisplayEntry.COLUMN_DESCRIPTION + " TEXT NOT NULL, " +
+                DisplayEntry.COLUMN_HIGH_TEMP + " TEXT NOT NULL, " +
+                DisplayEntry.COLUMN_LOW_TEMP + " TEXT NOT NULL);";
+
+        // Replacing a row doesn't fire delete triggers, so the insert trigger looks up the row
+        // about to be replaced, through the (location_id, date) index.
+        final String SQL_CREATE_DISPLAY_REPLACE_TRIGGER = "CREATE TRIGGER " +
+                DisplayEntry.TABLE_NAME + "_replace BEFORE INSERT ON " + WeatherEntry.TABLE_NAME +
+                " BEGIN DELETE FROM " + DisplayEntry.TABLE_NAME + " WHERE " +
+                DisplayEntry.COLUMN_WEATHER_KEY + " IN (SELECT " + WeatherEntry._ID +
+                " FROM " + WeatherEntry.TABLE_NAME + " WHERE " +
+                WeatherEntry.COLUMN_LOC_KEY + " = new." + WeatherEntry.COLUMN_LOC_KEY + " AND " +
+                WeatherEntry.COLUMN_DATE + " = new." + WeatherEntry.COLUMN_DATE + "); END;";
+        final String SQL_CREATE_DISPLAY_UPDATE_TRIGGER = "CREATE TRIGGER " +
+                DisplayEntry.TABLE_NAME + "_update AFTER UPDATE ON " + WeatherEntry.TABLE_NAME +
+                " BEGIN DELETE FROM " + DisplayEntry.TABLE_NAME + " WHERE " +
+                DisplayEntry.COLUMN_WEATHER_KEY + " = old." + WeatherEntry._ID + "; END;";
+        final String SQL_CREATE_DISPLAY_DELETE_TRIGGER = "CREATE TRIGGER " +
+                DisplayEntry.TABLE_NAME + "_delete AFTER DELETE ON " + WeatherEntry.TABLE_NAME +
+                " BEGIN DELETE FROM " + DisplayEntry.TABLE_NAME + " WHERE " +
+                DisplayEntry.COLUMN_WEATHER_KEY + " = old." + WeatherEntry._ID + "; END;";
+
+        final String SQL_CREATE_CITY_TABLE = "CREATE TABLE " + CityEntry.TABLE_NAME + " (" +
+                CityEntry._ID + " INTEGER PRIMARY KEY," +
+                CityEntry.COLUMN_CITY_NAME + " TEXT NOT NULL, " +
+                CityEntry.COLUMN_COUNTRY + " TEXT NOT NULL, " +
+                CityEntry.COLUMN_COORD_LAT + " REAL NOT NULL, " +
+                CityEntry.COLUMN_COORD_LONG + " REAL NOT NULL, " +
+                CityEntry.COLUMN_POPULATION + " INTEGER NOT NULL DEFAULT 0);";
+
+        // FTS3 rather than FTS4, which older devices don't have.  Its docid is the city's _ID, so
+        // matches join straight back to the city table on its primary key.
+        final String SQL_CREATE_CITY_FTS_TABLE = "CREATE VIRTUAL TABLE " +
+                CityEntry.FTS_TABLE_NAME + " USING fts3(" +
+                CityEntry.COLUMN_CITY_NAME + ", " +
+                CityEntry.COLUMN_COUNTRY + ");";
+
         sqLiteDatabase.execSQL(SQL_CREATE_LOCATION_TABLE);
         sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_WEATHER_LOCATION_INDEX);
+        sqLiteDatabase.execSQL(SQL_CREATE_FORECAST_HISTORY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_HOURLY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_DISPLAY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_DISPLAY_REPLACE_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_DISPLAY_UPDATE_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_DISPLAY_DELETE_TRIGGER);
+        sqLiteDatabase.execSQL(SQL_CREATE_CITY_TABLE);
+        sqLiteDatabase.execSQL(SQL_CREATE_CITY_FTS_TABLE);
+        createSpatialIndex(sqLiteDatabase, LocationEntry.SPATIAL_INDEX_NAME,
+                LocationEntry.TABLE_NAME, LocationEntry._ID,
+                LocationEntry.COLUMN_COORD_LAT, LocationEntry.COLUMN_COORD_LONG);
+        createSpatialIndex(sqLiteDatabase, CityEntry.SPATIAL_INDEX_NAME,
+                CityEntry.TABLE_NAME, CityEntry._ID,
+                CityEntry.COLUMN_COORD_LAT, CityEntry.COLUMN_COORD_LONG);
+    }
+
+    // Creates a spatial index over the coordinates of table, and the triggers that keep it in
+    // step with every insert, update and delete, so no write path can leave it stale.
+    private static void createSpatialIndex(SQLiteDatabase db, String index, String table,
+                                           String id, String lat, String lon) {
+        try {
+            db.execSQL("CREATE VIRTUAL TABLE " + index + " USING rtree(" +
+                    SpatialIndexEntry.COLUMN_ID + ", " +
+                    SpatialIndexEntry.COLUMN_MIN_LAT + ", " +
+                    SpatialIndexEntry.COLUMN_MAX_LAT + ", " +
+                    SpatialIndexEntry.COLUMN_MIN_LONG + ", " +
+                    SpatialIndexEntry.COLUMN_MAX_LONG + ");");
+        } catch (SQLiteException e) {
+            // Not every device's SQLite is built with the R*Tree module.  A plain table with the
+            // same columns answers the same queries, through an index on latitude, which still
+            // narrows a lookup to a band of the world instead of the whole table.
+            db.execSQL("CREATE TABLE " + index + " (" +
+                    SpatialIndexEntry.COLUMN_ID + " INTEGER PRIMARY KEY, " +
+                    SpatialIndexEntry.COLUMN_MIN_LAT + " REAL NOT NULL, " +
+                    SpatialIndexEntry.COLUMN_MAX_LAT + " REAL NOT NULL, " +
+                    SpatialIndexEntry.COLUMN_MIN_LONG + " REAL NOT NULL, " +
+                    SpatialIndexEntry.COLUMN_MAX_LONG + " REAL NOT NULL);");
+            db.execSQL("CREATE INDEX " + index + "_lat ON " + index + " (" +
+                    SpatialIndexEntry.COLUMN_MIN_LAT + ");");
+        }
+
+        // The city import replaces rows, which doesn't fire delete triggers, so inserting clears
+        // out any row already indexed under the same id.
+        db.execSQL("CREATE TRIGGER " + index + "_insert AFTER INSERT ON " + table + " BEGIN " +
+                "DELETE FROM " + index + " WHERE " + SpatialIndexEntry.COLUMN_ID +
+                " = new." + id + "; " +
+                "INSERT INTO " + index + " VALUES (new." + id + ", new." + lat + ", new." + lat +
+                ", new." + lon + ", new." + lon + "); END;");
+        db.execSQL("CREATE TRIGGER " + index + "_update AFTER UPDATE OF " + id + ", " + lat +
+                ", " + lon + " ON " + table + " BEGIN " +
+                "DELETE FROM " + index + " WHERE " + SpatialIndexEntry.COLUMN_ID +
+                " = old." + id + "; " +
+                "INSERT INTO " + index + " VALUES (new." + id + ", new." + lat + ", new." + lat +
+                ", new." + lon + ", new." + lon + "); END;");
+        db.execSQL("CREATE TRIGGER " + index + "_delete AFTER DELETE ON " + table + " BEGIN " +
+                "DELETE FROM " + index + " WHERE " + SpatialIndexEntry.COLUMN_ID +
+                " = old." + id + "; END;");
     }
 
     @Override
@@ -93,6 +358,13 @@ public class WeatherDbHelper extends SQLiteOpenHelper {
         // should be your top priority before modifying this method.
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.TABLE_NAME);
         sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + WeatherEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + ForecastHistoryEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + HourlyEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + DisplayEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + CityEntry.TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + CityEntry.FTS_TABLE_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + LocationEntry.SPATIAL_INDEX_NAME);
+        sqLiteDatabase.execSQL("DROP TABLE IF EXISTS " + CityEntry.SPATIAL_INDEX_NAME);
         onCreate(sqLiteDatabase);
     }
 }
@@ -16,96 +16,1264 @@
 package com.example.android.sunshine.app.data;
 
 import android.annotation.TargetApi;
+import android.content.ClipDescription;
 import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentValues;
+import android.content.Context;
+import android.content.OperationApplicationException;
+import android.content.SharedPreferences;
 import android.content.UriMatcher;
+import android.content.res.Configuration;
 import android.database.Cursor;
+import android.database.CursorWindow;
+import android.database.CursorWrapper;
+import android.database.DatabaseUtils;
+import android.database.MatrixCursor;
+import android.database.sqlite.SQLiteConstraintException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteException;
 import android.database.sqlite.SQLiteQueryBuilder;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.ParcelFileDescriptor;
+import android.os.Parcelable;
+import android.preference.PreferenceManager;
+import android.text.format.Time;
+import android.util.Log;
+
+import com.example.android.sunshine.app.R;
+import com.example.android.sunshine.app.Utility;
+
+import java.io.Closeable;
+import java.io.FileDescriptor;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class WeatherProvider extends ContentProvider {
 
+    private static final String LOG_TAG = WeatherProvider.class.getSimpleName();
+
     // The URI Matcher used by this content provider.
     private static final UriMatcher sUriMatcher = buildUriMatcher();
     private WeatherDbHelper mOpenHelper;
 
+    // Number of rows written through bulkInsert before we ask SQLite to fold the write-ahead log
+    // back into the database.  SQLite checkpoints on its own once the log reaches 1000 pages, but
+    // a sync only writes a couple of pages, so without this the log lingers until the next open.
+    private static final int WAL_CHECKPOINT_ROWS = 500;
+    private final AtomicInteger mRowsSinceCheckpoint = new AtomicInteger();
+
     static final int WEATHER = 100;
     static final int WEATHER_WITH_LOCATION = 101;
     static final int WEATHER_WITH_LOCATION_AND_DATE = 102;
+    static final int WEATHER_WITH_LOCATION_ID = 103;
+    static final int WEATHER_WITH_LOCATION_ID_AND_DATE = 104;
+    static final int WEATHER_TODAY = 105;
+    static final int WEATHER_STATS = 106;
     static final int LOCATION = 300;
+    static final int LOCATION_NEAREST = 301;
+    static final int LOCATION_BOUNDS = 302;
+    static final int HISTORY = 400;
+    static final int HISTORY_ACCURACY = 401;
+    static final int CITY = 500;
+    static final int CITY_SEARCH = 501;
+    static final int CITY_NEAREST = 502;
+    static final int CITY_BOUNDS = 503;
+    static final int METRICS = 600;
+    static final int METRICS_SLOW_QUERIES = 601;
+    static final int BACKUP = 700;
+    static final int HOURLY = 800;
+    static final int HOURLY_WITH_LOCATION = 801;
+
+    private static final SQLiteQueryBuilder sWeatherWithLocationQueryBuilder;
+    private static final SQLiteQueryBuilder sWeatherWithDisplayQueryBuilder;
+
+    // Columns a caller may ask for from the joined weather and location tables and still have its
+    // query served from sQueryCache.  Anything outside this set goes through the query builder.
+    private static final Set<String> sKnownColumns = new HashSet<>(Arrays.asList(
+            WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID,
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES,
+            WeatherContract.LocationEntry.TABLE_NAME + "." + WeatherContract.LocationEntry._ID,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG,
+            WeatherContract.DisplayEntry.COLUMN_FRIENDLY_DATE,
+            WeatherContract.DisplayEntry.COLUMN_FRIENDLY_DATE_LONG,
+            WeatherContract.DisplayEntry.COLUMN_DESCRIPTION,
+            WeatherContract.DisplayEntry.COLUMN_HIGH_TEMP,
+            WeatherContract.DisplayEntry.COLUMN_LOW_TEMP));
+
+    // The columns that only the display table can supply.
+    private static final Set<String> sDisplayColumns = new HashSet<>(Arrays.asList(
+            WeatherContract.DisplayEntry.COLUMN_FRIENDLY_DATE,
+            WeatherContract.DisplayEntry.COLUMN_FRIENDLY_DATE_LONG,
+            WeatherContract.DisplayEntry.COLUMN_DESCRIPTION,
+            WeatherContract.DisplayEntry.COLUMN_HIGH_TEMP,
+            WeatherContract.DisplayEntry.COLUMN_LOW_TEMP));
+
+    // The subset of sKnownColumns that only the location table can supply.
+    private static final Set<String> sLocationColumns = new HashSet<>(Arrays.asList(
+            WeatherContract.LocationEntry.TABLE_NAME + "." + WeatherContract.LocationEntry._ID,
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING,
+            WeatherContract.LocationEntry.COLUMN_CITY_NAME,
+            WeatherContract.LocationEntry.COLUMN_COORD_LAT,
+            WeatherContract.LocationEntry.COLUMN_COORD_LONG));
+
+    private static final Set<String> sKnownSortOrders = new HashSet<>(Arrays.asList(
+            WeatherContract.WeatherEntry.COLUMN_DATE + " ASC",
+            WeatherContract.WeatherEntry.COLUMN_DATE + " DESC"));
+
+    // SQL for the fixed-shape location queries, keyed by selection, projection and sort order.
+    // Handing SQLite the exact same string every time lets each connection reuse the statement it
+    // already compiled instead of parsing and planning the join again.
+    private static final int MAX_CACHED_QUERIES = 32;
+    private static final Map<String, String> sQueryCache = new ConcurrentHashMap<>();
+
+    // The columns bound, in order, by the compiled weather insert.  Rows that carry exactly these
+    // columns take the fast path in bulkInsert; anything else falls back to SQLiteDatabase.insert.
+    private static final String[] WEATHER_INSERT_COLUMNS = {
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    };
+
+    // The weather columns stored as scaled integers.  See WeatherEntry.MEASUREMENT_SCALE.
+    private static final Set<String> sMeasurementColumns = new HashSet<>(Arrays.asList(
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES));
+    private static final String sMeasurementDivisor =
+            " / " + WeatherContract.WeatherEntry.MEASUREMENT_SCALE + ".0";
+
+    // What a query of the weather table without a projection gets back: every column, with the
+    // measurements decoded.  The joined routes add the location columns.
+    private static final String[] sWeatherColumns = decodeMeasurements(new String[]{
+            WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID,
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+            WeatherContract.WeatherEntry.COLUMN_DATE,
+            WeatherContract.WeatherEntry.COLUMN_SHORT_DESC,
+            WeatherContract.WeatherEntry.COLUMN_WEATHER_ID,
+            WeatherContract.WeatherEntry.COLUMN_MIN_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_MAX_TEMP,
+            WeatherContract.WeatherEntry.COLUMN_HUMIDITY,
+            WeatherContract.WeatherEntry.COLUMN_PRESSURE,
+            WeatherContract.WeatherEntry.COLUMN_WIND_SPEED,
+            WeatherContract.WeatherEntry.COLUMN_DEGREES
+    });
+    private static final String[] sWeatherWithLocationColumns;
+
+    static {
+        sWeatherWithLocationColumns = Arrays.copyOf(sWeatherColumns, sWeatherColumns.length + 1);
+        sWeatherWithLocationColumns[sWeatherColumns.length] =
+                WeatherContract.LocationEntry.TABLE_NAME + ".*";
+    }
+
+    // The compiled weather insert and the database it was compiled against.  Both are only used
+    // from inside a write transaction, which SQLite already serializes.
+    private SQLiteStatement mWeatherInsertStatement;
+    private SQLiteDatabase mWeatherInsertDb;
+    private SQLiteStatement mHistoryInsertStatement;
+    private SQLiteDatabase mHistoryInsertDb;
+
+    // Location setting to location row id, so the per-location routes can filter the weather
+    // table directly.  Cleared whenever the location table is updated or deleted from; all
+    // location writes are expected to come through this provider.
+    private final Map<String, Long> mLocationIds = new ConcurrentHashMap<>();
+    // And the other way around, for building the URIs to notify after a weather write.
+    private final Map<Long, String> mLocationSettings = new ConcurrentHashMap<>();
+    // Bumped each time the maps are cleared, guarded by mLocationIds.  A lookup only caches what
+    // it read if the maps haven't been cleared since it started, otherwise a location deleted
+    // while it ran would be put back.
+    private long mLocationGeneration;
+
+    // Past this many changed days of a location, observers are notified once on the location's
+    // URI rather than once per date URI; a sync rewrites every day anyway, and each notification
+    // is a round trip to the system server.
+    private static final int MAX_DATE_NOTIFICATIONS = 3;
+
+    // Recent results of the per-location routes.  The same "today onwards" query is run by the
+    // forecast list, both widgets, Muzei, Wear and the notification right after every sync.
+    private static final int QUERY_CACHE_BYTES = 256 * 1024;
+    private final QueryCache mQueryCache = new QueryCache(QUERY_CACHE_BYTES);
+
+    // Bumped whenever the cached results are invalidated, which is after every committed write.
+    // Static so that in-process readers such as ForecastRepository can tell whether a copy they
+    // hold is current without waiting for the change notification to come round.
+    private static final AtomicLong sDataGeneration = new AtomicLong();
+
+    // The locale as of the last configuration change, to tell which changes are of the locale.
+    private volatile Locale mLocale;
 
-    private static final SQLiteQueryBuilder sWeatherByLocationSettingQueryBuilder;
+    // What the display columns are rendered for, used by every read and write of them so they
+    // always agree, and by the ForecastRepository to tell whether its forecast's strings are.
+    // Static for the same reason as sDataGeneration.  Made again when the locale or day moves
+    // on, and dropped when the units change.
+    private static volatile ForecastDisplay sDisplay;
+    // Counts changes of units, guarded by sDisplayLock.
+    private static int sUnitsChanges;
+    private static final Object sDisplayLock = new Object();
+
+    // Held here because the preferences only keep a weak reference to their listeners
+    private final SharedPreferences.OnSharedPreferenceChangeListener mUnitsListener =
+            new SharedPreferences.OnSharedPreferenceChangeListener() {
+                @Override
+                public void onSharedPreferenceChanged(SharedPreferences sharedPreferences,
+                                                      String key) {
+                    if (getContext().getString(R.string.pref_units_key).equals(key)) {
+                        synchronized (sDisplayLock) {
+                            sUnitsChanges++;
+                            sDisplay = null;
+                        }
+                    }
+                }
+            };
+
+    // How long queries, bulk inserts and deletes take, served read-only on the metrics URIs.
+    private final ProviderMetrics mMetrics = new ProviderMetrics();
+
+    // Set while applyBatch runs on this thread.  Writes made by the batch record their
+    // notifications and cache invalidations here, and applyBatch carries them out once the batch
+    // has committed, so other threads never requery or re-cache data that isn't there yet.
+    private final ThreadLocal<PendingChanges> mPendingChanges = new ThreadLocal<>();
+
+    // Set while queryBatch runs on this thread, whose queries have to read the transaction's
+    // snapshot rather than results cached before it began.
+    private final ThreadLocal<Boolean> mInQueryBatch = new ThreadLocal<>();
+
+    // Rows deleted per transaction when compacting, so pruning a long history never holds the
+    // write lock for more than a moment.
+    private static final int COMPACT_BATCH_ROWS = 500;
+    // The token of the compaction last asked to stop.  Only the one maintenance job compacts,
+    // so one is enough; a cancel that comes after its compaction has finished is left behind
+    // harmlessly, since the next compaction has a token of its own.
+    private final AtomicReference<String> mCancelledCompaction = new AtomicReference<>();
+    // Set while a backup import runs.  Imports stage their rows in tables of fixed names, which
+    // a second import would drop from under the first, so only one runs at a time.  Static since
+    // every provider in the process shares the one database file.
+    private static final AtomicBoolean sImporting = new AtomicBoolean();
+    private static final int DEFAULT_WEATHER_RETENTION_DAYS = 1;
+    private static final int AUTO_VACUUM_INCREMENTAL = 2;
+    private static final int DEFAULT_HISTORY_RETENTION_DAYS = 365;
+
+    private static final long DAY_IN_MILLIS = 1000 * 60 * 60 * 24;
+
+    // Only a display row of the current variant joins, so a stale one reads as null, which the
+    // reader renders for itself.  Its argument comes before those of the WHERE clause.
+    //LEFT OUTER JOIN forecast_display ON forecast_display.weather_key = weather._id
+    //AND display_variant = ?
+    private static final String sDisplayJoin =
+            " LEFT OUTER JOIN " + WeatherContract.DisplayEntry.TABLE_NAME +
+                    " ON " + WeatherContract.DisplayEntry.TABLE_NAME +
+                    "." + WeatherContract.DisplayEntry.COLUMN_WEATHER_KEY +
+                    " = " + WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry._ID +
+                    " AND " + WeatherContract.DisplayEntry.COLUMN_VARIANT + " = ?";
 
     static{
-        sWeatherByLocationSettingQueryBuilder = new SQLiteQueryBuilder();
+        sWeatherWithLocationQueryBuilder = new SQLiteQueryBuilder();
         
         //This is an inner join which looks like
         //weather INNER JOIN location ON weather.location_id = location._id
-        sWeatherByLocationSettingQueryBuilder.setTables(
+        sWeatherWithLocationQueryBuilder.setTables(
                 WeatherContract.WeatherEntry.TABLE_NAME + " INNER JOIN " +
                         WeatherContract.LocationEntry.TABLE_NAME +
                         " ON " + WeatherContract.WeatherEntry.TABLE_NAME +
                         "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY +
                         " = " + WeatherContract.LocationEntry.TABLE_NAME +
                         "." + WeatherContract.LocationEntry._ID);
+
+        sWeatherWithDisplayQueryBuilder = new SQLiteQueryBuilder();
+        sWeatherWithDisplayQueryBuilder.setTables(
+                sWeatherWithLocationQueryBuilder.getTables() + sDisplayJoin);
+    }
+
+    // A location's days from a date without a display row of the variant:
+    // SELECT weather._id, date, weather_id, max / 100.0, min / 100.0 FROM weather
+    // LEFT OUTER JOIN forecast_display ON forecast_display.weather_key = weather._id
+    // AND display_variant = ?
+    // WHERE weather.location_id = ? AND date >= ? AND forecast_display.weather_key IS NULL
+    private static final String sStaleDisplayQuery = "SELECT " +
+            WeatherContract.WeatherEntry.TABLE_NAME + "." + WeatherContract.WeatherEntry._ID +
+            ", " + WeatherContract.WeatherEntry.COLUMN_DATE +
+            ", " + WeatherContract.WeatherEntry.COLUMN_WEATHER_ID +
+            ", " + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + " / " +
+            WeatherContract.WeatherEntry.MEASUREMENT_SCALE + ".0" +
+            ", " + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + " / " +
+            WeatherContract.WeatherEntry.MEASUREMENT_SCALE + ".0" +
+            " FROM " + WeatherContract.WeatherEntry.TABLE_NAME + sDisplayJoin +
+            " WHERE " + WeatherContract.WeatherEntry.TABLE_NAME + "." +
+            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
+            WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? AND " +
+            WeatherContract.DisplayEntry.TABLE_NAME + "." +
+            WeatherContract.DisplayEntry.COLUMN_WEATHER_KEY + " IS NULL";
+
+    private static final String sDisplayInsert;
+
+    static {
+        StringBuilder sql = new StringBuilder("INSERT OR REPLACE INTO ")
+                .append(WeatherContract.DisplayEntry.TABLE_NAME).append(" (");
+        StringBuilder params = new StringBuilder();
+        for (int i = 0; i < ForecastDisplay.COLUMNS.length; i++) {
+            if (i > 0) {
+                sql.append(',');
+                params.append(',');
+            }
+            sql.append(ForecastDisplay.COLUMNS[i]);
+            params.append('?');
+        }
+        sDisplayInsert = sql.append(") VALUES (").append(params).append(')').toString();
+    }
+
+    //location_setting = ?
+    private static final String sLocationIdForSettingSelection =
+            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
+
+    //weather.location_id = ?
+    private static final String sLocationIdSelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? ";
+
+    //AND date >= ?
+    private static final String sStartDateClause =
+            "AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+
+    //AND date > ?
+    private static final String sAfterDateClause =
+            "AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " > ? ";
+
+    //AND date < ?
+    private static final String sBeforeDateClause =
+            "AND " + WeatherContract.WeatherEntry.COLUMN_DATE + " < ? ";
+
+    // Each forecast of a day made ahead of time, against the day's own forecast.  The columns are
+    // fixed, so the accuracy URI ignores the projection and sort order it's queried with.
+    private static final String sForecastAccuracyQuery =
+            "SELECT forecast." + WeatherContract.ForecastHistoryEntry.COLUMN_HORIZON + " AS " +
+                    WeatherContract.ForecastHistoryEntry.COLUMN_HORIZON + ", " +
+            "COUNT(*) AS " + WeatherContract.ForecastHistoryEntry.COLUMN_SAMPLES + ", " +
+            "AVG(ABS(forecast." + WeatherContract.ForecastHistoryEntry.COLUMN_MIN_TEMP +
+                    " - actual." + WeatherContract.ForecastHistoryEntry.COLUMN_MIN_TEMP + ")) / " +
+                    WeatherContract.ForecastHistoryEntry.TEMPERATURE_SCALE + ".0 AS " +
+                    WeatherContract.ForecastHistoryEntry.COLUMN_MIN_TEMP_ERROR + ", " +
+            "AVG(ABS(forecast." + WeatherContract.ForecastHistoryEntry.COLUMN_MAX_TEMP +
+                    " - actual." + WeatherContract.ForecastHistoryEntry.COLUMN_MAX_TEMP + ")) / " +
+                    WeatherContract.ForecastHistoryEntry.TEMPERATURE_SCALE + ".0 AS " +
+                    WeatherContract.ForecastHistoryEntry.COLUMN_MAX_TEMP_ERROR + ", " +
+            "AVG(forecast." + WeatherContract.ForecastHistoryEntry.COLUMN_WEATHER_ID +
+                    " = actual." + WeatherContract.ForecastHistoryEntry.COLUMN_WEATHER_ID + ") AS " +
+                    WeatherContract.ForecastHistoryEntry.COLUMN_CONDITION_HIT_RATE +
+            " FROM " + WeatherContract.ForecastHistoryEntry.TABLE_NAME + " forecast" +
+            " INNER JOIN " + WeatherContract.ForecastHistoryEntry.TABLE_NAME + " actual" +
+            " ON actual." + WeatherContract.ForecastHistoryEntry.COLUMN_LOC_KEY +
+                    " = forecast." + WeatherContract.ForecastHistoryEntry.COLUMN_LOC_KEY +
+            " AND actual." + WeatherContract.ForecastHistoryEntry.COLUMN_DATE +
+                    " = forecast." + WeatherContract.ForecastHistoryEntry.COLUMN_DATE +
+            " AND actual." + WeatherContract.ForecastHistoryEntry.COLUMN_HORIZON + " = 0" +
+            " WHERE forecast." + WeatherContract.ForecastHistoryEntry.COLUMN_LOC_KEY + " = ?" +
+            " AND forecast." + WeatherContract.ForecastHistoryEntry.COLUMN_HORIZON + " > 0" +
+            " GROUP BY forecast." + WeatherContract.ForecastHistoryEntry.COLUMN_HORIZON +
+            " ORDER BY forecast." + WeatherContract.ForecastHistoryEntry.COLUMN_HORIZON;
+
+    // The expression behind each column of the stats URI.  The aggregates run over the stored
+    // integers and are decoded once, at the end.
+    private static final Map<String, String> sStatsColumns = new LinkedHashMap<>();
+
+    static {
+        sStatsColumns.put(WeatherContract.WeatherEntry.COLUMN_STATS_DAYS, "COUNT(*)");
+        sStatsColumns.put(WeatherContract.WeatherEntry.COLUMN_STATS_LOWEST_TEMP,
+                "MIN(" + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ")"
+                        + sMeasurementDivisor);
+        sStatsColumns.put(WeatherContract.WeatherEntry.COLUMN_STATS_HIGHEST_TEMP,
+                "MAX(" + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ")"
+                        + sMeasurementDivisor);
+        sStatsColumns.put(WeatherContract.WeatherEntry.COLUMN_STATS_AVERAGE_MIN_TEMP,
+                "AVG(" + WeatherContract.WeatherEntry.COLUMN_MIN_TEMP + ")"
+                        + sMeasurementDivisor);
+        sStatsColumns.put(WeatherContract.WeatherEntry.COLUMN_STATS_AVERAGE_MAX_TEMP,
+                "AVG(" + WeatherContract.WeatherEntry.COLUMN_MAX_TEMP + ")"
+                        + sMeasurementDivisor);
+        sStatsColumns.put(WeatherContract.WeatherEntry.COLUMN_STATS_AVERAGE_HUMIDITY,
+                "AVG(" + WeatherContract.WeatherEntry.COLUMN_HUMIDITY + ")"
+                        + sMeasurementDivisor);
+        sStatsColumns.put(WeatherContract.WeatherEntry.COLUMN_STATS_AVERAGE_PRESSURE,
+                "AVG(" + WeatherContract.WeatherEntry.COLUMN_PRESSURE + ")"
+                        + sMeasurementDivisor);
+        sStatsColumns.put(WeatherContract.WeatherEntry.COLUMN_STATS_MAX_WIND_SPEED,
+                "MAX(" + WeatherContract.WeatherEntry.COLUMN_WIND_SPEED + ")"
+                        + sMeasurementDivisor);
     }
 
-    //location.location_setting = ?
-    private static final String sLocationSettingSelection =
-            WeatherContract.LocationEntry.TABLE_NAME+
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? ";
+    // The columns of a decoded hourly point, and the TimeSeriesBlock value each is read from.
+    // The time isn't one of the values, so it has none.
+    private static final int POINT_TIME_VALUE = -1;
+    private static final Map<String, Integer> sHourlyPointColumns = new LinkedHashMap<>();
 
-    //location.location_setting = ? AND date >= ?
-    private static final String sLocationSettingWithStartDateSelection =
-            WeatherContract.LocationEntry.TABLE_NAME+
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
-                    WeatherContract.WeatherEntry.COLUMN_DATE + " >= ? ";
+    static {
+        sHourlyPointColumns.put(WeatherContract.HourlyEntry.POINT_TIME, POINT_TIME_VALUE);
+        sHourlyPointColumns.put(WeatherContract.HourlyEntry.POINT_TEMP,
+                TimeSeriesBlock.VALUE_TEMP);
+        sHourlyPointColumns.put(WeatherContract.HourlyEntry.POINT_HUMIDITY,
+                TimeSeriesBlock.VALUE_HUMIDITY);
+        sHourlyPointColumns.put(WeatherContract.HourlyEntry.POINT_PRESSURE,
+                TimeSeriesBlock.VALUE_PRESSURE);
+        sHourlyPointColumns.put(WeatherContract.HourlyEntry.POINT_WIND_SPEED,
+                TimeSeriesBlock.VALUE_WIND_SPEED);
+        sHourlyPointColumns.put(WeatherContract.HourlyEntry.POINT_DEGREES,
+                TimeSeriesBlock.VALUE_DEGREES);
+        sHourlyPointColumns.put(WeatherContract.HourlyEntry.POINT_WEATHER_ID,
+                TimeSeriesBlock.VALUE_WEATHER_ID);
+    }
+
+    private static final String sHourlyDayRangeSelection =
+            WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_DATE + " >= ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_DATE + " < ?";
+
+    private static final String sHourlyDaySelection =
+            WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " = ? AND " +
+                    WeatherContract.HourlyEntry.COLUMN_DATE + " = ?";
+
+    //SELECT ... FROM city_fts INNER JOIN city ON city._id = city_fts.docid
+    //WHERE city_fts MATCH ? ORDER BY population DESC
+    private static final SQLiteQueryBuilder sCitySearchQueryBuilder;
+    private static final String[] sCitySearchColumns;
+
+    static {
+        sCitySearchQueryBuilder = new SQLiteQueryBuilder();
+        sCitySearchQueryBuilder.setTables(
+                WeatherContract.CityEntry.FTS_TABLE_NAME + " INNER JOIN " +
+                        WeatherContract.CityEntry.TABLE_NAME +
+                        " ON " + WeatherContract.CityEntry.TABLE_NAME +
+                        "." + WeatherContract.CityEntry._ID +
+                        " = " + WeatherContract.CityEntry.FTS_TABLE_NAME + ".docid");
+        // The columns a search can ask for, all of them when it asks for none.  The builder
+        // refuses any other.
+        Map<String, String> columns = new LinkedHashMap<>();
+        columns.put(WeatherContract.CityEntry._ID, WeatherContract.CityEntry.TABLE_NAME + "." +
+                WeatherContract.CityEntry._ID + " AS " + WeatherContract.CityEntry._ID);
+        columns.put(WeatherContract.CityEntry.COLUMN_CITY_NAME,
+                WeatherContract.CityEntry.TABLE_NAME + "." +
+                        WeatherContract.CityEntry.COLUMN_CITY_NAME + " AS " +
+                        WeatherContract.CityEntry.COLUMN_CITY_NAME);
+        columns.put(WeatherContract.CityEntry.COLUMN_COUNTRY,
+                WeatherContract.CityEntry.TABLE_NAME + "." +
+                        WeatherContract.CityEntry.COLUMN_COUNTRY + " AS " +
+                        WeatherContract.CityEntry.COLUMN_COUNTRY);
+        columns.put(WeatherContract.CityEntry.COLUMN_COORD_LAT,
+                WeatherContract.CityEntry.COLUMN_COORD_LAT);
+        columns.put(WeatherContract.CityEntry.COLUMN_COORD_LONG,
+                WeatherContract.CityEntry.COLUMN_COORD_LONG);
+        columns.put(WeatherContract.CityEntry.COLUMN_POPULATION,
+                WeatherContract.CityEntry.COLUMN_POPULATION);
+        sCitySearchQueryBuilder.setProjectionMap(columns);
+        sCitySearchColumns = columns.keySet().toArray(new String[columns.size()]);
+    }
 
-    //location.location_setting = ? AND date = ?
-    private static final String sLocationSettingAndDaySelection =
-            WeatherContract.LocationEntry.TABLE_NAME +
-                    "." + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING + " = ? AND " +
+    private static final String sCityMatchSelection =
+            WeatherContract.CityEntry.FTS_TABLE_NAME + " MATCH ?";
+
+    private static final int DEFAULT_CITY_SEARCH_LIMIT = 10;
+
+    private static final String sBoundsSelection =
+            WeatherContract.SpatialIndexEntry.COLUMN_MAX_LAT + " >= ? AND " +
+                    WeatherContract.SpatialIndexEntry.COLUMN_MIN_LAT + " <= ? AND " +
+                    WeatherContract.SpatialIndexEntry.COLUMN_MAX_LONG + " >= ? AND " +
+                    WeatherContract.SpatialIndexEntry.COLUMN_MIN_LONG + " <= ?";
+
+    // Nearest lookups start with a box this many degrees either side of the point, about
+    // 55km, and give up on the index once the box would cover the whole world.
+    private static final double INITIAL_NEAREST_RADIUS = 0.5;
+    private static final double MAX_NEAREST_RADIUS = 180;
+    // Keeps the longitude scale, and so the box, finite at the poles
+    private static final double MIN_LONGITUDE_SCALE = 0.01;
+    private static final double KILOMETRES_PER_DEGREE = 111.195;
+
+    private static final String sDateAscending = WeatherContract.WeatherEntry.COLUMN_DATE + " ASC";
+    private static final String sDateDescending = WeatherContract.WeatherEntry.COLUMN_DATE + " DESC";
+
+    //weather.location_id = ? AND date = ?
+    private static final String sLocationIdAndDaySelection =
+            WeatherContract.WeatherEntry.TABLE_NAME +
+                    "." + WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " = ? AND " +
                     WeatherContract.WeatherEntry.COLUMN_DATE + " = ? ";
 
     private Cursor getWeatherByLocationSetting(Uri uri, String[] projection, String sortOrder) {
         String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+
+        return getWeatherByLocationId(getLocationId(locationSetting), uri, projection, sortOrder);
+    }
+
+    private Cursor getWeatherByLocationSettingAndDate(
+            Uri uri, String[] projection, String sortOrder) {
+        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+        long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+
+        return getWeatherByLocationIdAndDate(getLocationId(locationSetting), date, projection,
+                sortOrder);
+    }
+
+    // Serves "weather/*" and "weather/id/#", with the optional start date and paging
+    // parameters of the URI.
+    private Cursor getWeatherByLocationId(long locationId, Uri uri, String[] projection,
+                                          String sortOrder) {
         long startDate = WeatherContract.WeatherEntry.getStartDateFromUri(uri);
+        long afterDate = WeatherContract.WeatherEntry.getAfterDateFromUri(uri);
+        long beforeDate = WeatherContract.WeatherEntry.getBeforeDateFromUri(uri);
+        int limit = WeatherContract.WeatherEntry.getLimitFromUri(uri);
 
-        String[] selectionArgs;
-        String selection;
+        StringBuilder selection = new StringBuilder(sLocationIdSelection);
+        List<String> selectionArgs = new ArrayList<>(4);
+        selectionArgs.add(Long.toString(locationId));
+        if (startDate != 0) {
+            selection.append(sStartDateClause);
+            selectionArgs.add(Long.toString(startDate));
+        }
+        if (afterDate != 0) {
+            selection.append(sAfterDateClause);
+            selectionArgs.add(Long.toString(afterDate));
+        }
+        if (beforeDate != 0) {
+            selection.append(sBeforeDateClause);
+            selectionArgs.add(Long.toString(beforeDate));
+        }
+        // A page only makes sense in date order, walking away from its key
+        if (afterDate != 0) {
+            sortOrder = sDateAscending;
+        } else if (beforeDate != 0) {
+            sortOrder = sDateDescending;
+        }
 
-        if (startDate == 0) {
-            selection = sLocationSettingSelection;
-            selectionArgs = new String[]{locationSetting};
-        } else {
-            selectionArgs = new String[]{locationSetting, Long.toString(startDate)};
-            selection = sLocationSettingWithStartDateSelection;
+        return queryWeatherByLocation(locationId, projection, selection.toString(),
+                selectionArgs.toArray(new String[selectionArgs.size()]), sortOrder,
+                limit > 0 ? Integer.toString(limit) : null);
+    }
+
+    private Cursor getWeatherByLocationIdAndDate(long locationId, long date, String[] projection,
+                                                 String sortOrder) {
+        return queryWeatherByLocation(locationId, projection, sLocationIdAndDaySelection,
+                new String[]{Long.toString(locationId), Long.toString(date)}, sortOrder, null);
+    }
+
+    // Aggregates the weather of the URI's locations and date range in SQLite, so only the one
+    // summary row has to cross the provider boundary rather than every day in the range.
+    private Cursor getWeatherStats(Uri uri, String[] projection) {
+        List<String> locationIds = uri.getQueryParameters(
+                WeatherContract.WeatherEntry.PARAM_LOCATION_ID);
+        String fromDate = uri.getQueryParameter(WeatherContract.WeatherEntry.PARAM_FROM_DATE);
+        String toDate = uri.getQueryParameter(WeatherContract.WeatherEntry.PARAM_TO_DATE);
+        if (locationIds.isEmpty() || fromDate == null || toDate == null) {
+            throw new IllegalArgumentException("Stats need locations and a date range: " + uri);
         }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
-                projection,
-                selection,
-                selectionArgs,
+        if (projection == null) {
+            projection = sStatsColumns.keySet().toArray(new String[sStatsColumns.size()]);
+        }
+        String[] columns = new String[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            String expression = sStatsColumns.get(projection[i]);
+            if (expression == null) {
+                throw new IllegalArgumentException("Unknown stats column: " + projection[i]);
+            }
+            columns[i] = expression + " AS " + projection[i];
+        }
+
+        // Values are bound, not inlined: "location_id IN (?,?) AND date BETWEEN ? AND ?"
+        StringBuilder selection = new StringBuilder(WeatherContract.WeatherEntry.COLUMN_LOC_KEY)
+                .append(" IN (");
+        List<String> selectionArgs = new ArrayList<>(locationIds.size() + 2);
+        for (String locationId : locationIds) {
+            selection.append(selectionArgs.isEmpty() ? "?" : ",?");
+            selectionArgs.add(Long.toString(Long.parseLong(locationId)));
+        }
+        selection.append(") AND ").append(WeatherContract.WeatherEntry.COLUMN_DATE)
+                .append(" BETWEEN ? AND ?");
+        selectionArgs.add(Long.toString(Long.parseLong(fromDate)));
+        selectionArgs.add(Long.toString(Long.parseLong(toDate)));
+
+        return mOpenHelper.getReadableDatabase().query(WeatherContract.WeatherEntry.TABLE_NAME,
+                columns, selection.toString(),
+                selectionArgs.toArray(new String[selectionArgs.size()]), null, null, null);
+    }
+
+    // Decodes a location's points in the URI's range into a cursor of the point columns asked
+    // for.  Only the blocks of the days the range touches are read, through the primary key,
+    // and each is decoded no further than the range goes.
+    private Cursor getHourlyPoints(Uri uri, String[] projection) {
+        if (projection == null) {
+            projection = sHourlyPointColumns.keySet().toArray(
+                    new String[sHourlyPointColumns.size()]);
+        }
+        int[] columnValues = new int[projection.length];
+        for (int i = 0; i < projection.length; i++) {
+            Integer value = sHourlyPointColumns.get(projection[i]);
+            if (value == null) {
+                throw new IllegalArgumentException("Unknown hourly column: " + projection[i]);
+            }
+            columnValues[i] = value;
+        }
+
+        MatrixCursor points = new MatrixCursor(projection);
+        long locationId = getLocationId(
+                WeatherContract.HourlyEntry.getLocationSettingFromUri(uri));
+        long fromTime = WeatherContract.HourlyEntry.getFromTimeFromUri(uri);
+        long toTime = WeatherContract.HourlyEntry.getToTimeFromUri(uri);
+        if (locationId == -1 || fromTime >= toTime) {
+            return points;
+        }
+        long fromDate = fromTime == Long.MIN_VALUE ? Long.MIN_VALUE
+                : TimeSeriesBlock.getBlockDate(fromTime);
+        Cursor blocks = mOpenHelper.getReadableDatabase().query(
+                WeatherContract.HourlyEntry.TABLE_NAME,
+                new String[]{WeatherContract.HourlyEntry.COLUMN_DATE,
+                        WeatherContract.HourlyEntry.COLUMN_BLOCK},
+                sHourlyDayRangeSelection,
+                new String[]{Long.toString(locationId), Long.toString(fromDate),
+                        Long.toString(toTime)},
                 null,
                 null,
-                sortOrder
-        );
+                WeatherContract.HourlyEntry.COLUMN_DATE + " ASC");
+        Object[] row = new Object[projection.length];
+        try {
+            while (blocks.moveToNext()) {
+                TimeSeriesBlock.Decoder decoder =
+                        new TimeSeriesBlock.Decoder(blocks.getBlob(1), blocks.getLong(0));
+                if (!decoder.seek(fromTime)) {
+                    continue;
+                }
+                do {
+                    if (decoder.getTime() >= toTime) {
+                        break;
+                    }
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] = getPointValue(decoder, columnValues[i]);
+                    }
+                    points.addRow(row);
+                } while (decoder.next());
+            }
+        } finally {
+            blocks.close();
+        }
+        return points;
     }
 
-    private Cursor getWeatherByLocationSettingAndDate(
-            Uri uri, String[] projection, String sortOrder) {
-        String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
-        long date = WeatherContract.WeatherEntry.getDateFromUri(uri);
+    private static Object getPointValue(TimeSeriesBlock.Decoder decoder, int value) {
+        switch (value) {
+            case POINT_TIME_VALUE:
+                return decoder.getTime();
+            case TimeSeriesBlock.VALUE_WEATHER_ID:
+                return decoder.getValue(value);
+            default:
+                return WeatherContract.WeatherEntry.decodeMeasurement(decoder.getValue(value));
+        }
+    }
 
-        return sWeatherByLocationSettingQueryBuilder.query(mOpenHelper.getReadableDatabase(),
+    // Prefix search of the city index.  The name and country columns exist in both tables, so
+    // the projection is fixed and qualified; callers pick columns by name from the cursor.
+    private Cursor searchCities(Uri uri, String[] projection) {
+        // Checked before anything is queried, so a bad request fails the same way whether or not
+        // there's anything to search for
+        int rows = getLimitParameter(uri, WeatherContract.CityEntry.PARAM_LIMIT,
+                DEFAULT_CITY_SEARCH_LIMIT);
+        if (projection != null) {
+            for (String column : projection) {
+                if (!Arrays.asList(sCitySearchColumns).contains(column)) {
+                    throw new IllegalArgumentException("Invalid column " + column);
+                }
+            }
+        }
+        String match = buildCityMatch(uri.getQueryParameter(WeatherContract.CityEntry.PARAM_QUERY));
+        if (match == null) {
+            return new MatrixCursor(projection != null ? projection : sCitySearchColumns, 0);
+        }
+        return sCitySearchQueryBuilder.query(mOpenHelper.getReadableDatabase(),
                 projection,
-                sLocationSettingAndDaySelection,
-                new String[]{locationSetting, Long.toString(date)},
+                sCityMatchSelection,
+                new String[]{match},
                 null,
                 null,
-                sortOrder
-        );
+                WeatherContract.CityEntry.COLUMN_POPULATION + " DESC",
+                Integer.toString(rows));
+    }
+
+    // Rows of table whose coordinates overlap the box, found through its spatial index:
+    //SELECT ... FROM location INNER JOIN location_rtree ON location._id = location_rtree.id
+    //WHERE max_lat >= ? AND min_lat <= ? AND max_long >= ? AND min_long <= ?
+    private Cursor queryBounds(String table, String spatialIndex, Uri uri, String[] projection,
+                               String sortOrder) {
+        double south = getDoubleParameter(uri, WeatherContract.PARAM_SOUTH, 90);
+        double west = getDoubleParameter(uri, WeatherContract.PARAM_WEST, 180);
+        double north = getDoubleParameter(uri, WeatherContract.PARAM_NORTH, 90);
+        double east = getDoubleParameter(uri, WeatherContract.PARAM_EAST, 180);
+        return buildSpatialQuery(table, spatialIndex).query(mOpenHelper.getReadableDatabase(),
+                projection != null ? projection : new String[]{table + ".*"},
+                sBoundsSelection, boundsArgs(south, west, north, east),
+                null, null, sortOrder);
+    }
+
+    // An R*Tree can only find what's inside a box, so the nearest rows are found by searching
+    // a box around the point, sorted by distance, and growing the box until the furthest of the
+    // rows found is no further away than the box's edge: nothing outside the box can be nearer.
+    private Cursor queryNearest(String table, String spatialIndex, Uri uri,
+                                String[] projection) {
+        double latitude = getDoubleParameter(uri, WeatherContract.PARAM_LATITUDE, 90);
+        double longitude = getDoubleParameter(uri, WeatherContract.PARAM_LONGITUDE, 180);
+        int limit = getLimitParameter(uri, WeatherContract.PARAM_NEAREST_LIMIT, 1);
+        if (projection == null) {
+            projection = new String[]{table + ".*"};
+        }
+
+        // Distances are measured in degrees of latitude, with longitude scaled down to match at
+        // this latitude, which is close enough to rank places a few hundred kilometres apart.
+        // The difference in longitude is taken the short way round, across the antimeridian if
+        // need be.  Both coordinates have been checked to be finite, so can go in the SQL as
+        // they are.
+        double longitudeScale = Math.max(Math.cos(Math.toRadians(latitude)),
+                MIN_LONGITUDE_SCALE);
+        String latitudeDifference = table + "." +
+                WeatherContract.LocationEntry.COLUMN_COORD_LAT + " - (" + latitude + ")";
+        String longitudeDifference = "abs(" + table + "." +
+                WeatherContract.LocationEntry.COLUMN_COORD_LONG + " - (" + longitude + "))";
+        longitudeDifference = "min(" + longitudeDifference + ", 360 - " + longitudeDifference +
+                ")";
+        String distance = "((" + latitudeDifference + ") * (" + latitudeDifference + ") + " +
+                longitudeDifference + " * " + longitudeDifference + " * " +
+                (longitudeScale * longitudeScale) + ")";
+        String[] columns = Arrays.copyOf(projection, projection.length + 1);
+        columns[projection.length] = distance + " AS " + WeatherContract.COLUMN_DISTANCE;
+
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        for (double radius = INITIAL_NEAREST_RADIUS; ; radius *= 4) {
+            boolean wholeWorld = radius >= MAX_NEAREST_RADIUS;
+            Cursor cursor = querySpatialBoxes(db, table, spatialIndex, columns,
+                    latitude - radius, longitude - radius / longitudeScale,
+                    latitude + radius, longitude + radius / longitudeScale, wholeWorld,
+                    WeatherContract.COLUMN_DISTANCE + " ASC", limit);
+            if (wholeWorld || (cursor.getCount() == limit && cursor.moveToLast()
+                    && cursor.getDouble(projection.length) <= radius * radius)) {
+                cursor.moveToPosition(-1);
+                return new KilometresCursor(cursor, projection.length);
+            }
+            cursor.close();
+        }
+    }
+
+    // Rows of table overlapping the box, or every row if wholeWorld.  The index only holds
+    // longitudes from -180 to 180, so a box that reaches past the antimeridian on one side is
+    // searched as two boxes, one either side of it.
+    private static Cursor querySpatialBoxes(SQLiteDatabase db, String table,
+                                            String spatialIndex, String[] columns,
+                                            double south, double west, double north,
+                                            double east, boolean wholeWorld, String sortOrder,
+                                            int limit) {
+        if (wholeWorld || east - west >= 360) {
+            return buildSpatialQuery(table, spatialIndex).query(db, columns, null, null, null,
+                    null, sortOrder, Integer.toString(limit));
+        }
+        String[] args;
+        if (west < -180) {
+            args = concat(boundsArgs(south, west + 360, north, 180),
+                    boundsArgs(south, -180, north, east));
+        } else if (east > 180) {
+            args = concat(boundsArgs(south, west, north, 180),
+                    boundsArgs(south, -180, north, east - 360));
+        } else {
+            return buildSpatialQuery(table, spatialIndex).query(db, columns, sBoundsSelection,
+                    boundsArgs(south, west, north, east), null, null, sortOrder,
+                    Integer.toString(limit));
+        }
+        StringBuilder select = new StringBuilder("SELECT ");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                select.append(", ");
+            }
+            select.append(columns[i]);
+        }
+        select.append(" FROM ").append(table).append(" INNER JOIN ").append(spatialIndex)
+                .append(" ON ").append(table).append('.')
+                .append(WeatherContract.LocationEntry._ID).append(" = ").append(spatialIndex)
+                .append('.').append(WeatherContract.SpatialIndexEntry.COLUMN_ID)
+                .append(" WHERE ").append(sBoundsSelection);
+        return db.rawQuery(select + " UNION ALL " + select + " ORDER BY " + sortOrder +
+                " LIMIT " + limit, args);
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        String[] both = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, both, first.length, second.length);
+        return both;
+    }
+
+    // Reads the squared distance in degrees in one column as the distance in kilometres.  The
+    // other columns are read straight from the query, so keep their types.
+    private static final class KilometresCursor extends CursorWrapper {
+        private final int mDistanceColumn;
+
+        KilometresCursor(Cursor cursor, int distanceColumn) {
+            super(cursor);
+            mDistanceColumn = distanceColumn;
+        }
+
+        @Override
+        public double getDouble(int column) {
+            double value = super.getDouble(column);
+            return column == mDistanceColumn
+                    ? Math.sqrt(value) * KILOMETRES_PER_DEGREE : value;
+        }
+
+        @Override
+        public float getFloat(int column) {
+            return column == mDistanceColumn ? (float) getDouble(column) : super.getFloat(column);
+        }
+
+        @Override
+        public long getLong(int column) {
+            return column == mDistanceColumn ? (long) getDouble(column) : super.getLong(column);
+        }
+
+        @Override
+        public int getInt(int column) {
+            return column == mDistanceColumn ? (int) getDouble(column) : super.getInt(column);
+        }
+
+        @Override
+        public short getShort(int column) {
+            return column == mDistanceColumn ? (short) getDouble(column) : super.getShort(column);
+        }
+
+        @Override
+        public String getString(int column) {
+            return column == mDistanceColumn
+                    ? Double.toString(getDouble(column)) : super.getString(column);
+        }
+    }
+
+    private static SQLiteQueryBuilder buildSpatialQuery(String table, String spatialIndex) {
+        SQLiteQueryBuilder builder = new SQLiteQueryBuilder();
+        builder.setTables(table + " INNER JOIN " + spatialIndex + " ON " +
+                table + "." + WeatherContract.LocationEntry._ID + " = " +
+                spatialIndex + "." + WeatherContract.SpatialIndexEntry.COLUMN_ID);
+        return builder;
+    }
+
+    private static String[] boundsArgs(double south, double west, double north, double east) {
+        return new String[]{Double.toString(south), Double.toString(north),
+                Double.toString(west), Double.toString(east)};
+    }
+
+    // The parameter's value, which must lie between -bound and bound.  That rules out NaN and
+    // the infinities as well, which would otherwise reach SQLite as numbers it can't read.
+    private static double getDoubleParameter(Uri uri, String name, double bound) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            throw new IllegalArgumentException("Missing " + name + ": " + uri);
+        }
+        double parsed;
+        try {
+            parsed = Double.parseDouble(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad " + name + ": " + uri);
+        }
+        if (!(parsed >= -bound && parsed <= bound)) {
+            throw new IllegalArgumentException("Bad " + name + ": " + uri);
+        }
+        return parsed;
+    }
+
+    // A row limit given as a query parameter, which has to be a whole number of at least 1, or
+    // defaultLimit if there's none.
+    private static int getLimitParameter(Uri uri, String name, int defaultLimit) {
+        String value = uri.getQueryParameter(name);
+        if (value == null) {
+            return defaultLimit;
+        }
+        int parsed;
+        try {
+            parsed = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad " + name + ": " + uri);
+        }
+        if (parsed < 1) {
+            throw new IllegalArgumentException("Bad " + name + ": " + uri);
+        }
+        return parsed;
+    }
+
+    // Turns what the user typed into an FTS query where every word is a prefix, e.g.
+    // "new yo" becomes "new* yo*".  Anything that isn't a letter or digit separates words, so
+    // FTS operators and quotes typed by the user can't make the query invalid.  Returns null if
+    // there are no words.
+    static String buildCityMatch(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        for (String word : query.split("[^\\p{L}\\p{N}]+")) {
+            if (word.length() > 0) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append(word).append('*');
+            }
+        }
+        return match.length() == 0 ? null : match.toString();
+    }
+
+    // A LIMIT 1 seek into the (location_id, date) index, rather than reading the whole forecast
+    // only to look at its first row.
+    private Cursor getTodaysWeatherByLocationId(long locationId, String[] projection) {
+        long today = WeatherContract.normalizeDate(System.currentTimeMillis());
+        return queryWeatherByLocation(locationId, projection,
+                sLocationIdSelection + sStartDateClause,
+                new String[]{Long.toString(locationId), Long.toString(today)}, sDateAscending, "1");
+    }
+
+    private Cursor queryWeatherByLocation(long locationId, String[] projection, String selection,
+                                          String[] selectionArgs, String sortOrder, String limit) {
+        final SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        boolean display = needsDisplayColumns(projection);
+        if (display) {
+            selectionArgs = withDisplayVariant(selectionArgs);
+        }
+        if (!isKnownShape(projection, sortOrder)) {
+            SQLiteQueryBuilder builder = display
+                    ? sWeatherWithDisplayQueryBuilder : sWeatherWithLocationQueryBuilder;
+            return builder.query(db,
+                    projection == null ? sWeatherWithLocationColumns
+                            : decodeMeasurements(projection),
+                    selection,
+                    selectionArgs,
+                    null,
+                    null,
+                    sortOrder,
+                    limit
+            );
+        }
+
+        // Only pay for the join when the caller actually wants location columns back; otherwise
+        // this is a range scan over the (location_id, date) index of the weather table alone.
+        boolean join = needsLocationColumns(projection);
+        String tables = (join
+                ? sWeatherWithLocationQueryBuilder.getTables()
+                : WeatherContract.WeatherEntry.TABLE_NAME) + (display ? sDisplayJoin : "");
+        String key = tables + '|' + selection + '|'
+                + (projection == null ? "*" : Arrays.toString(projection)) + '|' + sortOrder
+                + '|' + limit;
+        String sql = sQueryCache.get(key);
+        if (sql == null) {
+            String[] columns = projection != null ? decodeMeasurements(projection)
+                    : join ? sWeatherWithLocationColumns : sWeatherColumns;
+            sql = SQLiteQueryBuilder.buildQueryString(false,
+                    tables,
+                    columns,
+                    selection,
+                    null,
+                    null,
+                    sortOrder,
+                    limit);
+            if (sQueryCache.size() < MAX_CACHED_QUERIES) {
+                sQueryCache.put(key, sql);
+            }
+        }
+        // A batch in progress on this thread sees its own writes, which the cache doesn't have,
+        // and a query batch has to see the same snapshot for all its queries
+        if (locationId == -1 || mPendingChanges.get() != null || mInQueryBatch.get() != null) {
+            return db.rawQuery(sql, selectionArgs);
+        }
+
+        String resultKey = sql + '|' + Arrays.toString(selectionArgs);
+        Cursor cached = mQueryCache.get(resultKey);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = mQueryCache.getGeneration();
+        return mQueryCache.put(resultKey, locationId, generation,
+                db.rawQuery(sql, selectionArgs));
+    }
+
+    // Returns the row id for a location setting, or -1 if there's no such location yet.  Misses
+    // aren't cached, since the sync adapter is likely to add the location shortly.
+    private long getLocationId(String locationSetting) {
+        Long locationId = mLocationIds.get(locationSetting);
+        if (locationId != null) {
+            return locationId;
+        }
+        long generation = getLocationGeneration();
+        try {
+            long id = DatabaseUtils.longForQuery(mOpenHelper.getReadableDatabase(),
+                    "SELECT " + WeatherContract.LocationEntry._ID +
+                            " FROM " + WeatherContract.LocationEntry.TABLE_NAME +
+                            " WHERE " + sLocationIdForSettingSelection,
+                    new String[]{locationSetting});
+            cacheLocation(locationSetting, id, generation);
+            return id;
+        } catch (SQLiteDoneException e) {
+            return -1;
+        }
+    }
+
+    // Returns the setting for a location row id, or null if there's no such location.
+    private String getLocationSetting(long locationId) {
+        String locationSetting = mLocationSettings.get(locationId);
+        if (locationSetting != null) {
+            return locationSetting;
+        }
+        long generation = getLocationGeneration();
+        try {
+            locationSetting = DatabaseUtils.stringForQuery(mOpenHelper.getReadableDatabase(),
+                    "SELECT " + WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING +
+                            " FROM " + WeatherContract.LocationEntry.TABLE_NAME +
+                            " WHERE " + WeatherContract.LocationEntry._ID + " = ?",
+                    new String[]{Long.toString(locationId)});
+        } catch (SQLiteDoneException e) {
+            return null;
+        }
+        if (locationSetting != null) {
+            cacheLocation(locationSetting, locationId, generation);
+        }
+        return locationSetting;
+    }
+
+    // A location whose setting the weather URIs can't address is refused rather than stored.
+    private static void checkLocationSetting(ContentValues values) {
+        String locationSetting =
+                values.getAsString(WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+        if (WeatherContract.WeatherEntry.isReservedLocationSetting(locationSetting)) {
+            throw new IllegalArgumentException("Reserved location setting: " + locationSetting);
+        }
+    }
+
+    private long getLocationGeneration() {
+        synchronized (mLocationIds) {
+            return mLocationGeneration;
+        }
+    }
+
+    // Remembers a location read from the database, unless the maps have been cleared since
+    // generation, when the read may already be out of date.
+    private void cacheLocation(String locationSetting, long locationId, long generation) {
+        synchronized (mLocationIds) {
+            if (generation == mLocationGeneration) {
+                mLocationIds.put(locationSetting, locationId);
+                mLocationSettings.put(locationId, locationSetting);
+            }
+        }
+    }
+
+    // The projection with each measurement column replaced by its decoded value, under the same
+    // name.  The expressions are qualified, so work on the joined tables too.
+    private static String[] decodeMeasurements(String[] projection) {
+        String[] columns = null;
+        for (int i = 0; i < projection.length; i++) {
+            String column = projection[i];
+            if (column.startsWith(WeatherContract.WeatherEntry.TABLE_NAME + ".")) {
+                column = column.substring(WeatherContract.WeatherEntry.TABLE_NAME.length() + 1);
+            }
+            if (sMeasurementColumns.contains(column)) {
+                if (columns == null) {
+                    columns = projection.clone();
+                }
+                columns[i] = WeatherContract.WeatherEntry.TABLE_NAME + "." + column
+                        + sMeasurementDivisor + " AS " + column;
+            }
+        }
+        return columns == null ? projection : columns;
+    }
+
+    // A copy of values with the measurements in their stored form, or values itself if it has
+    // none.  The caller's values are left as they were.
+    static ContentValues encodeMeasurements(ContentValues values) {
+        ContentValues encoded = null;
+        for (String column : sMeasurementColumns) {
+            if (!values.containsKey(column)) {
+                continue;
+            }
+            if (encoded == null) {
+                encoded = new ContentValues(values);
+            }
+            Double value = values.getAsDouble(column);
+            if (value == null) {
+                encoded.putNull(column);
+            } else {
+                encoded.put(column, WeatherContract.WeatherEntry.encodeMeasurement(value));
+            }
+        }
+        return encoded == null ? values : encoded;
+    }
+
+    private static boolean needsDisplayColumns(String[] projection) {
+        if (projection == null) {
+            return false;
+        }
+        for (String column : projection) {
+            if (sDisplayColumns.contains(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Renders display strings for the current locale, units preference and day.  Made again
+     * only when one of those changes, since making one reads the preferences.
+     */
+    static ForecastDisplay getDisplay(Context context) {
+        ForecastDisplay display = sDisplay;
+        if (display == null || !display.isCurrent()) {
+            int unitsChanges;
+            synchronized (sDisplayLock) {
+                unitsChanges = sUnitsChanges;
+            }
+            display = new ForecastDisplay(context.getApplicationContext());
+            synchronized (sDisplayLock) {
+                // Units that changed while it was made may not be in it, so it isn't kept
+                if (unitsChanges == sUnitsChanges) {
+                    sDisplay = display;
+                }
+            }
+        }
+        return display;
+    }
+
+    // Puts the current display variant in front of a query's arguments, for sDisplayJoin.
+    private String[] withDisplayVariant(String[] selectionArgs) {
+        String variant = getDisplay(getContext()).getVariant();
+        if (selectionArgs == null) {
+            return new String[]{variant};
+        }
+        String[] args = new String[selectionArgs.length + 1];
+        args[0] = variant;
+        System.arraycopy(selectionArgs, 0, args, 1, selectionArgs.length);
+        return args;
+    }
+
+    /*
+        Renders the display rows of every location's forecast for the current variant, once the
+        locale has changed, and then tells the forecast's readers to query again, so they read
+        the new rows the once.  Reads in the meantime find no rows of the variant and render
+        for themselves.
+     */
+    private void renderAllDisplays() {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        ForecastDisplay display = getDisplay(getContext());
+        beginWriteTransaction(db);
+        try {
+            Cursor locations = db.query(WeatherContract.LocationEntry.TABLE_NAME,
+                    new String[]{WeatherContract.LocationEntry._ID}, null, null, null, null,
+                    null);
+            try {
+                while (locations.moveToNext()) {
+                    renderDisplay(db, locations.getLong(0), display);
+                }
+            } finally {
+                locations.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        // The results cached for this variant have the rows missing
+        mQueryCache.invalidateAll();
+        notifyChange(WeatherContract.WeatherEntry.CONTENT_URI);
+    }
+
+    // Renders the location's stale display rows, returning how many.  Must be called from inside
+    // a write transaction on db.
+    private static int renderDisplay(SQLiteDatabase db, long locationId,
+                                     ForecastDisplay display) {
+        Cursor stale = db.rawQuery(sStaleDisplayQuery, getStaleDisplayArgs(locationId, display));
+        if (stale.getCount() == 0) {
+            stale.close();
+            return 0;
+        }
+        SQLiteStatement insert = db.compileStatement(sDisplayInsert);
+        int rendered = 0;
+        try {
+            while (stale.moveToNext()) {
+                display.bind(insert, stale.getLong(0), stale.getLong(1), stale.getInt(2),
+                        stale.getDouble(3), stale.getDouble(4));
+                insert.executeInsert();
+                rendered++;
+            }
+        } finally {
+            insert.close();
+            stale.close();
+        }
+        return rendered;
+    }
+
+    // The past is never shown with friendly dates, so isn't rendered.
+    private static String[] getStaleDisplayArgs(long locationId, ForecastDisplay display) {
+        return new String[]{display.getVariant(), Long.toString(locationId),
+                Long.toString(WeatherContract.normalizeDate(System.currentTimeMillis()))};
+    }
+
+    private static boolean needsLocationColumns(String[] projection) {
+        if (projection == null) {
+            return true;
+        }
+        for (String column : projection) {
+            if (sLocationColumns.contains(column)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isKnownShape(String[] projection, String sortOrder) {
+        if (sortOrder != null && !sKnownSortOrders.contains(sortOrder)) {
+            return false;
+        }
+        if (projection != null) {
+            for (String column : projection) {
+                if (!sKnownColumns.contains(column)) {
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
     /*
@@ -126,10 +1294,46 @@ public class WeatherProvider extends ContentProvider {
 
         // For each type of URI you want to add, create a corresponding code.
         matcher.addURI(authority, WeatherContract.PATH_WEATHER, WEATHER);
+        // These have to come before "weather/*", since the matcher takes the first child that
+        // matches a segment and "*" would otherwise swallow "id" as a location setting.
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/" +
+                WeatherContract.WeatherEntry.PATH_LOCATION_ID + "/#", WEATHER_WITH_LOCATION_ID);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/" +
+                WeatherContract.WeatherEntry.PATH_LOCATION_ID + "/#/#",
+                WEATHER_WITH_LOCATION_ID_AND_DATE);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/" +
+                WeatherContract.WeatherEntry.PATH_STATS, WEATHER_STATS);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*", WEATHER_WITH_LOCATION);
         matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/#", WEATHER_WITH_LOCATION_AND_DATE);
+        matcher.addURI(authority, WeatherContract.PATH_WEATHER + "/*/" +
+                WeatherContract.WeatherEntry.PATH_TODAY, WEATHER_TODAY);
 
         matcher.addURI(authority, WeatherContract.PATH_LOCATION, LOCATION);
+
+        matcher.addURI(authority, WeatherContract.PATH_HISTORY, HISTORY);
+        matcher.addURI(authority, WeatherContract.PATH_HISTORY + "/*/" +
+                WeatherContract.ForecastHistoryEntry.PATH_ACCURACY, HISTORY_ACCURACY);
+
+        matcher.addURI(authority, WeatherContract.PATH_CITY, CITY);
+        matcher.addURI(authority, WeatherContract.PATH_CITY + "/" +
+                WeatherContract.CityEntry.PATH_SEARCH, CITY_SEARCH);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/" +
+                WeatherContract.PATH_NEAREST, LOCATION_NEAREST);
+        matcher.addURI(authority, WeatherContract.PATH_LOCATION + "/" +
+                WeatherContract.PATH_BOUNDS, LOCATION_BOUNDS);
+        matcher.addURI(authority, WeatherContract.PATH_CITY + "/" +
+                WeatherContract.PATH_NEAREST, CITY_NEAREST);
+        matcher.addURI(authority, WeatherContract.PATH_CITY + "/" +
+                WeatherContract.PATH_BOUNDS, CITY_BOUNDS);
+
+        matcher.addURI(authority, WeatherContract.PATH_METRICS, METRICS);
+        matcher.addURI(authority, WeatherContract.PATH_METRICS + "/" +
+                WeatherContract.MetricsEntry.PATH_SLOW_QUERIES, METRICS_SLOW_QUERIES);
+
+        matcher.addURI(authority, WeatherContract.PATH_BACKUP, BACKUP);
+
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY, HOURLY);
+        matcher.addURI(authority, WeatherContract.PATH_HOURLY + "/*", HOURLY_WITH_LOCATION);
         return matcher;
     }
 
@@ -137,12 +1341,121 @@ public class WeatherProvider extends ContentProvider {
         Students: We've coded this for you.  We just create a new WeatherDbHelper for later use
         here.
      */
+    private final boolean mWarmUpOnCreate;
+
+    public WeatherProvider() {
+        this(true);
+    }
+
+    // For measuring a cold start without the warm-up getting in first.
+    WeatherProvider(boolean warmUpOnCreate) {
+        mWarmUpOnCreate = warmUpOnCreate;
+    }
+
     @Override
     public boolean onCreate() {
-        mOpenHelper = new WeatherDbHelper(getContext());
+        mOpenHelper = new WeatherDbHelper(getContext(), mMetrics);
+        // A database rebuilt after corruption has none of what's cached from the old one
+        mOpenHelper.setRebuiltListener(new Runnable() {
+            @Override
+            public void run() {
+                clearLocations();
+                notifyChange(WeatherContract.LocationEntry.CONTENT_URI);
+                notifyChange(WeatherContract.WeatherEntry.CONTENT_URI);
+            }
+        });
+        mLocale = Locale.getDefault();
+        PreferenceManager.getDefaultSharedPreferences(getContext())
+                .registerOnSharedPreferenceChangeListener(mUnitsListener);
+        if (mWarmUpOnCreate) {
+            // The provider is created before anything else in the process runs, so this gets
+            // a head start on the forecast list's first query.  Left at normal priority: the
+            // first query waits on the open if it gets there before the warm-up is done.
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        // Loading the preferences is disk I/O of its own
+                        warmUp(Utility.getPreferredLocation(getContext()));
+                    } catch (SQLiteException e) {
+                        // The query that needed the database will run into this too, and
+                        // report it
+                        Log.w(LOG_TAG, "Couldn't warm up the database", e);
+                    }
+                }
+            }, "WeatherProvider warm-up").start();
+        }
         return true;
     }
 
+    /**
+     * Does what the first queries after a cold start would otherwise do on the main thread:
+     * opens the database, which creates, upgrades or rebuilds it and reads its schema, compiles
+     * the statements a sync uses, and reads the location's forecast the way ForecastRepository
+     * does.  That read pulls the location, weather and display pages and their index pages
+     * into the page cache, and leaves the result in the query cache for the first real query to
+     * find.  Returns how long it took, in nanoseconds, which is also recorded in the metrics.
+     */
+    long warmUp(String locationSetting) {
+        long start = mMetrics.start();
+        SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+
+        // Compiled inside a transaction, as they're always used, so that a sync running already
+        // can't be part way through using them.  Non-exclusive, so only a writer waits on it.
+        beginWriteTransaction(db);
+        try {
+            getWeatherInsertStatement(db);
+            getHistoryInsertStatement(db);
+        } finally {
+            db.endTransaction();
+        }
+
+        Uri forecastUri = WeatherContract.WeatherEntry.buildWeatherLocationWithStartDate(
+                locationSetting, System.currentTimeMillis());
+        Cursor cursor = query(sUriMatcher.match(forecastUri), forecastUri,
+                ForecastRepository.FORECAST_COLUMNS, null, null,
+                WeatherContract.WeatherEntry.COLUMN_DATE + " ASC");
+        int rows;
+        try {
+            rows = cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+        mMetrics.record(ProviderMetrics.OPERATION_WARM_UP, WEATHER_WITH_LOCATION, forecastUri,
+                start, rows, db);
+        long nanos = System.nanoTime() - start;
+        Log.d(LOG_TAG, "Warmed up the database in " + (nanos / 1000) + "us");
+        return nanos;
+    }
+
+    // The display columns are rendered for a locale, so after it changes they're rendered
+    // again, off the main thread.  A change of units is rendered by the sync the settings
+    // screen starts for it.
+    // For tests to tell whether a query was served from the cache.
+    QueryCache getQueryCache() {
+        return mQueryCache;
+    }
+
+    @Override
+    public void onConfigurationChanged(Configuration newConfig) {
+        super.onConfigurationChanged(newConfig);
+        if (newConfig.locale != null && !newConfig.locale.equals(mLocale)) {
+            mLocale = newConfig.locale;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        renderAllDisplays();
+                    } catch (SQLiteException e) {
+                        // Readers render what's missing for themselves in the meantime
+                        Log.w(LOG_TAG, "Couldn't render the forecast for the new locale", e);
+                        notifyChange(WeatherContract.WeatherEntry.CONTENT_URI);
+                    }
+                }
+            }, "WeatherProvider render").start();
+        }
+    }
+
     /*
         Students: Here's where you'll code the getType function that uses the UriMatcher.  You can
         test this by uncommenting testGetType in TestProvider.
@@ -157,13 +1470,36 @@ public class WeatherProvider extends ContentProvider {
         switch (match) {
             // Student: Uncomment and fill out these two cases
             case WEATHER_WITH_LOCATION_AND_DATE:
+            case WEATHER_WITH_LOCATION_ID_AND_DATE:
+            case WEATHER_TODAY:
+            case WEATHER_STATS:
                 return WeatherContract.WeatherEntry.CONTENT_ITEM_TYPE;
             case WEATHER_WITH_LOCATION:
+            case WEATHER_WITH_LOCATION_ID:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case WEATHER:
                 return WeatherContract.WeatherEntry.CONTENT_TYPE;
             case LOCATION:
                 return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case HISTORY:
+            case HISTORY_ACCURACY:
+                return WeatherContract.ForecastHistoryEntry.CONTENT_TYPE;
+            case LOCATION_NEAREST:
+            case LOCATION_BOUNDS:
+                return WeatherContract.LocationEntry.CONTENT_TYPE;
+            case CITY:
+            case CITY_SEARCH:
+            case CITY_NEAREST:
+            case CITY_BOUNDS:
+                return WeatherContract.CityEntry.CONTENT_TYPE;
+            case METRICS:
+            case METRICS_SLOW_QUERIES:
+                return WeatherContract.MetricsEntry.CONTENT_TYPE;
+            case BACKUP:
+                return WeatherContract.BackupEntry.CONTENT_TYPE;
+            case HOURLY:
+            case HOURLY_WITH_LOCATION:
+                return WeatherContract.HourlyEntry.CONTENT_TYPE;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
@@ -172,10 +1508,20 @@ public class WeatherProvider extends ContentProvider {
     @Override
     public Cursor query(Uri uri, String[] projection, String selection, String[] selectionArgs,
                         String sortOrder) {
+        final int match = sUriMatcher.match(uri);
+        final long start = mMetrics.start();
+        Cursor cursor = query(match, uri, projection, selection, selectionArgs, sortOrder);
+        // A cursor only runs its query when it's first read, so that's when it's recorded
+        return mMetrics.recordQuery(match, uri, start, cursor, mOpenHelper.getReadableDatabase());
+    }
+
+    private Cursor query(int match, Uri uri, String[] projection, String selection,
+                         String[] selectionArgs, String sortOrder) {
         // Here's the switch statement that, given a URI, will determine what kind of request it is,
         // and query the database accordingly.
         Cursor retCursor;
-        switch (sUriMatcher.match(uri)) {
+        Uri notificationUri = uri;
+        switch (match) {
             // "weather/*/*"
             case WEATHER_WITH_LOCATION_AND_DATE:
             {
@@ -187,11 +1533,42 @@ public class WeatherProvider extends ContentProvider {
                 retCursor = getWeatherByLocationSetting(uri, projection, sortOrder);
                 break;
             }
+            // "weather/*/today"
+            case WEATHER_TODAY: {
+                String locationSetting = WeatherContract.WeatherEntry.getLocationSettingFromUri(uri);
+                retCursor = getTodaysWeatherByLocationId(getLocationId(locationSetting),
+                        projection);
+                // Which row is today's can change with a write to any of the location's days
+                notificationUri = WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting);
+                break;
+            }
+            // "weather/stats"
+            case WEATHER_STATS: {
+                retCursor = getWeatherStats(uri, projection);
+                // The statistics can cover any number of locations
+                notificationUri = WeatherContract.WeatherEntry.CONTENT_URI;
+                break;
+            }
+            // "weather/id/#/#"
+            case WEATHER_WITH_LOCATION_ID_AND_DATE: {
+                retCursor = getWeatherByLocationIdAndDate(
+                        WeatherContract.WeatherEntry.getLocationIdFromUri(uri),
+                        WeatherContract.WeatherEntry.getDateFromLocationIdUri(uri),
+                        projection, sortOrder);
+                break;
+            }
+            // "weather/id/#"
+            case WEATHER_WITH_LOCATION_ID: {
+                retCursor = getWeatherByLocationId(
+                        WeatherContract.WeatherEntry.getLocationIdFromUri(uri), uri,
+                        projection, sortOrder);
+                break;
+            }
             // "weather"
             case WEATHER: {
                 retCursor = mOpenHelper.getReadableDatabase().query(
                         WeatherContract.WeatherEntry.TABLE_NAME,
-                        projection,
+                        projection == null ? sWeatherColumns : decodeMeasurements(projection),
                         selection,
                         selectionArgs,
                         null,
@@ -213,11 +1590,102 @@ public class WeatherProvider extends ContentProvider {
                 );
                 break;
             }
+            // "history"
+            case HISTORY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.ForecastHistoryEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "city"
+            case CITY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.CityEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "city/search"
+            case CITY_SEARCH: {
+                retCursor = searchCities(uri, projection);
+                break;
+            }
+            // "location/nearest"
+            case LOCATION_NEAREST: {
+                retCursor = queryNearest(WeatherContract.LocationEntry.TABLE_NAME,
+                        WeatherContract.LocationEntry.SPATIAL_INDEX_NAME, uri, projection);
+                break;
+            }
+            // "location/bounds"
+            case LOCATION_BOUNDS: {
+                retCursor = queryBounds(WeatherContract.LocationEntry.TABLE_NAME,
+                        WeatherContract.LocationEntry.SPATIAL_INDEX_NAME, uri, projection,
+                        sortOrder);
+                break;
+            }
+            // "city/nearest"
+            case CITY_NEAREST: {
+                retCursor = queryNearest(WeatherContract.CityEntry.TABLE_NAME,
+                        WeatherContract.CityEntry.SPATIAL_INDEX_NAME, uri, projection);
+                break;
+            }
+            // "city/bounds"
+            case CITY_BOUNDS: {
+                retCursor = queryBounds(WeatherContract.CityEntry.TABLE_NAME,
+                        WeatherContract.CityEntry.SPATIAL_INDEX_NAME, uri, projection,
+                        sortOrder);
+                break;
+            }
+            // "metrics"
+            case METRICS: {
+                return mMetrics.getMetrics();
+            }
+            // "metrics/slow"
+            case METRICS_SLOW_QUERIES: {
+                return mMetrics.getSlowQueries();
+            }
+            // "hourly"
+            case HOURLY: {
+                retCursor = mOpenHelper.getReadableDatabase().query(
+                        WeatherContract.HourlyEntry.TABLE_NAME,
+                        projection,
+                        selection,
+                        selectionArgs,
+                        null,
+                        null,
+                        sortOrder
+                );
+                break;
+            }
+            // "hourly/*"
+            case HOURLY_WITH_LOCATION: {
+                retCursor = getHourlyPoints(uri, projection);
+                break;
+            }
+            // "history/*/accuracy"
+            case HISTORY_ACCURACY: {
+                long locationId = getLocationId(
+                        WeatherContract.ForecastHistoryEntry.getLocationSettingFromUri(uri));
+                retCursor = mOpenHelper.getReadableDatabase().rawQuery(sForecastAccuracyQuery,
+                        new String[]{Long.toString(locationId)});
+                break;
+            }
 
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        retCursor.setNotificationUri(getContext().getContentResolver(), uri);
+        retCursor.setNotificationUri(getContext().getContentResolver(), notificationUri);
         return retCursor;
     }
 
@@ -233,60 +1701,204 @@ public class WeatherProvider extends ContentProvider {
         switch (match) {
             case WEATHER: {
                 normalizeDate(values);
-                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, values);
+                long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                        encodeMeasurements(values));
                 if ( _id > 0 )
                     returnUri = WeatherContract.WeatherEntry.buildWeatherUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                Long locationId = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+                invalidateLocation(locationId);
+                Map<Long, Set<Long>> changedDates = new HashMap<>();
+                addChangedDate(changedDates, locationId,
+                        values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+                notifyWeatherChanges(changedDates);
                 break;
             }
             case LOCATION: {
+                checkLocationSetting(values);
                 long _id = db.insert(WeatherContract.LocationEntry.TABLE_NAME, null, values);
                 if ( _id > 0 )
                     returnUri = WeatherContract.LocationEntry.buildLocationUri(_id);
                 else
                     throw new android.database.SQLException("Failed to insert row into " + uri);
+                notifyChange(uri);
                 break;
             }
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        getContext().getContentResolver().notifyChange(uri, null);
         return returnUri;
     }
 
     @Override
     public int delete(Uri uri, String selection, String[] selectionArgs) {
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
+        final long start = mMetrics.start();
+        int rowsDeleted = delete(match, uri, selection, selectionArgs);
+        mMetrics.record(ProviderMetrics.OPERATION_DELETE, match, uri, start, rowsDeleted,
+                mOpenHelper.getReadableDatabase());
+        return rowsDeleted;
+    }
+
+    private int delete(int match, Uri uri, String selection, String[] selectionArgs) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         int rowsDeleted;
         // this makes delete all rows return the number of rows deleted
         if ( null == selection ) selection = "1";
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
+                beginWriteTransaction(db);
+                Map<Long, Set<Long>> changedDates;
+                try {
+                    changedDates = getWeatherDates(db, selection, selectionArgs);
+                    rowsDeleted = db.delete(
+                            WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                invalidateLocations(changedDates.keySet());
+                notifyWeatherChanges(changedDates);
+                break;
+            }
+            case CITY:
+                beginWriteTransaction(db);
+                try {
+                    db.delete(WeatherContract.CityEntry.FTS_TABLE_NAME, "docid IN (SELECT " +
+                            WeatherContract.CityEntry._ID + " FROM " +
+                            WeatherContract.CityEntry.TABLE_NAME + " WHERE " + selection + ")",
+                            selectionArgs);
+                    rowsDeleted = db.delete(
+                            WeatherContract.CityEntry.TABLE_NAME, selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                if (rowsDeleted != 0) {
+                    notifyChange(uri);
+                }
+                break;
+            case HISTORY:
+                rowsDeleted = db.delete(
+                        WeatherContract.ForecastHistoryEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    notifyChange(uri);
+                }
+                break;
+            case HOURLY:
                 rowsDeleted = db.delete(
-                        WeatherContract.WeatherEntry.TABLE_NAME, selection, selectionArgs);
+                        WeatherContract.HourlyEntry.TABLE_NAME, selection, selectionArgs);
+                if (rowsDeleted != 0) {
+                    notifyChange(uri);
+                }
                 break;
             case LOCATION:
                 rowsDeleted = db.delete(
                         WeatherContract.LocationEntry.TABLE_NAME, selection, selectionArgs);
+                clearLocations();
+                // Because a null deletes all rows
+                if (rowsDeleted != 0) {
+                    notifyChange(uri);
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        // Because a null deletes all rows
-        if (rowsDeleted != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
-        }
         return rowsDeleted;
     }
 
     private void normalizeDate(ContentValues values) {
+        normalizeDate(values, new Time());
+    }
+
+    private void normalizeDate(ContentValues values, Time time) {
         // normalize the date value
         if (values.containsKey(WeatherContract.WeatherEntry.COLUMN_DATE)) {
             long dateValue = values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
-            values.put(WeatherContract.WeatherEntry.COLUMN_DATE, WeatherContract.normalizeDate(dateValue));
+            values.put(WeatherContract.WeatherEntry.COLUMN_DATE,
+                    WeatherContract.normalizeDate(dateValue, time));
+        }
+    }
+
+    private static boolean hasOnlyColumns(ContentValues values, String[] columns) {
+        if (values.size() != columns.length) {
+            return false;
+        }
+        for (String column : columns) {
+            if (!values.containsKey(column)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Must be called from inside a write transaction on db.
+    private SQLiteStatement getWeatherInsertStatement(SQLiteDatabase db) {
+        if (mWeatherInsertStatement == null || mWeatherInsertDb != db) {
+            if (mWeatherInsertStatement != null) {
+                mWeatherInsertStatement.close();
+            }
+            StringBuilder sql = new StringBuilder("INSERT INTO ")
+                    .append(WeatherContract.WeatherEntry.TABLE_NAME).append(" (");
+            StringBuilder params = new StringBuilder();
+            for (int i = 0; i < WEATHER_INSERT_COLUMNS.length; i++) {
+                if (i > 0) {
+                    sql.append(',');
+                    params.append(',');
+                }
+                sql.append(WEATHER_INSERT_COLUMNS[i]);
+                params.append('?');
+            }
+            sql.append(") VALUES (").append(params).append(')');
+            mWeatherInsertStatement = db.compileStatement(sql.toString());
+            mWeatherInsertDb = db;
+        }
+        return mWeatherInsertStatement;
+    }
+
+    // Must be called from inside a write transaction on db.  The first forecast made for a day at
+    // a given horizon is the one kept; later syncs on the same day are ignored.
+    private SQLiteStatement getHistoryInsertStatement(SQLiteDatabase db) {
+        if (mHistoryInsertStatement == null || mHistoryInsertDb != db) {
+            if (mHistoryInsertStatement != null) {
+                mHistoryInsertStatement.close();
+            }
+            mHistoryInsertStatement = db.compileStatement("INSERT OR IGNORE INTO " +
+                    WeatherContract.ForecastHistoryEntry.TABLE_NAME + " (" +
+                    WeatherContract.ForecastHistoryEntry.COLUMN_LOC_KEY + "," +
+                    WeatherContract.ForecastHistoryEntry.COLUMN_DATE + "," +
+                    WeatherContract.ForecastHistoryEntry.COLUMN_HORIZON + "," +
+                    WeatherContract.ForecastHistoryEntry.COLUMN_WEATHER_ID + "," +
+                    WeatherContract.ForecastHistoryEntry.COLUMN_MIN_TEMP + "," +
+                    WeatherContract.ForecastHistoryEntry.COLUMN_MAX_TEMP +
+                    ") VALUES (?,?,?,?,?,?)");
+            mHistoryInsertDb = db;
+        }
+        return mHistoryInsertStatement;
+    }
+
+    // Adds a weather row, made today, to the forecast history.  Returns whether it was new.
+    private static boolean recordForecast(SQLiteStatement insert, ContentValues value,
+                                          long today) {
+        Long locationId = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY);
+        Long date = value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE);
+        Integer weatherId = value.getAsInteger(WeatherContract.WeatherEntry.COLUMN_WEATHER_ID);
+        Double min = value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MIN_TEMP);
+        Double max = value.getAsDouble(WeatherContract.WeatherEntry.COLUMN_MAX_TEMP);
+        if (locationId == null || date == null || weatherId == null || min == null || max == null
+                || date < today) {
+            return false;
         }
+        // Rounded, since days in local time aren't all 24 hours long
+        long horizon = Math.round((date - today) / (double) DAY_IN_MILLIS);
+        insert.bindLong(1, locationId);
+        insert.bindLong(2, date);
+        insert.bindLong(3, horizon);
+        insert.bindLong(4, weatherId);
+        insert.bindLong(5, Math.round(min * WeatherContract.ForecastHistoryEntry.TEMPERATURE_SCALE));
+        insert.bindLong(6, Math.round(max * WeatherContract.ForecastHistoryEntry.TEMPERATURE_SCALE));
+        return insert.executeInsert() != -1;
     }
 
     @Override
@@ -297,58 +1909,937 @@ public class WeatherProvider extends ContentProvider {
         int rowsUpdated;
 
         switch (match) {
-            case WEATHER:
+            case WEATHER: {
                 normalizeDate(values);
-                rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME, values, selection,
-                        selectionArgs);
+                beginWriteTransaction(db);
+                Map<Long, Set<Long>> changedDates;
+                try {
+                    changedDates = getWeatherDates(db, selection, selectionArgs);
+                    rowsUpdated = db.update(WeatherContract.WeatherEntry.TABLE_NAME,
+                            encodeMeasurements(values), selection, selectionArgs);
+                    db.setTransactionSuccessful();
+                } finally {
+                    db.endTransaction();
+                }
+                addMovedDates(changedDates,
+                        values.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY),
+                        values.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+                invalidateLocations(changedDates.keySet());
+                notifyWeatherChanges(changedDates);
                 break;
+            }
             case LOCATION:
+                checkLocationSetting(values);
                 rowsUpdated = db.update(WeatherContract.LocationEntry.TABLE_NAME, values, selection,
                         selectionArgs);
+                clearLocations();
+                if (rowsUpdated != 0) {
+                    notifyChange(uri);
+                }
                 break;
             default:
                 throw new UnsupportedOperationException("Unknown uri: " + uri);
         }
-        if (rowsUpdated != 0) {
-            getContext().getContentResolver().notifyChange(uri, null);
-        }
         return rowsUpdated;
     }
 
     @Override
     public int bulkInsert(Uri uri, ContentValues[] values) {
-        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         final int match = sUriMatcher.match(uri);
+        final long start = mMetrics.start();
+        int returnCount = bulkInsert(match, uri, values);
+        mMetrics.record(ProviderMetrics.OPERATION_BULK_INSERT, match, uri, start, returnCount,
+                mOpenHelper.getReadableDatabase());
+        return returnCount;
+    }
+
+    private int bulkInsert(int match, Uri uri, ContentValues[] values) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
         switch (match) {
             case WEATHER:
-                db.beginTransaction();
+                beginWriteTransaction(db);
                 int returnCount = 0;
+                int historyCount = 0;
+                Map<Long, Set<Long>> changedDates = new HashMap<>();
                 try {
+                    final SQLiteStatement insert = getWeatherInsertStatement(db);
+                    final SQLiteStatement history = getHistoryInsertStatement(db);
+                    final Time time = new Time();
+                    final long today = WeatherContract.normalizeDate(System.currentTimeMillis(),
+                            time);
                     for (ContentValues value : values) {
-                        normalizeDate(value);
-                        long _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null, value);
+                        normalizeDate(value, time);
+                        long _id;
+                        if (hasOnlyColumns(value, WEATHER_INSERT_COLUMNS)) {
+                            for (int i = 0; i < WEATHER_INSERT_COLUMNS.length; i++) {
+                                String column = WEATHER_INSERT_COLUMNS[i];
+                                Double measurement = sMeasurementColumns.contains(column)
+                                        ? value.getAsDouble(column) : null;
+                                if (measurement != null) {
+                                    insert.bindLong(i + 1, WeatherContract.WeatherEntry
+                                            .encodeMeasurement(measurement));
+                                } else {
+                                    DatabaseUtils.bindObjectToProgram(insert, i + 1,
+                                            value.get(column));
+                                }
+                            }
+                            try {
+                                _id = insert.executeInsert();
+                            } catch (SQLiteConstraintException e) {
+                                // Skip the row, as db.insert does, rather than lose the batch
+                                Log.e(LOG_TAG, "Error inserting " + value, e);
+                                _id = -1;
+                            }
+                        } else {
+                            _id = db.insert(WeatherContract.WeatherEntry.TABLE_NAME, null,
+                                    encodeMeasurements(value));
+                        }
                         if (_id != -1) {
                             returnCount++;
+                            addChangedDate(changedDates,
+                                    value.getAsLong(WeatherContract.WeatherEntry.COLUMN_LOC_KEY),
+                                    value.getAsLong(WeatherContract.WeatherEntry.COLUMN_DATE));
+                            if (recordForecast(history, value, today)) {
+                                historyCount++;
+                            }
+                        }
+                    }
+                    // The forecast is read soon after a sync, so render it while it's written
+                    ForecastDisplay display = getDisplay(getContext());
+                    for (Long locationId : changedDates.keySet()) {
+                        if (locationId != null) {
+                            renderDisplay(db, locationId, display);
                         }
                     }
                     db.setTransactionSuccessful();
                 } finally {
                     db.endTransaction();
                 }
-                getContext().getContentResolver().notifyChange(uri, null);
+                invalidateLocations(changedDates.keySet());
+                notifyWeatherChanges(changedDates);
+                if (historyCount > 0) {
+                    notifyChange(WeatherContract.ForecastHistoryEntry.CONTENT_URI);
+                }
+                if (mRowsSinceCheckpoint.addAndGet(returnCount) >= WAL_CHECKPOINT_ROWS) {
+                    mRowsSinceCheckpoint.set(0);
+                    checkpoint(db);
+                }
                 return returnCount;
+            case LOCATION:
+                return upsertLocations(values).length;
+            case CITY:
+                return insertCities(db, values);
+            case HOURLY:
+                return insertHourlyPoints(db, values);
             default:
                 return super.bulkInsert(uri, values);
         }
     }
 
+    // Adds cities to the table and to its full-text index in one transaction.  An import is
+    // hundreds of thousands of rows, so both inserts are compiled once for the whole call.
+    private int insertCities(SQLiteDatabase db, ContentValues[] values) {
+        int returnCount = 0;
+        beginWriteTransaction(db);
+        SQLiteStatement insertCity = null;
+        SQLiteStatement deleteIndex = null;
+        SQLiteStatement insertIndex = null;
+        try {
+            insertCity = db.compileStatement("INSERT OR REPLACE INTO " +
+                    WeatherContract.CityEntry.TABLE_NAME + " (" +
+                    WeatherContract.CityEntry._ID + "," +
+                    WeatherContract.CityEntry.COLUMN_CITY_NAME + "," +
+                    WeatherContract.CityEntry.COLUMN_COUNTRY + "," +
+                    WeatherContract.CityEntry.COLUMN_COORD_LAT + "," +
+                    WeatherContract.CityEntry.COLUMN_COORD_LONG + "," +
+                    WeatherContract.CityEntry.COLUMN_POPULATION + ") VALUES (?,?,?,?,?,?)");
+            // The old SQLite of early devices doesn't reliably replace a row of an FTS3 table on
+            // conflict, so a city already in the index is deleted from it first
+            deleteIndex = db.compileStatement("DELETE FROM " +
+                    WeatherContract.CityEntry.FTS_TABLE_NAME + " WHERE docid = ?");
+            insertIndex = db.compileStatement("INSERT INTO " +
+                    WeatherContract.CityEntry.FTS_TABLE_NAME + " (docid," +
+                    WeatherContract.CityEntry.COLUMN_CITY_NAME + "," +
+                    WeatherContract.CityEntry.COLUMN_COUNTRY + ") VALUES (?,?,?)");
+            for (ContentValues value : values) {
+                Long id = value.getAsLong(WeatherContract.CityEntry._ID);
+                String name = value.getAsString(WeatherContract.CityEntry.COLUMN_CITY_NAME);
+                String country = value.getAsString(WeatherContract.CityEntry.COLUMN_COUNTRY);
+                Double latitude = value.getAsDouble(WeatherContract.CityEntry.COLUMN_COORD_LAT);
+                Double longitude = value.getAsDouble(WeatherContract.CityEntry.COLUMN_COORD_LONG);
+                Long population = value.getAsLong(WeatherContract.CityEntry.COLUMN_POPULATION);
+                if (id == null || name == null || country == null || latitude == null ||
+                        longitude == null) {
+                    throw new IllegalArgumentException("Incomplete city: " + value);
+                }
+                insertCity.bindLong(1, id);
+                insertCity.bindString(2, name);
+                insertCity.bindString(3, country);
+                insertCity.bindDouble(4, latitude);
+                insertCity.bindDouble(5, longitude);
+                insertCity.bindLong(6, population == null ? 0 : population);
+                insertCity.executeInsert();
+                deleteIndex.bindLong(1, id);
+                deleteIndex.execute();
+                insertIndex.bindLong(1, id);
+                insertIndex.bindString(2, name);
+                insertIndex.bindString(3, country);
+                insertIndex.executeInsert();
+                returnCount++;
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if (insertCity != null) {
+                insertCity.close();
+            }
+            if (deleteIndex != null) {
+                deleteIndex.close();
+            }
+            if (insertIndex != null) {
+                insertIndex.close();
+            }
+        }
+        notifyChange(WeatherContract.CityEntry.CONTENT_URI);
+        return returnCount;
+    }
+
+    // Adds points to the hourly store, in one transaction.  The new points of each location-day
+    // are merged with the block already stored for it, one at the same time as a stored point
+    // replacing it, and the day is written back as a single block.  Returns the number of
+    // distinct points written.
+    private int insertHourlyPoints(SQLiteDatabase db, ContentValues[] values) {
+        Map<Long, Map<Long, TreeMap<Long, long[]>>> locations = new HashMap<>();
+        for (ContentValues value : values) {
+            Long locationId = value.getAsLong(WeatherContract.HourlyEntry.COLUMN_LOC_KEY);
+            Long time = value.getAsLong(WeatherContract.HourlyEntry.POINT_TIME);
+            Integer weatherId = value.getAsInteger(WeatherContract.HourlyEntry.POINT_WEATHER_ID);
+            if (locationId == null || time == null || weatherId == null) {
+                throw new IllegalArgumentException("Point without a location, time or weather " +
+                        "id: " + value);
+            }
+            long[] point = new long[TimeSeriesBlock.VALUE_COUNT];
+            for (Map.Entry<String, Integer> column : sHourlyPointColumns.entrySet()) {
+                int index = column.getValue();
+                if (index == POINT_TIME_VALUE || index == TimeSeriesBlock.VALUE_WEATHER_ID) {
+                    continue;
+                }
+                Double measurement = value.getAsDouble(column.getKey());
+                if (measurement == null) {
+                    throw new IllegalArgumentException("Point without " + column.getKey() +
+                            ": " + value);
+                }
+                point[index] = WeatherContract.WeatherEntry.encodeMeasurement(measurement);
+            }
+            point[TimeSeriesBlock.VALUE_WEATHER_ID] = weatherId;
+
+            Map<Long, TreeMap<Long, long[]>> days = locations.get(locationId);
+            if (days == null) {
+                days = new HashMap<>();
+                locations.put(locationId, days);
+            }
+            long date = TimeSeriesBlock.getBlockDate(time);
+            TreeMap<Long, long[]> points = days.get(date);
+            if (points == null) {
+                points = new TreeMap<>();
+                days.put(date, points);
+            }
+            points.put(time, point);
+        }
+
+        // Points given twice for the same time are stored once, so count what's written
+        int written = 0;
+        beginWriteTransaction(db);
+        SQLiteStatement insert = null;
+        try {
+            insert = db.compileStatement("INSERT OR REPLACE INTO " +
+                    WeatherContract.HourlyEntry.TABLE_NAME + " (" +
+                    WeatherContract.HourlyEntry.COLUMN_LOC_KEY + "," +
+                    WeatherContract.HourlyEntry.COLUMN_DATE + "," +
+                    WeatherContract.HourlyEntry.COLUMN_COUNT + "," +
+                    WeatherContract.HourlyEntry.COLUMN_BLOCK + ") VALUES (?,?,?,?)");
+            for (Map.Entry<Long, Map<Long, TreeMap<Long, long[]>>> location :
+                    locations.entrySet()) {
+                long locationId = location.getKey();
+                for (Map.Entry<Long, TreeMap<Long, long[]>> day : location.getValue().entrySet()) {
+                    long date = day.getKey();
+                    TreeMap<Long, long[]> points = day.getValue();
+                    int given = points.size();
+                    mergeHourlyBlock(db, locationId, date, points);
+
+                    long[] times = new long[points.size()];
+                    long[][] pointValues = new long[points.size()][];
+                    int i = 0;
+                    for (Map.Entry<Long, long[]> point : points.entrySet()) {
+                        times[i] = point.getKey();
+                        pointValues[i++] = point.getValue();
+                    }
+                    insert.bindLong(1, locationId);
+                    insert.bindLong(2, date);
+                    insert.bindLong(3, times.length);
+                    insert.bindBlob(4, TimeSeriesBlock.encode(date, times, pointValues,
+                            times.length));
+                    if (insert.executeInsert() != -1) {
+                        written += given;
+                    }
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            if (insert != null) {
+                insert.close();
+            }
+        }
+
+        invalidateLocations(locations.keySet());
+        for (Long locationId : locations.keySet()) {
+            String locationSetting = getLocationSetting(locationId);
+            notifyChange(locationSetting == null ? WeatherContract.HourlyEntry.CONTENT_URI
+                    : WeatherContract.HourlyEntry.buildHourlyLocation(locationSetting));
+        }
+        return written;
+    }
+
+    // Adds the points of the block stored for the location-day to points, except those at a
+    // time points already has.
+    private static void mergeHourlyBlock(SQLiteDatabase db, long locationId, long date,
+                                         TreeMap<Long, long[]> points) {
+        Cursor stored = db.query(WeatherContract.HourlyEntry.TABLE_NAME,
+                new String[]{WeatherContract.HourlyEntry.COLUMN_BLOCK},
+                sHourlyDaySelection,
+                new String[]{Long.toString(locationId), Long.toString(date)},
+                null, null, null);
+        try {
+            if (!stored.moveToFirst()) {
+                return;
+            }
+            TimeSeriesBlock.Decoder decoder = new TimeSeriesBlock.Decoder(stored.getBlob(0), date);
+            while (decoder.next()) {
+                if (points.containsKey(decoder.getTime())) {
+                    continue;
+                }
+                long[] point = new long[TimeSeriesBlock.VALUE_COUNT];
+                for (int v = 0; v < point.length; v++) {
+                    point[v] = decoder.getValue(v);
+                }
+                points.put(decoder.getTime(), point);
+            }
+        } finally {
+            stored.close();
+        }
+    }
+
+    @Override
+    public Bundle call(String method, String arg, Bundle extras) {
+        if (WeatherContract.LocationEntry.METHOD_UPSERT.equals(method)) {
+            Parcelable[] parcelables =
+                    extras.getParcelableArray(WeatherContract.LocationEntry.EXTRA_VALUES);
+            ContentValues[] values = new ContentValues[parcelables.length];
+            System.arraycopy(parcelables, 0, values, 0, parcelables.length);
+            Bundle result = new Bundle();
+            result.putLongArray(WeatherContract.LocationEntry.EXTRA_IDS, upsertLocations(values));
+            return result;
+        } else if (WeatherContract.METHOD_QUERY_BATCH.equals(method)) {
+            Bundle result = new Bundle();
+            result.putParcelableArrayList(WeatherContract.EXTRA_RESULTS, queryBatch(
+                    extras.<Bundle>getParcelableArrayList(WeatherContract.EXTRA_QUERIES)));
+            return result;
+        } else if (WeatherContract.METHOD_COMPACT.equals(method)) {
+            Bundle result = new Bundle();
+            extras = extras == null ? new Bundle() : extras;
+            String token = extras.getString(WeatherContract.EXTRA_COMPACT_TOKEN);
+            result.putLong(WeatherContract.EXTRA_BYTES_RECLAIMED, compact(extras, token));
+            result.putBoolean(WeatherContract.EXTRA_CANCELLED, isCompactionCancelled(token));
+            return result;
+        } else if (WeatherContract.METHOD_CANCEL_COMPACT.equals(method)) {
+            mCancelledCompaction.set(arg);
+            return null;
+        }
+        return super.call(method, arg, extras);
+    }
+
+    // A backup goes through a pipe, with a thread of its own at the provider's end, so it
+    // streams at whatever pace the other end reads or writes it and is never held whole.
+    @Override
+    public ParcelFileDescriptor openFile(Uri uri, String mode) throws FileNotFoundException {
+        if (sUriMatcher.match(uri) != BACKUP) {
+            return super.openFile(uri, mode);
+        }
+        boolean write = mode.contains("w");
+        if (write && mode.contains("r")) {
+            throw new FileNotFoundException("A backup is read or written, not both: " + mode);
+        }
+        if (write && !sImporting.compareAndSet(false, true)) {
+            throw new FileNotFoundException("A backup import is already running");
+        }
+        ParcelFileDescriptor[] pipe;
+        try {
+            pipe = ParcelFileDescriptor.createPipe();
+        } catch (IOException e) {
+            if (write) {
+                sImporting.set(false);
+            }
+            throw new FileNotFoundException("Couldn't create a pipe: " + e.getMessage());
+        }
+        if (write) {
+            startImport(uri, pipe[0]);
+            return pipe[1];
+        }
+        startExport(uri, pipe[1]);
+        return pipe[0];
+    }
+
+    // openTypedAssetFile hands any request that the type matches to openFile.
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    @Override
+    public String[] getStreamTypes(Uri uri, String mimeTypeFilter) {
+        if (sUriMatcher.match(uri) == BACKUP && ClipDescription.compareMimeTypes(
+                WeatherContract.BackupEntry.CONTENT_TYPE, mimeTypeFilter)) {
+            return new String[]{WeatherContract.BackupEntry.CONTENT_TYPE};
+        }
+        return super.getStreamTypes(uri, mimeTypeFilter);
+    }
+
+    private void startExport(final Uri uri, final ParcelFileDescriptor output) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = mMetrics.start();
+                OutputStream out = new ParcelFileDescriptor.AutoCloseOutputStream(output);
+                try {
+                    SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+                    int rows = DatabaseBackup.export(db, out);
+                    mMetrics.record(ProviderMetrics.OPERATION_EXPORT, BACKUP, uri, start, rows,
+                            db);
+                } catch (IOException | SQLiteException e) {
+                    // Most likely the reader closed its end early; either way what it has read
+                    // ends without the trailer, so it can tell the backup isn't whole
+                    Log.w(LOG_TAG, "Backup export stopped", e);
+                } finally {
+                    closeQuietly(out);
+                }
+            }
+        }, "WeatherProvider export").start();
+    }
+
+    // Must only be called once sImporting has been set, which the import clears when it ends.
+    private void startImport(final Uri uri, final ParcelFileDescriptor input) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long start = mMetrics.start();
+                InputStream in = new ParcelFileDescriptor.AutoCloseInputStream(input);
+                SQLiteDatabase db = null;
+                try {
+                    db = mOpenHelper.getWritableDatabase();
+                    int rows = DatabaseBackup.restore(db, in);
+                    mMetrics.record(ProviderMetrics.OPERATION_IMPORT, BACKUP, uri, start, rows,
+                            db);
+                    Log.i(LOG_TAG, "Imported " + rows + " rows in " +
+                            ((System.nanoTime() - start) / 1000000) + "ms");
+                } catch (IOException | SQLiteException e) {
+                    Log.e(LOG_TAG, "Backup import failed", e);
+                } finally {
+                    closeQuietly(in);
+                    sImporting.set(false);
+                    if (db != null) {
+                        // Whether it finished or not, the tables have changed under every
+                        // cache and cursor
+                        clearLocations();
+                        notifyChange(WeatherContract.LocationEntry.CONTENT_URI);
+                        notifyChange(WeatherContract.WeatherEntry.CONTENT_URI);
+                        notifyChange(WeatherContract.ForecastHistoryEntry.CONTENT_URI);
+                        notifyChange(WeatherContract.HourlyEntry.CONTENT_URI);
+                        notifyChange(WeatherContract.CityEntry.CONTENT_URI);
+                        notifyChange(uri);
+                    }
+                }
+            }
+        }, "WeatherProvider import").start();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        try {
+            closeable.close();
+        } catch (IOException e) {
+            Log.w(LOG_TAG, "Couldn't close the backup pipe", e);
+        }
+    }
+
+    // Runs each query through query() and copies its rows into a cursor window, all inside one
+    // transaction so that no write can land between them.  The queries skip the result cache,
+    // which could hand back rows read before the transaction began.  The framework only begins a
+    // transaction with BEGIN IMMEDIATE, which takes the write lock even though nothing is
+    // written, so a sync waits for as long as the batch takes; a deferred read transaction
+    // isn't available through SQLiteDatabase.  Results are limited to one window each, which
+    // keeps that short.  The windows are filled before the transaction ends because the cursors
+    // read lazily, and a row read after it could come from a later commit.
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    private ArrayList<Bundle> queryBatch(ArrayList<Bundle> queries) {
+        ArrayList<Bundle> results = new ArrayList<>(queries.size());
+        SQLiteDatabase db = mOpenHelper.getReadableDatabase();
+        db.beginTransactionNonExclusive();
+        mInQueryBatch.set(Boolean.TRUE);
+        try {
+            for (Bundle query : queries) {
+                Cursor cursor = query(Uri.parse(query.getString(WeatherContract.EXTRA_URI)),
+                        query.getStringArray(WeatherContract.EXTRA_PROJECTION),
+                        query.getString(WeatherContract.EXTRA_SELECTION),
+                        query.getStringArray(WeatherContract.EXTRA_SELECTION_ARGS),
+                        query.getString(WeatherContract.EXTRA_SORT_ORDER));
+                try {
+                    CursorWindow window = Build.VERSION.SDK_INT >=
+                            Build.VERSION_CODES.ICE_CREAM_SANDWICH_MR1
+                            ? new CursorWindow(LOG_TAG) : new CursorWindow(false);
+                    int rows = cursor.getCount();
+                    DatabaseUtils.cursorFillWindow(cursor, 0, window);
+                    if (window.getNumRows() < rows) {
+                        // cursorFillWindow stops quietly once the window is full
+                        window.close();
+                        throw new IllegalArgumentException("Batched query of " + rows +
+                                " rows doesn't fit in a cursor window: " +
+                                query.getString(WeatherContract.EXTRA_URI));
+                    }
+                    Bundle result = new Bundle();
+                    result.putStringArray(WeatherContract.EXTRA_COLUMNS, cursor.getColumnNames());
+                    result.putParcelable(WeatherContract.EXTRA_WINDOW, window);
+                    result.putInt(WeatherContract.EXTRA_ROW_COUNT, rows);
+                    results.add(result);
+                } finally {
+                    cursor.close();
+                }
+            }
+            db.setTransactionSuccessful();
+        } catch (RuntimeException e) {
+            for (Bundle result : results) {
+                ((CursorWindow) result.getParcelable(WeatherContract.EXTRA_WINDOW)).close();
+            }
+            throw e;
+        } finally {
+            mInQueryBatch.remove();
+            db.endTransaction();
+        }
+        return results;
+    }
+
+    private boolean isCompactionCancelled(String token) {
+        return token != null && token.equals(mCancelledCompaction.get());
+    }
+
+    // Deletes weather past its retention, and optionally the locations left without any, then
+    // gives the free pages back and refreshes the planner's statistics.  Returns the number of
+    // bytes the database file shrank by.  Once the compaction with token is cancelled, no
+    // further batch is started and the vacuum is skipped.
+    private long compact(Bundle extras, String token) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final long pagesBefore = longForPragma(db, "page_count");
+
+        Time dayTime = new Time();
+        dayTime.setToNow();
+        int julianToday = Time.getJulianDay(System.currentTimeMillis(), dayTime.gmtoff);
+        dayTime = new Time();
+        int retentionDays = extras.getInt(WeatherContract.EXTRA_WEATHER_RETENTION_DAYS,
+                DEFAULT_WEATHER_RETENTION_DAYS);
+        long cutoff = dayTime.setJulianDay(julianToday - retentionDays);
+
+        // Each batch goes through delete(), and so is its own transaction that invalidates and
+        // notifies only the locations it touched.
+        String batchSelection = WeatherContract.WeatherEntry._ID + " IN (SELECT " +
+                WeatherContract.WeatherEntry._ID + " FROM " +
+                WeatherContract.WeatherEntry.TABLE_NAME + " WHERE " +
+                WeatherContract.WeatherEntry.COLUMN_DATE + " < ? LIMIT " + COMPACT_BATCH_ROWS + ")";
+        String[] batchArgs = new String[]{Long.toString(cutoff)};
+        int deleted;
+        do {
+            if (isCompactionCancelled(token)) {
+                return 0;
+            }
+            deleted = delete(WeatherContract.WeatherEntry.CONTENT_URI, batchSelection, batchArgs);
+        } while (deleted == COMPACT_BATCH_ROWS);
+
+        int historyRetentionDays = extras.getInt(WeatherContract.EXTRA_HISTORY_RETENTION_DAYS,
+                DEFAULT_HISTORY_RETENTION_DAYS);
+        String historySelection = "rowid IN (SELECT rowid FROM " +
+                WeatherContract.ForecastHistoryEntry.TABLE_NAME + " WHERE " +
+                WeatherContract.ForecastHistoryEntry.COLUMN_DATE + " < ? LIMIT " +
+                COMPACT_BATCH_ROWS + ")";
+        String[] historyArgs = new String[]{
+                Long.toString(dayTime.setJulianDay(julianToday - historyRetentionDays))};
+        do {
+            if (isCompactionCancelled(token)) {
+                return 0;
+            }
+            deleted = delete(WeatherContract.ForecastHistoryEntry.CONTENT_URI, historySelection,
+                    historyArgs);
+        } while (deleted == COMPACT_BATCH_ROWS);
+        if (isCompactionCancelled(token)) {
+            return 0;
+        }
+        // A row a location-day, so few enough to go in one
+        delete(WeatherContract.HourlyEntry.CONTENT_URI,
+                WeatherContract.HourlyEntry.COLUMN_DATE + " < ?", historyArgs);
+
+        if (extras.getBoolean(WeatherContract.EXTRA_PRUNE_LOCATIONS, false)) {
+            delete(WeatherContract.LocationEntry.CONTENT_URI,
+                    WeatherContract.LocationEntry._ID + " NOT IN (SELECT " +
+                            WeatherContract.WeatherEntry.COLUMN_LOC_KEY + " FROM " +
+                            WeatherContract.WeatherEntry.TABLE_NAME + ") AND " +
+                            WeatherContract.LocationEntry._ID + " NOT IN (SELECT " +
+                            WeatherContract.HourlyEntry.COLUMN_LOC_KEY + " FROM " +
+                            WeatherContract.HourlyEntry.TABLE_NAME + ") AND " +
+                            // Ids are reused, so a location deleted from under its history
+                            // would hand that history on to the next location added
+                            WeatherContract.LocationEntry._ID + " NOT IN (SELECT " +
+                            WeatherContract.ForecastHistoryEntry.COLUMN_LOC_KEY + " FROM " +
+                            WeatherContract.ForecastHistoryEntry.TABLE_NAME + ")",
+                    null);
+        }
+
+        // The deletes leave nothing to undo, but the vacuum can rewrite the whole file
+        if (isCompactionCancelled(token)) {
+            return 0;
+        }
+        try {
+            if (longForPragma(db, "auto_vacuum") != AUTO_VACUUM_INCREMENTAL) {
+                // Databases created before incremental vacuuming was turned on can only be
+                // switched over by rebuilding the file once.
+                db.execSQL("PRAGMA auto_vacuum = INCREMENTAL");
+                db.execSQL("VACUUM");
+            } else {
+                runPragma(db, "incremental_vacuum");
+            }
+            db.execSQL("ANALYZE");
+        } catch (SQLiteException e) {
+            // Another connection is busy; the pages are still free and get reused by new rows,
+            // and the next run will try again.
+            Log.w(LOG_TAG, "Couldn't vacuum the weather database", e);
+        }
+        checkpoint(db);
+
+        long reclaimed = (pagesBefore - longForPragma(db, "page_count")) * db.getPageSize();
+        Log.d(LOG_TAG, "Compacted weather database, reclaimed " + reclaimed + " bytes");
+        return reclaimed;
+    }
+
+    // Inserts each location, or updates the row that already has its setting, in one
+    // transaction and returns the row ids in the order given.  Existing rows keep their id so
+    // their weather stays attached; INSERT OR REPLACE would re-insert them under a new one.
+    private long[] upsertLocations(ContentValues[] values) {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final long[] ids = new long[values.length];
+        final String[] settings = new String[values.length];
+        final long generation = getLocationGeneration();
+        beginWriteTransaction(db);
+        try {
+            SQLiteStatement lookup = db.compileStatement(
+                    "SELECT " + WeatherContract.LocationEntry._ID +
+                            " FROM " + WeatherContract.LocationEntry.TABLE_NAME +
+                            " WHERE " + sLocationIdForSettingSelection);
+            try {
+                for (int i = 0; i < values.length; i++) {
+                    settings[i] = values[i].getAsString(
+                            WeatherContract.LocationEntry.COLUMN_LOCATION_SETTING);
+                    if (settings[i] == null) {
+                        throw new IllegalArgumentException("Location without a setting: " +
+                                values[i]);
+                    }
+                    checkLocationSetting(values[i]);
+                    lookup.bindString(1, settings[i]);
+                    try {
+                        ids[i] = lookup.simpleQueryForLong();
+                        db.update(WeatherContract.LocationEntry.TABLE_NAME, values[i],
+                                WeatherContract.LocationEntry._ID + " = ?",
+                                new String[]{Long.toString(ids[i])});
+                    } catch (SQLiteDoneException e) {
+                        ids[i] = db.insertOrThrow(
+                                WeatherContract.LocationEntry.TABLE_NAME, null, values[i]);
+                    }
+                }
+            } finally {
+                lookup.close();
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        if (values.length > 0) {
+            clearLocations();
+            // Saves the weather ingest that usually follows from looking these up again.  Only
+            // this call's own clear may have come between, or another location write could be
+            // undone.
+            for (int i = 0; i < values.length; i++) {
+                cacheLocation(settings[i], ids[i], generation + 1);
+            }
+            notifyChange(WeatherContract.LocationEntry.CONTENT_URI);
+        }
+        return ids;
+    }
+
+    // The days of each location that the weather rows matching selection belong to, so that
+    // writes with an arbitrary selection only invalidate and notify what they actually touch.
+    private static Map<Long, Set<Long>> getWeatherDates(SQLiteDatabase db, String selection,
+                                                        String[] selectionArgs) {
+        Map<Long, Set<Long>> dates = new HashMap<>();
+        Cursor cursor = db.query(true, WeatherContract.WeatherEntry.TABLE_NAME,
+                new String[]{WeatherContract.WeatherEntry.COLUMN_LOC_KEY,
+                        WeatherContract.WeatherEntry.COLUMN_DATE},
+                selection, selectionArgs, null, null, null, null);
+        try {
+            while (cursor.moveToNext()) {
+                addChangedDate(dates, cursor.getLong(0), cursor.getLong(1));
+            }
+        } finally {
+            cursor.close();
+        }
+        return dates;
+    }
+
+    // Records that the weather for a location and day changed.  A null set of dates stands for
+    // every day of that location, either because the date isn't known or because so many days
+    // changed that one notification for the whole location is cheaper.
+    private static void addChangedDate(Map<Long, Set<Long>> changedDates, Long locationId,
+                                       Long date) {
+        if (!changedDates.containsKey(locationId)) {
+            changedDates.put(locationId, new HashSet<Long>());
+        }
+        Set<Long> dates = changedDates.get(locationId);
+        if (dates == null) {
+            return;
+        }
+        if (date == null) {
+            changedDates.put(locationId, null);
+            return;
+        }
+        dates.add(date);
+        if (dates.size() > MAX_DATE_NOTIFICATIONS) {
+            changedDates.put(locationId, null);
+        }
+    }
+
+    // An update that sets the location or date moves the rows it matched, so the days they
+    // land on have changed as well as the ones they left.
+    private static void addMovedDates(Map<Long, Set<Long>> changedDates, Long newLocationId,
+                                      Long newDate) {
+        if (newLocationId == null && newDate == null) {
+            return;
+        }
+        for (Map.Entry<Long, Set<Long>> entry : new ArrayList<>(changedDates.entrySet())) {
+            Long locationId = newLocationId != null ? newLocationId : entry.getKey();
+            if (newDate != null) {
+                addChangedDate(changedDates, locationId, newDate);
+            } else if (entry.getValue() == null) {
+                addChangedDate(changedDates, locationId, null);
+            } else {
+                for (Long date : new ArrayList<>(entry.getValue())) {
+                    addChangedDate(changedDates, locationId, date);
+                }
+            }
+        }
+    }
+
+    // Notifies the setting and id URIs of each changed day, or of the whole location.  Cursors
+    // register for descendants of their URI, so a location's forecast list hears about any of its
+    // days, while views of other locations and other days are left alone.
+    private void notifyWeatherChanges(Map<Long, Set<Long>> changedDates) {
+        for (Map.Entry<Long, Set<Long>> entry : changedDates.entrySet()) {
+            Long locationId = entry.getKey();
+            String locationSetting = locationId == null ? null : getLocationSetting(locationId);
+            if (locationSetting == null) {
+                // Weather for a location we don't know could be behind any URI
+                notifyChange(WeatherContract.WeatherEntry.CONTENT_URI);
+                continue;
+            }
+            Uri settingUri = WeatherContract.WeatherEntry.buildWeatherLocation(locationSetting);
+            Uri idUri = WeatherContract.WeatherEntry.buildWeatherLocationId(locationId);
+            Set<Long> dates = entry.getValue();
+            if (dates == null) {
+                notifyChange(settingUri);
+                notifyChange(idUri);
+                continue;
+            }
+            // Dates in the table are already normalized, so append them as they are
+            for (Long date : dates) {
+                String day = Long.toString(date);
+                notifyChange(settingUri.buildUpon().appendPath(day).build());
+                notifyChange(idUri.buildUpon().appendPath(day).build());
+            }
+        }
+    }
+
+    private void notifyChange(Uri uri) {
+        PendingChanges pending = mPendingChanges.get();
+        if (pending != null) {
+            pending.mUris.add(uri);
+        } else {
+            getContext().getContentResolver().notifyChange(uri, null);
+        }
+    }
+
+    // After a location write, any cached setting, id or result may be stale, and so may the
+    // forecast snapshots, which are looked up by setting.  Inside a batch the maps are cleared
+    // straight away as well, since later operations of the same batch already see the write.
+    private void clearLocations() {
+        synchronized (mLocationIds) {
+            mLocationIds.clear();
+            mLocationSettings.clear();
+            mLocationGeneration++;
+        }
+        PendingChanges pending = mPendingChanges.get();
+        if (pending != null) {
+            pending.mLocationsChanged = true;
+        } else {
+            sDataGeneration.incrementAndGet();
+            mQueryCache.invalidateAll();
+            ForecastSnapshot.deleteAll(getContext());
+        }
+    }
+
+    private void invalidateLocation(Long locationId) {
+        PendingChanges pending = mPendingChanges.get();
+        if (pending != null) {
+            pending.mChangedLocationIds.add(locationId);
+            return;
+        }
+        sDataGeneration.incrementAndGet();
+        if (locationId == null) {
+            mQueryCache.invalidateAll();
+        } else {
+            mQueryCache.invalidate(locationId);
+        }
+    }
+
+    /**
+     * Changes whenever anything this process reads through the provider may have changed.
+     */
+    static long getDataGeneration() {
+        return sDataGeneration.get();
+    }
+
+    private void invalidateLocations(Set<Long> locationIds) {
+        for (Long locationId : locationIds) {
+            invalidateLocation(locationId);
+        }
+    }
+
+    /*
+        Runs the whole batch in one transaction instead of one per operation, and notifies each
+        URI the batch touched once, after it commits.  Operations marked with
+        withYieldAllowed(true) are safe points: before running one, the transaction is committed
+        and restarted if another thread is waiting for the database, so a long batch doesn't lock
+        out readers on pre-WAL devices or other writers.
+     */
+    @Override
+    public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+            throws OperationApplicationException {
+        final SQLiteDatabase db = mOpenHelper.getWritableDatabase();
+        final ContentProviderResult[] results = new ContentProviderResult[operations.size()];
+        final PendingChanges pending = new PendingChanges();
+        mPendingChanges.set(pending);
+        try {
+            beginWriteTransaction(db);
+            try {
+                for (int i = 0; i < operations.size(); i++) {
+                    ContentProviderOperation operation = operations.get(i);
+                    if (i > 0 && operation.isYieldAllowed()) {
+                        db.yieldIfContendedSafely();
+                    }
+                    results[i] = operation.apply(this, results, i);
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            // Even a failed batch may have committed the work before its last yield
+            mPendingChanges.remove();
+            applyPendingChanges(pending);
+        }
+        return results;
+    }
+
+    private void applyPendingChanges(PendingChanges pending) {
+        if (pending.mLocationsChanged) {
+            clearLocations();
+        } else {
+            for (Long locationId : pending.mChangedLocationIds) {
+                invalidateLocation(locationId);
+            }
+        }
+        for (Uri uri : pending.mUris) {
+            notifyChange(uri);
+        }
+    }
+
+    // Notifications and cache invalidations held back until a batch commits.
+    private static final class PendingChanges {
+        final Set<Uri> mUris = new HashSet<>();
+        final Set<Long> mChangedLocationIds = new HashSet<>();
+        boolean mLocationsChanged;
+    }
+
+    static void beginWriteTransaction(SQLiteDatabase db) {
+        // An exclusive transaction would lock out the pooled reader connections as well, while a
+        // non-exclusive one only keeps other writers out; readers keep seeing the last commit.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            db.beginTransactionNonExclusive();
+        } else {
+            db.beginTransaction();
+        }
+    }
+
+    private static void checkpoint(SQLiteDatabase db) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return;
+        }
+        // PASSIVE copies whatever it can without waiting on readers that are still using older
+        // frames, so this never blocks the UI.
+        runPragma(db, "wal_checkpoint(PASSIVE)");
+    }
+
+    // Pragmas that return rows have to be run as a query rather than through execSQL, and
+    // stepped all the way through for them to finish their work.
+    private static void runPragma(SQLiteDatabase db, String pragma) {
+        Cursor cursor = db.rawQuery("PRAGMA " + pragma, null);
+        try {
+            cursor.getCount();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    private static long longForPragma(SQLiteDatabase db, String pragma) {
+        return DatabaseUtils.longForQuery(db, "PRAGMA " + pragma, null);
+    }
+
     // You do not need to call this method. This is a method specifically to assist the testing
     // framework in running smoothly. You can read more at:
     // http://developer.android.com/reference/android/content/ContentProvider.html#shutdown()
     @Override
     @TargetApi(11)
     public void shutdown() {
+        if (mWeatherInsertStatement != null) {
+            mWeatherInsertStatement.close();
+            mWeatherInsertStatement = null;
+        }
+        if (mHistoryInsertStatement != null) {
+            mHistoryInsertStatement.close();
+            mHistoryInsertStatement = null;
+        }
         mOpenHelper.close();
         super.shutdown();
     }
+
+    // The SQL the last query on this thread ran, so tests can check its plan.
+    String getLastQuerySql() {
+        return mMetrics.getLastSql();
+    }
+
+    // Reports the query cache counters and call metrics, e.g. through
+    // adb shell dumpsys activity provider com.example.android.sunshine.app
+    @Override
+    public void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println(mQueryCache);
+        writer.println(mMetrics);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,192 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.app.IntentService;
+import android.content.ContentResolver;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.Intent;
+import android.database.Cursor;
+import android.os.Build;
+import android.util.JsonReader;
+import android.util.JsonToken;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Fills the offline city index from OpenWeatherMap's city list, bundled as a gzipped JSON asset
+ * (http://bulk.openweathermap.org/sample/city.list.json.gz).  The list is streamed rather than
+ * parsed whole, since it's far too big to hold in memory, and only imported once.
+ */
+@TargetApi(Build.VERSION_CODES.HONEYCOMB)
+public class CityImportService extends IntentService {
+    private final String LOG_TAG = CityImportService.class.getSimpleName();
+
+    static final String CITY_LIST_ASSET = "city.list.json.gz";
+
+    // Cities are written this many at a time, so the import never holds much of the list in
+    // memory and the index can be searched while the rest is still being written.
+    private static final int IMPORT_BATCH_SIZE = 1000;
+
+    public CityImportService() {
+        super("CityImportService");
+    }
+
+    /**
+     * Starts the import, if the device can parse the list.  The service itself does nothing if
+     * the cities have already been imported.
+     */
+    public static void importCities(Context context) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.HONEYCOMB) {
+            context.startService(new Intent(context, CityImportService.class));
+        }
+    }
+
+    @Override
+    protected void onHandleIntent(Intent intent) {
+        if (hasCities()) {
+            return;
+        }
+
+        JsonReader reader = null;
+        try {
+            InputStream in = new GZIPInputStream(getAssets().open(CITY_LIST_ASSET));
+            reader = new JsonReader(new InputStreamReader(in, "UTF-8"));
+            int count = importCities(reader);
+            Log.d(LOG_TAG, "Imported " + count + " cities");
+        } catch (FileNotFoundException e) {
+            Log.d(LOG_TAG, "No city list to import");
+        } catch (IOException e) {
+            Log.e(LOG_TAG, "Error importing the city list", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    Log.e(LOG_TAG, "Error closing the city list", e);
+                }
+            }
+        }
+    }
+
+    private boolean hasCities() {
+        Cursor cursor = getContentResolver().query(WeatherContract.CityEntry.CONTENT_URI,
+                new String[]{WeatherContract.CityEntry._ID}, null, null,
+                WeatherContract.CityEntry._ID + " LIMIT 1");
+        if (cursor == null) {
+            return false;
+        }
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    // The list is an array of objects like:
+    // {"id":2643743,"name":"London","country":"GB","coord":{"lon":-0.12574,"lat":51.50853}}
+    // Older lists use "_id" for the id, and some carry the population as "stat":{"population":n}.
+    private int importCities(JsonReader reader) throws IOException {
+        ContentResolver resolver = getContentResolver();
+        ArrayList<ContentValues> batch = new ArrayList<ContentValues>(IMPORT_BATCH_SIZE);
+        int count = 0;
+
+        reader.setLenient(true);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            ContentValues city = readCity(reader);
+            if (city == null) {
+                continue;
+            }
+            batch.add(city);
+            if (batch.size() == IMPORT_BATCH_SIZE) {
+                count += resolver.bulkInsert(WeatherContract.CityEntry.CONTENT_URI,
+                        batch.toArray(new ContentValues[batch.size()]));
+                batch.clear();
+            }
+        }
+        reader.endArray();
+
+        if (!batch.isEmpty()) {
+            count += resolver.bulkInsert(WeatherContract.CityEntry.CONTENT_URI,
+                    batch.toArray(new ContentValues[batch.size()]));
+        }
+        return count;
+    }
+
+    // Returns null for entries missing anything the city table needs.
+    private ContentValues readCity(JsonReader reader) throws IOException {
+        ContentValues city = new ContentValues();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (reader.peek() == JsonToken.NULL) {
+                reader.skipValue();
+            } else if (name.equals("id") || name.equals("_id")) {
+                city.put(WeatherContract.CityEntry._ID, reader.nextLong());
+            } else if (name.equals("name")) {
+                city.put(WeatherContract.CityEntry.COLUMN_CITY_NAME, reader.nextString());
+            } else if (name.equals("country")) {
+                city.put(WeatherContract.CityEntry.COLUMN_COUNTRY, reader.nextString());
+            } else if (name.equals("coord")) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    String coord = reader.nextName();
+                    if (coord.equals("lat")) {
+                        city.put(WeatherContract.CityEntry.COLUMN_COORD_LAT, reader.nextDouble());
+                    } else if (coord.equals("lon")) {
+                        city.put(WeatherContract.CityEntry.COLUMN_COORD_LONG, reader.nextDouble());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else if (name.equals("stat") && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (reader.nextName().equals("population")) {
+                        city.put(WeatherContract.CityEntry.COLUMN_POPULATION, reader.nextLong());
+                    } else {
+                        reader.skipValue();
+                    }
+                }
+                reader.endObject();
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if (!city.containsKey(WeatherContract.CityEntry._ID)
+                || !city.containsKey(WeatherContract.CityEntry.COLUMN_CITY_NAME)
+                || !city.containsKey(WeatherContract.CityEntry.COLUMN_COUNTRY)
+                || !city.containsKey(WeatherContract.CityEntry.COLUMN_COORD_LAT)
+                || !city.containsKey(WeatherContract.CityEntry.COLUMN_COORD_LONG)) {
+            return null;
+        }
+        return city;
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2014 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.example.android.sunshine.app.sync;
+
+import android.annotation.TargetApi;
+import android.app.job.JobInfo;
+import android.app.job.JobParameters;
+import android.app.job.JobScheduler;
+import android.app.job.JobService;
+import android.content.ComponentName;
+import android.content.Context;
+import android.os.Build;
+import android.os.Bundle;
+import android.os.PersistableBundle;
+import android.util.Log;
+
+import com.example.android.sunshine.app.data.WeatherContract;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Prunes old weather and compacts the database while the device is idle and charging.  Sync
+ * only deletes yesterday's weather after it succeeds, so without this the database keeps
+ * growing whenever syncs fail, and the pages freed by deletes are never given back.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+public class WeatherMaintenanceJobService extends JobService {
+    public final String LOG_TAG = WeatherMaintenanceJobService.class.getSimpleName();
+
+    private static final int JOB_ID = 1;
+
+    // How often to compact, and how much of each table to keep when doing so.
+    private static final long MAINTENANCE_INTERVAL = TimeUnit.DAYS.toMillis(1);
+    static final int WEATHER_RETENTION_DAYS = 1;
+    static final boolean PRUNE_LOCATIONS = true;
+    static final int HISTORY_RETENTION_DAYS = 2 * 365;
+
+    /**
+     * Schedules the daily maintenance job, unless it's already pending.  Rescheduling it would
+     * restart its period, and with it being called on every launch the job might never run.
+     */
+    public static void scheduleMaintenance(Context context) {
+        JobScheduler scheduler =
+                (JobScheduler) context.getSystemService(Context.JOB_SCHEDULER_SERVICE);
+        for (JobInfo job : scheduler.getAllPendingJobs()) {
+            if (job.getId() == JOB_ID) {
+                return;
+            }
+        }
+
+        PersistableBundle extras = new PersistableBundle();
+        extras.putInt(WeatherContract.EXTRA_WEATHER_RETENTION_DAYS, WEATHER_RETENTION_DAYS);
+        extras.putBoolean(WeatherContract.EXTRA_PRUNE_LOCATIONS, PRUNE_LOCATIONS);
+        extras.putInt(WeatherContract.EXTRA_HISTORY_RETENTION_DAYS, HISTORY_RETENTION_DAYS);
+
+        JobInfo job = new JobInfo.Builder(JOB_ID,
+                new ComponentName(context, WeatherMaintenanceJobService.class))
+                .setRequiresDeviceIdle(true)
+                .setRequiresCharging(true)
+                .setPeriodic(MAINTENANCE_INTERVAL)
+                .setExtras(extras)
+                .build();
+        scheduler.schedule(job);
+    }
+
+    // The compaction in progress, if any.  The scheduler only runs one instance of the job at a
+    // time, but a stopped run's thread can still be finishing when the next one starts.
+    private Compaction mCompaction;
+
+    @Override
+    public boolean onStartJob(JobParameters params) {
+        // Jobs are started on the main thread, and a vacuum can take a while
+        mCompaction = new Compaction(params);
+        new Thread(mCompaction, LOG_TAG).start();
+        return true;
+    }
+
+    @Override
+    public boolean onStopJob(JobParameters params) {
+        // The device is no longer idle or charging.  Every batch that has already been deleted
+        // stays deleted, so there's nothing to undo; stop before the next one and try again
+        // when the device is next idle.
+        if (mCompaction != null) {
+            mCompaction.stop();
+            mCompaction = null;
+        }
+        return true;
+    }
+
+    private final class Compaction implements Runnable {
+        private final JobParameters mParams;
+        private final String mToken = UUID.randomUUID().toString();
+        private volatile boolean mStopped;
+
+        Compaction(JobParameters params) {
+            mParams = params;
+        }
+
+        void stop() {
+            mStopped = true;
+            getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_CANCEL_COMPACT, mToken, null);
+        }
+
+        @Override
+        public void run() {
+            Bundle extras = new Bundle(mParams.getExtras());
+            extras.putString(WeatherContract.EXTRA_COMPACT_TOKEN, mToken);
+            Bundle result = getContentResolver().call(WeatherContract.BASE_CONTENT_URI,
+                    WeatherContract.METHOD_COMPACT, null, extras);
+            if (result.getBoolean(WeatherContract.EXTRA_CANCELLED)) {
+                Log.d(LOG_TAG, "Maintenance stopped part way");
+            } else {
+                Log.d(LOG_TAG, "Maintenance reclaimed "
+                        + result.getLong(WeatherContract.EXTRA_BYTES_RECLAIMED) + " bytes");
+            }
+            // A stopped job has already been rescheduled by onStopJob, and mustn't be finished
+            if (!mStopped) {
+                jobFinished(mParams, false);
+            }
+        }
+    }
+}